@@ -47,6 +47,11 @@ public class DiffMatchPatch {
 
   /** Number of seconds to map a diff before giving up (0 for infinity). */
   public float Diff_Timeout = 1.0f;
+  /**
+   * Whether diff_bisect() and the diffs it recurses into work over char arrays, instead of
+   * allocating substrings at every step. Results are the same.
+   */
+  public boolean Diff_UseArrays = false;
   /** Cost of an empty edit operation in terms of edit characters. */
   public short Diff_EditCost = 4;
   /** At what point is no match declared (0.0 = perfection, 1.0 = very loose). */
@@ -130,6 +135,30 @@ public class DiffMatchPatch {
     return diff_main(text1, text2, checklines, deadline);
   }
 
+  /**
+   * Find the differences between two texts, token by token. Each run of letters, digits and
+   * underscores (e.g an identifier), each run of whitespace other than newlines, and each other
+   * character is a token. Tokens are mapped to characters, like lines in line mode, so the problem
+   * is smaller than a character diff and changes start and end at token boundaries.
+   *
+   * @param text1 Old string to be diffed.
+   * @param text2 New string to be diffed.
+   * @return Linked List of Diff objects.
+   */
+  public LinkedList<Diff> diff_mainTokens(String text1, String text2) {
+    long deadline;
+    if (Diff_Timeout <= 0) {
+      deadline = Long.MAX_VALUE;
+    } else {
+      deadline = System.currentTimeMillis() + (long) (Diff_Timeout * 1000);
+    }
+    LinesToCharsResult a = diff_tokensToChars(text1, text2);
+    LinkedList<Diff> diffs = diff_main(a.chars1, a.chars2, false, deadline);
+    // Convert the diff back to original text.
+    diff_charsToLines(diffs, a.lineArray);
+    return diffs;
+  }
+
   /**
    * Find the differences between two texts. Simplifies the problem by stripping any common prefix
    * or suffix off the texts before diffing.
@@ -343,6 +372,9 @@ public class DiffMatchPatch {
    * @return LinkedList of Diff objects.
    */
   protected LinkedList<Diff> diff_bisect(String text1, String text2, long deadline) {
+    if (Diff_UseArrays) {
+      return new ArrayDiffer(text1, text2, deadline).bisect(0, text1.length(), 0, text2.length());
+    }
     // Cache the text lengths to prevent multiple calls.
     int text1_length = text1.length();
     int text2_length = text2.length();
@@ -478,6 +510,289 @@ public class DiffMatchPatch {
     return diffs;
   }
 
+  /**
+   * Computes diffs of ranges of two char arrays, the same way as diff_main() without checklines
+   * does for the corresponding substrings. Ranges are [start, end). Text is only copied into
+   * strings for the resulting Diff objects, and the 'middle snake' arrays are shared by all steps.
+   */
+  private class ArrayDiffer {
+    private final char[] text1;
+    private final char[] text2;
+    private final long deadline;
+    // Inner steps have shorter ranges, so arrays for the whole texts fit all of them.
+    private final int[] v1;
+    private final int[] v2;
+
+    ArrayDiffer(String text1, String text2, long deadline) {
+      this.text1 = text1.toCharArray();
+      this.text2 = text2.toCharArray();
+      this.deadline = deadline;
+      int v_length = 2 * ((text1.length() + text2.length() + 1) / 2);
+      v1 = new int[v_length];
+      v2 = new int[v_length];
+    }
+
+    /** Same as diff_main(text1, text2, false, deadline) on the ranges. */
+    LinkedList<Diff> main(int start1, int end1, int start2, int end2) {
+      // Check for equality (speedup).
+      LinkedList<Diff> diffs;
+      int length1 = end1 - start1;
+      if (length1 == end2 - start2 && commonPrefix(start1, end1, start2, end2) == length1) {
+        diffs = new LinkedList<Diff>();
+        if (length1 != 0) {
+          diffs.add(new Diff(Operation.EQUAL, new String(text1, start1, length1)));
+        }
+        return diffs;
+      }
+
+      // Trim off common prefix (speedup).
+      int prefixLength = commonPrefix(start1, end1, start2, end2);
+      String commonprefix = new String(text1, start1, prefixLength);
+      start1 += prefixLength;
+      start2 += prefixLength;
+
+      // Trim off common suffix (speedup).
+      int suffixLength = commonSuffix(start1, end1, start2, end2);
+      String commonsuffix = new String(text1, end1 - suffixLength, suffixLength);
+      end1 -= suffixLength;
+      end2 -= suffixLength;
+
+      // Compute the diff on the middle block.
+      diffs = compute(start1, end1, start2, end2);
+
+      // Restore the prefix and suffix.
+      if (commonprefix.length() != 0) {
+        diffs.addFirst(new Diff(Operation.EQUAL, commonprefix));
+      }
+      if (commonsuffix.length() != 0) {
+        diffs.addLast(new Diff(Operation.EQUAL, commonsuffix));
+      }
+
+      diff_cleanupMerge(diffs);
+      return diffs;
+    }
+
+    /** Same as diff_compute(text1, text2, false, deadline) on the ranges. */
+    private LinkedList<Diff> compute(int start1, int end1, int start2, int end2) {
+      LinkedList<Diff> diffs = new LinkedList<Diff>();
+      int length1 = end1 - start1;
+      int length2 = end2 - start2;
+
+      if (length1 == 0) {
+        // Just add some text (speedup).
+        diffs.add(new Diff(Operation.INSERT, new String(text2, start2, length2)));
+        return diffs;
+      }
+
+      if (length2 == 0) {
+        // Just delete some text (speedup).
+        diffs.add(new Diff(Operation.DELETE, new String(text1, start1, length1)));
+        return diffs;
+      }
+
+      if (length1 > length2) {
+        int i = indexOf(text1, start1, end1, text2, start2, end2);
+        if (i != -1) {
+          // Shorter text is inside the longer text (speedup).
+          diffs.add(new Diff(Operation.DELETE, new String(text1, start1, i - start1)));
+          diffs.add(new Diff(Operation.EQUAL, new String(text2, start2, length2)));
+          diffs.add(new Diff(Operation.DELETE, new String(text1, i + length2, end1 - i - length2)));
+          return diffs;
+        }
+      } else {
+        int i = indexOf(text2, start2, end2, text1, start1, end1);
+        if (i != -1) {
+          diffs.add(new Diff(Operation.INSERT, new String(text2, start2, i - start2)));
+          diffs.add(new Diff(Operation.EQUAL, new String(text1, start1, length1)));
+          diffs.add(new Diff(Operation.INSERT, new String(text2, i + length1, end2 - i - length1)));
+          return diffs;
+        }
+      }
+
+      if (Math.min(length1, length2) == 1) {
+        // Single character string.
+        // After the previous speedup, the character can't be an equality.
+        diffs.add(new Diff(Operation.DELETE, new String(text1, start1, length1)));
+        diffs.add(new Diff(Operation.INSERT, new String(text2, start2, length2)));
+        return diffs;
+      }
+
+      // Check to see if the problem can be split in two. Same checks as diff_halfMatch(), so that
+      // strings are only made when it may find a match.
+      int longLength = Math.max(length1, length2);
+      int shortLength = Math.min(length1, length2);
+      if (Diff_Timeout > 0 && longLength >= 4 && shortLength * 2 >= longLength) {
+        String[] hm =
+            diff_halfMatch(new String(text1, start1, length1), new String(text2, start2, length2));
+        if (hm != null) {
+          // Send both pairs off for separate processing, as diff_compute() does.
+          diffs = diff_main(hm[0], hm[2], false, deadline);
+          diffs.add(new Diff(Operation.EQUAL, hm[4]));
+          diffs.addAll(diff_main(hm[1], hm[3], false, deadline));
+          return diffs;
+        }
+      }
+
+      return bisect(start1, end1, start2, end2);
+    }
+
+    /** Same as diff_bisect(text1, text2, deadline) on the ranges. */
+    LinkedList<Diff> bisect(int start1, int end1, int start2, int end2) {
+      int text1_length = end1 - start1;
+      int text2_length = end2 - start2;
+      int max_d = (text1_length + text2_length + 1) / 2;
+      int v_offset = max_d;
+      int v_length = 2 * max_d;
+      Arrays.fill(v1, 0, v_length, -1);
+      Arrays.fill(v2, 0, v_length, -1);
+      v1[v_offset + 1] = 0;
+      v2[v_offset + 1] = 0;
+      int delta = text1_length - text2_length;
+      // If the total number of characters is odd, then the front path will
+      // collide with the reverse path.
+      boolean front = (delta % 2 != 0);
+      // Offsets for start and end of k loop.
+      // Prevents mapping of space beyond the grid.
+      int k1start = 0;
+      int k1end = 0;
+      int k2start = 0;
+      int k2end = 0;
+      for (int d = 0; d < max_d; d++) {
+        // Bail out if deadline is reached.
+        if (System.currentTimeMillis() > deadline) {
+          break;
+        }
+
+        // Walk the front path one step.
+        for (int k1 = -d + k1start; k1 <= d - k1end; k1 += 2) {
+          int k1_offset = v_offset + k1;
+          int x1;
+          if (k1 == -d || (k1 != d && v1[k1_offset - 1] < v1[k1_offset + 1])) {
+            x1 = v1[k1_offset + 1];
+          } else {
+            x1 = v1[k1_offset - 1] + 1;
+          }
+          int y1 = x1 - k1;
+          while (x1 < text1_length
+              && y1 < text2_length
+              && text1[start1 + x1] == text2[start2 + y1]) {
+            x1++;
+            y1++;
+          }
+          v1[k1_offset] = x1;
+          if (x1 > text1_length) {
+            // Ran off the right of the graph.
+            k1end += 2;
+          } else if (y1 > text2_length) {
+            // Ran off the bottom of the graph.
+            k1start += 2;
+          } else if (front) {
+            int k2_offset = v_offset + delta - k1;
+            if (k2_offset >= 0 && k2_offset < v_length && v2[k2_offset] != -1) {
+              // Mirror x2 onto top-left coordinate system.
+              int x2 = text1_length - v2[k2_offset];
+              if (x1 >= x2) {
+                // Overlap detected.
+                return bisectSplit(start1, end1, start2, end2, x1, y1);
+              }
+            }
+          }
+        }
+
+        // Walk the reverse path one step.
+        for (int k2 = -d + k2start; k2 <= d - k2end; k2 += 2) {
+          int k2_offset = v_offset + k2;
+          int x2;
+          if (k2 == -d || (k2 != d && v2[k2_offset - 1] < v2[k2_offset + 1])) {
+            x2 = v2[k2_offset + 1];
+          } else {
+            x2 = v2[k2_offset - 1] + 1;
+          }
+          int y2 = x2 - k2;
+          while (x2 < text1_length
+              && y2 < text2_length
+              && text1[end1 - x2 - 1] == text2[end2 - y2 - 1]) {
+            x2++;
+            y2++;
+          }
+          v2[k2_offset] = x2;
+          if (x2 > text1_length) {
+            // Ran off the left of the graph.
+            k2end += 2;
+          } else if (y2 > text2_length) {
+            // Ran off the top of the graph.
+            k2start += 2;
+          } else if (!front) {
+            int k1_offset = v_offset + delta - k2;
+            if (k1_offset >= 0 && k1_offset < v_length && v1[k1_offset] != -1) {
+              int x1 = v1[k1_offset];
+              int y1 = v_offset + x1 - k1_offset;
+              // Mirror x2 onto top-left coordinate system.
+              x2 = text1_length - x2;
+              if (x1 >= x2) {
+                // Overlap detected.
+                return bisectSplit(start1, end1, start2, end2, x1, y1);
+              }
+            }
+          }
+        }
+      }
+      // Diff took too long and hit the deadline or
+      // number of diffs equals number of characters, no commonality at all.
+      LinkedList<Diff> diffs = new LinkedList<Diff>();
+      diffs.add(new Diff(Operation.DELETE, new String(text1, start1, text1_length)));
+      diffs.add(new Diff(Operation.INSERT, new String(text2, start2, text2_length)));
+      return diffs;
+    }
+
+    /** Same as diff_bisectSplit(text1, text2, x, y, deadline) on the ranges. */
+    private LinkedList<Diff> bisectSplit(int start1, int end1, int start2, int end2, int x, int y) {
+      // Compute both diffs serially.
+      LinkedList<Diff> diffs = main(start1, start1 + x, start2, start2 + y);
+      LinkedList<Diff> diffsb = main(start1 + x, end1, start2 + y, end2);
+
+      diffs.addAll(diffsb);
+      return diffs;
+    }
+
+    private int commonPrefix(int start1, int end1, int start2, int end2) {
+      int n = Math.min(end1 - start1, end2 - start2);
+      for (int i = 0; i < n; i++) {
+        if (text1[start1 + i] != text2[start2 + i]) {
+          return i;
+        }
+      }
+      return n;
+    }
+
+    private int commonSuffix(int start1, int end1, int start2, int end2) {
+      int n = Math.min(end1 - start1, end2 - start2);
+      for (int i = 1; i <= n; i++) {
+        if (text1[end1 - i] != text2[end2 - i]) {
+          return i - 1;
+        }
+      }
+      return n;
+    }
+
+    // Returns the first index of text[patternStart, patternEnd) in text[start, end), like
+    // String.indexOf(), or -1 if it's not found.
+    private int indexOf(
+        char[] text, int start, int end, char[] pattern, int patternStart, int patternEnd) {
+      int patternLength = patternEnd - patternStart;
+      for (int i = start; i <= end - patternLength; i++) {
+        int j = 0;
+        while (j < patternLength && text[i + j] == pattern[patternStart + j]) {
+          j++;
+        }
+        if (j == patternLength) {
+          return i;
+        }
+      }
+      return -1;
+    }
+  }
+
   /**
    * Split two texts into a list of strings. Reduce the texts to a string of hashes where each
    * Unicode character represents one line.
@@ -547,6 +862,89 @@ public class DiffMatchPatch {
     return chars.toString();
   }
 
+  /**
+   * Split two texts into a list of tokens (see diff_mainTokens()). Reduce the texts to a string of
+   * hashes where each Unicode character represents one token.
+   *
+   * @param text1 First string.
+   * @param text2 Second string.
+   * @return An object containing the encoded text1, the encoded text2 and the List of unique
+   *     tokens. The zeroth element of the List of unique tokens is intentionally blank.
+   */
+  protected LinesToCharsResult diff_tokensToChars(String text1, String text2) {
+    List<String> tokenArray = new ArrayList<String>();
+    Map<String, Integer> tokenHash = new HashMap<String, Integer>();
+    // Avoid generating a null character, as in diff_linesToChars().
+    tokenArray.add("");
+
+    // Allocate 2/3rds of the space for text1, the rest for text2.
+    String chars1 = diff_tokensToCharsMunge(text1, tokenArray, tokenHash, 40000);
+    String chars2 = diff_tokensToCharsMunge(text2, tokenArray, tokenHash, 65535);
+    return new LinesToCharsResult(chars1, chars2, tokenArray);
+  }
+
+  /**
+   * Split a text into a list of tokens. Reduce the text to a string of hashes where each Unicode
+   * character represents one token.
+   *
+   * @param text String to encode.
+   * @param tokenArray List of unique tokens.
+   * @param tokenHash Map of tokens to indices.
+   * @param maxTokens Maximum length of tokenArray.
+   * @return Encoded string.
+   */
+  private String diff_tokensToCharsMunge(
+      String text, List<String> tokenArray, Map<String, Integer> tokenHash, int maxTokens) {
+    int tokenStart = 0;
+    StringBuilder chars = new StringBuilder();
+    while (tokenStart < text.length()) {
+      int tokenEnd = diff_tokenEnd(text, tokenStart);
+      String token = text.substring(tokenStart, tokenEnd);
+      Integer index = tokenHash.get(token);
+      if (index == null) {
+        if (tokenArray.size() == maxTokens) {
+          // Bail out, as in diff_linesToCharsMunge(). The rest of the text is one token.
+          token = text.substring(tokenStart);
+          tokenEnd = text.length();
+        }
+        tokenArray.add(token);
+        index = tokenArray.size() - 1;
+        tokenHash.put(token, index);
+      }
+      chars.append((char) (int) index);
+      tokenStart = tokenEnd;
+    }
+    return chars.toString();
+  }
+
+  /**
+   * Returns the end (exclusive) of the token that starts at tokenStart in text.
+   *
+   * @param text String to tokenize.
+   * @param tokenStart Index of the first character of the token.
+   * @return Index after the last character of the token.
+   */
+  private int diff_tokenEnd(String text, int tokenStart) {
+    char firstChar = text.charAt(tokenStart);
+    int tokenEnd = tokenStart + 1;
+    if (diff_isWordChar(firstChar)) {
+      while (tokenEnd < text.length() && diff_isWordChar(text.charAt(tokenEnd))) {
+        tokenEnd++;
+      }
+    } else if (firstChar != '\n' && Character.isWhitespace(firstChar)) {
+      while (tokenEnd < text.length()
+          && text.charAt(tokenEnd) != '\n'
+          && Character.isWhitespace(text.charAt(tokenEnd))) {
+        tokenEnd++;
+      }
+    }
+    return tokenEnd;
+  }
+
+  private boolean diff_isWordChar(char c) {
+    return Character.isLetterOrDigit(c) || c == '_';
+  }
+
   /**
    * Rehydrate the text in a diff from a string of line hashes to real lines of text.
    *
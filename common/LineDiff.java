@@ -0,0 +1,743 @@
+/*
+ * Copyright 2018 The StartupOS Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.startupos.common;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Line diff of two texts, computed in-process with Myers' algorithm, like `git diff`.
+ *
+ * <p>Lines are hashed to ints, so comparing lines is comparing ints. The result marks which lines
+ * of each side are changed. As in git's xdiff, lines that can't match are discarded before the
+ * search, and the search settles for a good enough path when the shortest one is costly to find,
+ * so large rewrites don't take quadratic time. Change groups are then slid like git does, so that
+ * they're at the same place `git diff` (with its default indent heuristic) would put them.
+ */
+final class LineDiff {
+  // Constants of xdiff's heuristics
+  private static final int MAX_EQUAL_LIMIT = 1024;
+  private static final int SIMILAR_SCAN_WINDOW = 100;
+  private static final int KEEP_MANY_MATCHES_RUN = 4;
+  private static final int MIN_MAX_COST = 256;
+  private static final int HEURISTIC_MIN_COST = 256;
+  private static final int HEURISTIC_FACTOR = 4;
+  private static final int SNAKE_COUNT = 20;
+  // How many times a line is in the other side, for discarding lines
+  private static final byte NO_MATCH = 0;
+  private static final byte SOME_MATCHES = 1;
+  private static final byte MANY_MATCHES = 2;
+
+  final String[] leftLines;
+  final String[] rightLines;
+  // Whether each line was deleted (left) or added (right). Both have a false sentinel at index 0
+  // and at the end, so line i is at index i + 1.
+  private final boolean[] leftChanged;
+  private final boolean[] rightChanged;
+
+  private final int[] left;
+  private final int[] right;
+  private final int idCount;
+  // Lines that weren't discarded, as indices into left and right, and their ids.
+  private int[] leftIndex;
+  private int[] rightIndex;
+  private int[] leftKept;
+  private int[] rightKept;
+  // Work arrays for finding splits, indexed by diagonal + diagonalOffset.
+  private int[] forward;
+  private int[] backward;
+  private int diagonalOffset;
+  private int maxCost;
+  // The result of split()
+  private int splitLeft;
+  private int splitRight;
+  private boolean splitNeedMinBefore;
+  private boolean splitNeedMinAfter;
+
+  private LineDiff(String leftText, String rightText) {
+    leftLines = splitLines(leftText);
+    rightLines = splitLines(rightText);
+    Map<String, Integer> ids = new HashMap<>();
+    left = toIds(leftLines, leftText, ids);
+    right = toIds(rightLines, rightText, ids);
+    idCount = ids.size();
+    leftChanged = new boolean[left.length + 2];
+    rightChanged = new boolean[right.length + 2];
+  }
+
+  /** Computes the line diff between `leftText` and `rightText`. */
+  static LineDiff compute(String leftText, String rightText) {
+    LineDiff result = new LineDiff(leftText, rightText);
+    result.diff();
+    result.leftIndex = null;
+    result.rightIndex = null;
+    result.leftKept = null;
+    result.rightKept = null;
+    result.forward = null;
+    result.backward = null;
+    compact(result.leftLines, result.left, result.leftChanged, result.rightChanged);
+    compact(result.rightLines, result.right, result.rightChanged, result.leftChanged);
+    return result;
+  }
+
+  /** Returns whether line `index` (0-based) of the left text was deleted. */
+  boolean isDeleted(int index) {
+    return leftChanged[index + 1];
+  }
+
+  /** Returns whether line `index` (0-based) of the right text was added. */
+  boolean isAdded(int index) {
+    return rightChanged[index + 1];
+  }
+
+  /** Returns whether there are no changed lines. */
+  boolean isEmpty() {
+    for (int i = 0; i < left.length; i++) {
+      if (isDeleted(i)) {
+        return false;
+      }
+    }
+    for (int i = 0; i < right.length; i++) {
+      if (isAdded(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Splits on "\n", like the lines of a diff. There is no last empty line for a trailing newline.
+  private static String[] splitLines(String text) {
+    if (text.isEmpty()) {
+      return new String[0];
+    }
+    int count = 1;
+    for (int i = 0; i < text.length() - 1; i++) {
+      if (text.charAt(i) == '\n') {
+        count++;
+      }
+    }
+    String[] result = new String[count];
+    int start = 0;
+    for (int i = 0; i < count; i++) {
+      int end = text.indexOf('\n', start);
+      if (end == -1) {
+        end = text.length();
+      }
+      result[i] = text.substring(start, end);
+      start = end + 1;
+    }
+    return result;
+  }
+
+  // Maps lines to ints, so that equal lines have equal ids. Like git, a last line without a
+  // newline is different from the same line with one.
+  private static int[] toIds(String[] lines, String text, Map<String, Integer> ids) {
+    int[] result = new int[lines.length];
+    for (int i = 0; i < lines.length; i++) {
+      String line = lines[i];
+      if (i == lines.length - 1 && !text.endsWith("\n")) {
+        line += "\n";
+      }
+      Integer id = ids.get(line);
+      if (id == null) {
+        id = ids.size();
+        ids.put(line, id);
+      }
+      result[i] = id;
+    }
+    return result;
+  }
+
+  // Finds changed lines, like xdiff does for `git diff`.
+  private void diff() {
+    // Lines of the common prefix and suffix aren't changed.
+    int minLength = Math.min(left.length, right.length);
+    int start = 0;
+    while (start < minLength && left[start] == right[start]) {
+      start++;
+    }
+    int suffix = 0;
+    while (suffix < minLength - start
+        && left[left.length - 1 - suffix] == right[right.length - 1 - suffix]) {
+      suffix++;
+    }
+    int[] leftCounts = countIds(left);
+    int[] rightCounts = countIds(right);
+    leftIndex = discardLines(left, start, left.length - suffix, rightCounts, leftChanged);
+    rightIndex = discardLines(right, start, right.length - suffix, leftCounts, rightChanged);
+    leftKept = new int[leftIndex.length];
+    for (int i = 0; i < leftIndex.length; i++) {
+      leftKept[i] = left[leftIndex[i]];
+    }
+    rightKept = new int[rightIndex.length];
+    for (int i = 0; i < rightIndex.length; i++) {
+      rightKept[i] = right[rightIndex[i]];
+    }
+    // Diagonals (left index - right index) are from -rightKept.length - 1 to leftKept.length + 1.
+    int diagonals = leftKept.length + rightKept.length + 3;
+    forward = new int[diagonals];
+    backward = new int[diagonals];
+    diagonalOffset = rightKept.length + 1;
+    maxCost = Math.max(bogoSqrt(diagonals), MIN_MAX_COST);
+    compare(0, leftKept.length, 0, rightKept.length, false);
+  }
+
+  private int[] countIds(int[] lines) {
+    int[] result = new int[idCount];
+    for (int id : lines) {
+      result[id]++;
+    }
+    return result;
+  }
+
+  // A rough square root, as in xdiff.
+  private static int bogoSqrt(int n) {
+    int result = 1;
+    for (; n > 0; n >>= 2) {
+      result <<= 1;
+    }
+    return result;
+  }
+
+  /**
+   * Marks lines in [start, end) that can't be matched as changed, and returns the indices of the
+   * other lines, which are the ones the diff is computed on. Lines that aren't in the other side
+   * are discarded, and so are lines that are in the other side many times, if they're among
+   * discarded lines. This is what makes diffs of mostly rewritten files fast.
+   */
+  private static int[] discardLines(
+      int[] lines, int start, int end, int[] otherCounts, boolean[] changed) {
+    int limit = Math.min(bogoSqrt(lines.length), MAX_EQUAL_LIMIT);
+    byte[] matches = new byte[end - start];
+    for (int i = start; i < end; i++) {
+      int count = otherCounts[lines[i]];
+      matches[i - start] = count == 0 ? NO_MATCH : count >= limit ? MANY_MATCHES : SOME_MATCHES;
+    }
+    int[] result = new int[end - start];
+    int resultCount = 0;
+    for (int i = start; i < end; i++) {
+      byte match = matches[i - start];
+      if (match == SOME_MATCHES
+          || (match == MANY_MATCHES && !isAmongDiscarded(matches, i - start))) {
+        result[resultCount++] = i;
+      } else {
+        changed[i + 1] = true;
+      }
+    }
+    return Arrays.copyOf(result, resultCount);
+  }
+
+  // Returns whether the line at `index`, which has many matches, is in a run of lines without
+  // matches or with many matches, with enough lines without matches before and after it.
+  private static boolean isAmongDiscarded(byte[] matches, int index) {
+    int start = Math.max(0, index - SIMILAR_SCAN_WINDOW);
+    int end = Math.min(matches.length - 1, index + SIMILAR_SCAN_WINDOW);
+    int noMatchesBefore = 0;
+    int manyMatches = 1;
+    for (int i = index - 1; i >= start && matches[i] != SOME_MATCHES; i--) {
+      if (matches[i] == NO_MATCH) {
+        noMatchesBefore++;
+      } else {
+        manyMatches++;
+      }
+    }
+    if (noMatchesBefore == 0) {
+      return false;
+    }
+    int noMatchesAfter = 0;
+    // The line itself is counted again, as xdiff does.
+    manyMatches++;
+    for (int i = index + 1; i <= end && matches[i] != SOME_MATCHES; i++) {
+      if (matches[i] == NO_MATCH) {
+        noMatchesAfter++;
+      } else {
+        manyMatches++;
+      }
+    }
+    if (noMatchesAfter == 0) {
+      return false;
+    }
+    int noMatches = noMatchesBefore + noMatchesAfter;
+    return manyMatches * KEEP_MANY_MATCHES_RUN < manyMatches + noMatches;
+  }
+
+  /**
+   * Marks changed lines between leftKept[leftStart, leftEnd) and rightKept[rightStart, rightEnd).
+   * If `needMin` is false, the edit path may not be the shortest one, when finding it is too
+   * costly.
+   */
+  private void compare(
+      int leftStart, int leftEnd, int rightStart, int rightEnd, boolean needMin) {
+    // Skip common prefix and suffix
+    while (leftStart < leftEnd
+        && rightStart < rightEnd
+        && leftKept[leftStart] == rightKept[rightStart]) {
+      leftStart++;
+      rightStart++;
+    }
+    while (leftStart < leftEnd
+        && rightStart < rightEnd
+        && leftKept[leftEnd - 1] == rightKept[rightEnd - 1]) {
+      leftEnd--;
+      rightEnd--;
+    }
+    if (leftStart == leftEnd) {
+      for (int i = rightStart; i < rightEnd; i++) {
+        rightChanged[rightIndex[i] + 1] = true;
+      }
+    } else if (rightStart == rightEnd) {
+      for (int i = leftStart; i < leftEnd; i++) {
+        leftChanged[leftIndex[i] + 1] = true;
+      }
+    } else {
+      split(leftStart, leftEnd, rightStart, rightEnd, needMin);
+      // Read before recursing, which overwrites them.
+      int leftSplit = splitLeft;
+      int rightSplit = splitRight;
+      boolean needMinBefore = splitNeedMinBefore;
+      boolean needMinAfter = splitNeedMinAfter;
+      compare(leftStart, leftSplit, rightStart, rightSplit, needMinBefore);
+      compare(leftSplit, leftEnd, rightSplit, rightEnd, needMinAfter);
+    }
+  }
+
+  private void setSplit(int left, int right, boolean needMinBefore, boolean needMinAfter) {
+    splitLeft = left;
+    splitRight = right;
+    splitNeedMinBefore = needMinBefore;
+    splitNeedMinAfter = needMinAfter;
+  }
+
+  /**
+   * Finds where the forward and backward searches for the shortest edit path meet, which splits
+   * the ranges into two smaller problems, and sets it with setSplit(). This is xdiff's xdl_split():
+   * unless `needMin` is true, when the search is costly it settles for a split at a long enough
+   * snake, or, after `maxCost` steps, at the furthest reaching path.
+   */
+  private void split(int leftStart, int leftEnd, int rightStart, int rightEnd, boolean needMin) {
+    final int[] f = forward;
+    final int[] b = backward;
+    final int o = diagonalOffset;
+    final int minDiagonal = leftStart - rightEnd;
+    final int maxDiagonal = leftEnd - rightStart;
+    final int forwardMid = leftStart - rightStart;
+    final int backwardMid = leftEnd - rightEnd;
+    final boolean odd = ((forwardMid - backwardMid) & 1) != 0;
+    int forwardMin = forwardMid;
+    int forwardMax = forwardMid;
+    int backwardMin = backwardMid;
+    int backwardMax = backwardMid;
+    f[forwardMid + o] = leftStart;
+    b[backwardMid + o] = leftEnd;
+    for (int cost = 1; ; cost++) {
+      boolean gotSnake = false;
+      // Extend the diagonals by one, or shrink them where they'd leave the box. The diagonals
+      // just outside are set so that they're never chosen.
+      if (forwardMin > minDiagonal) {
+        f[--forwardMin - 1 + o] = -1;
+      } else {
+        forwardMin++;
+      }
+      if (forwardMax < maxDiagonal) {
+        f[++forwardMax + 1 + o] = -1;
+      } else {
+        forwardMax--;
+      }
+      for (int d = forwardMax; d >= forwardMin; d -= 2) {
+        int x = f[d - 1 + o] >= f[d + 1 + o] ? f[d - 1 + o] + 1 : f[d + 1 + o];
+        int previousX = x;
+        int y = x - d;
+        while (x < leftEnd && y < rightEnd && leftKept[x] == rightKept[y]) {
+          x++;
+          y++;
+        }
+        if (x - previousX > SNAKE_COUNT) {
+          gotSnake = true;
+        }
+        f[d + o] = x;
+        if (odd && backwardMin <= d && d <= backwardMax && b[d + o] <= x) {
+          setSplit(x, y, true, true);
+          return;
+        }
+      }
+      if (backwardMin > minDiagonal) {
+        b[--backwardMin - 1 + o] = Integer.MAX_VALUE;
+      } else {
+        backwardMin++;
+      }
+      if (backwardMax < maxDiagonal) {
+        b[++backwardMax + 1 + o] = Integer.MAX_VALUE;
+      } else {
+        backwardMax--;
+      }
+      for (int d = backwardMax; d >= backwardMin; d -= 2) {
+        int x = b[d - 1 + o] < b[d + 1 + o] ? b[d - 1 + o] : b[d + 1 + o] - 1;
+        int previousX = x;
+        int y = x - d;
+        while (x > leftStart && y > rightStart && leftKept[x - 1] == rightKept[y - 1]) {
+          x--;
+          y--;
+        }
+        if (previousX - x > SNAKE_COUNT) {
+          gotSnake = true;
+        }
+        b[d + o] = x;
+        if (!odd && forwardMin <= d && d <= forwardMax && x <= f[d + o]) {
+          setSplit(x, y, true, true);
+          return;
+        }
+      }
+      if (needMin) {
+        continue;
+      }
+      if (gotSnake && cost > HEURISTIC_MIN_COST) {
+        // Split at a path that ends with a long snake, and got far from the corner of the box
+        // without getting far from the middle diagonal, if there is one.
+        int best = 0;
+        for (int d = forwardMax; d >= forwardMin; d -= 2) {
+          int x = f[d + o];
+          int y = x - d;
+          int value = (x - leftStart) + (y - rightStart) - Math.abs(d - forwardMid);
+          if (value > HEURISTIC_FACTOR * cost
+              && value > best
+              && leftStart + SNAKE_COUNT <= x
+              && x < leftEnd
+              && rightStart + SNAKE_COUNT <= y
+              && y < rightEnd) {
+            for (int k = 1; leftKept[x - k] == rightKept[y - k]; k++) {
+              if (k == SNAKE_COUNT) {
+                best = value;
+                setSplit(x, y, true, false);
+                break;
+              }
+            }
+          }
+        }
+        if (best > 0) {
+          return;
+        }
+        for (int d = backwardMax; d >= backwardMin; d -= 2) {
+          int x = b[d + o];
+          int y = x - d;
+          int value = (leftEnd - x) + (rightEnd - y) - Math.abs(d - backwardMid);
+          if (value > HEURISTIC_FACTOR * cost
+              && value > best
+              && leftStart < x
+              && x <= leftEnd - SNAKE_COUNT
+              && rightStart < y
+              && y <= rightEnd - SNAKE_COUNT) {
+            for (int k = 0; leftKept[x + k] == rightKept[y + k]; k++) {
+              if (k == SNAKE_COUNT - 1) {
+                best = value;
+                setSplit(x, y, false, true);
+                break;
+              }
+            }
+          }
+        }
+        if (best > 0) {
+          return;
+        }
+      }
+      if (cost >= maxCost) {
+        // Enough is enough: split at the furthest reaching path.
+        int forwardBest = -1;
+        int forwardBestX = -1;
+        for (int d = forwardMax; d >= forwardMin; d -= 2) {
+          int x = Math.min(f[d + o], leftEnd);
+          int y = x - d;
+          if (rightEnd < y) {
+            x = rightEnd + d;
+            y = rightEnd;
+          }
+          if (forwardBest < x + y) {
+            forwardBest = x + y;
+            forwardBestX = x;
+          }
+        }
+        int backwardBest = Integer.MAX_VALUE;
+        int backwardBestX = Integer.MAX_VALUE;
+        for (int d = backwardMax; d >= backwardMin; d -= 2) {
+          int x = Math.max(leftStart, b[d + o]);
+          int y = x - d;
+          if (y < rightStart) {
+            x = rightStart + d;
+            y = rightStart;
+          }
+          if (x + y < backwardBest) {
+            backwardBest = x + y;
+            backwardBestX = x;
+          }
+        }
+        if ((leftEnd + rightEnd) - backwardBest < forwardBest - (leftStart + rightStart)) {
+          setSplit(forwardBestX, forwardBest - forwardBestX, true, false);
+        } else {
+          setSplit(backwardBestX, backwardBest - backwardBestX, false, true);
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * Slides groups of changed lines in `lines` to where `git diff` puts them. If a group can slide,
+   * it's aligned with a change in the other side if there is one, or else put where it splits the
+   * text best by indentation (git's indent heuristic). Sliding also merges groups where possible.
+   */
+  private static void compact(
+      String[] text, int[] lines, boolean[] changed, boolean[] otherChanged) {
+    // Groups are [start, end) in 1-based line indices, which are also indices into `changed`.
+    Group group = new Group(changed, lines.length);
+    Group other = new Group(otherChanged, otherChanged.length - 2);
+    while (true) {
+      if (group.end != group.start) {
+        int groupSize;
+        int earliestEnd;
+        int endMatchingOther;
+        do {
+          groupSize = group.end - group.start;
+          endMatchingOther = -1;
+          // Slide up as far as possible, keeping the other side's group in step.
+          while (group.slideUp(lines)) {
+            other.previous();
+          }
+          earliestEnd = group.end;
+          if (other.end > other.start) {
+            endMatchingOther = group.end;
+          }
+          // Slide down as far as possible.
+          while (group.slideDown(lines)) {
+            other.next();
+            if (other.end > other.start) {
+              endMatchingOther = group.end;
+            }
+          }
+          // Repeat if sliding merged groups.
+        } while (groupSize != group.end - group.start);
+        if (group.end == earliestEnd) {
+          // It can't slide
+        } else if (endMatchingOther != -1) {
+          // Slide back up until the group ends where the other side has a change.
+          while (other.end == other.start) {
+            group.slideUp(lines);
+            other.previous();
+          }
+        } else {
+          int bestEnd = findBestSplit(text, earliestEnd - 1, group.end - 1, groupSize) + 1;
+          while (group.end > bestEnd) {
+            group.slideUp(lines);
+            other.previous();
+          }
+        }
+      }
+      if (!group.next()) {
+        break;
+      }
+      other.next();
+    }
+  }
+
+  // Constants of git's indent heuristic, tuned by git on a corpus of human-made diffs.
+  private static final int MAX_INDENT = 200;
+  private static final int MAX_BLANKS = 20;
+  private static final int START_OF_FILE_PENALTY = 1;
+  private static final int END_OF_FILE_PENALTY = 21;
+  private static final int TOTAL_BLANK_WEIGHT = -30;
+  private static final int POST_BLANK_WEIGHT = 6;
+  private static final int RELATIVE_INDENT_PENALTY = -4;
+  private static final int RELATIVE_INDENT_WITH_BLANK_PENALTY = 10;
+  private static final int RELATIVE_OUTDENT_PENALTY = 24;
+  private static final int RELATIVE_OUTDENT_WITH_BLANK_PENALTY = 17;
+  private static final int RELATIVE_DEDENT_PENALTY = 23;
+  private static final int RELATIVE_DEDENT_WITH_BLANK_PENALTY = 17;
+  private static final int INDENT_WEIGHT = 60;
+  private static final int MAX_SLIDING = 100;
+
+  /**
+   * Returns the (0-based, exclusive) end of a group of `groupSize` lines that can end anywhere from
+   * `earliestEnd` to `latestEnd`, where the splits before and after the group look most like what a
+   * human would choose.
+   */
+  private static int findBestSplit(String[] text, int earliestEnd, int latestEnd, int groupSize) {
+    int shift = Math.max(earliestEnd, Math.max(latestEnd - groupSize - 1, latestEnd - MAX_SLIDING));
+    int bestShift = -1;
+    int bestIndent = 0;
+    int bestPenalty = 0;
+    for (; shift <= latestEnd; shift++) {
+      int[] score = new int[2];
+      scoreSplit(text, shift, score);
+      scoreSplit(text, shift - groupSize, score);
+      int compareIndents = Integer.compare(score[0], bestIndent);
+      if (bestShift == -1 || INDENT_WEIGHT * compareIndents + (score[1] - bestPenalty) <= 0) {
+        bestIndent = score[0];
+        bestPenalty = score[1];
+        bestShift = shift;
+      }
+    }
+    return bestShift;
+  }
+
+  // Adds the effective indent and penalty of splitting `text` before line `split` to `score`.
+  private static void scoreSplit(String[] text, int split, int[] score) {
+    boolean endOfFile = split >= text.length;
+    int indent = endOfFile ? -1 : getIndent(text[split]);
+    int preBlank = 0;
+    int preIndent = -1;
+    for (int i = split - 1; i >= 0; i--) {
+      preIndent = getIndent(text[i]);
+      if (preIndent != -1) {
+        break;
+      }
+      preBlank++;
+      if (preBlank == MAX_BLANKS) {
+        preIndent = 0;
+        break;
+      }
+    }
+    int postBlank = 0;
+    int postIndent = -1;
+    for (int i = split + 1; i < text.length; i++) {
+      postIndent = getIndent(text[i]);
+      if (postIndent != -1) {
+        break;
+      }
+      postBlank++;
+      if (postBlank == MAX_BLANKS) {
+        postIndent = 0;
+        break;
+      }
+    }
+
+    int penalty = 0;
+    if (preIndent == -1 && preBlank == 0) {
+      penalty += START_OF_FILE_PENALTY;
+    }
+    if (endOfFile) {
+      penalty += END_OF_FILE_PENALTY;
+    }
+    int postBlankTotal = indent == -1 ? 1 + postBlank : 0;
+    int totalBlank = preBlank + postBlankTotal;
+    penalty += TOTAL_BLANK_WEIGHT * totalBlank;
+    penalty += POST_BLANK_WEIGHT * postBlankTotal;
+    if (indent == -1) {
+      indent = postIndent;
+    }
+    boolean anyBlanks = totalBlank != 0;
+    if (indent != -1 && preIndent != -1) {
+      if (indent > preIndent) {
+        penalty += anyBlanks ? RELATIVE_INDENT_WITH_BLANK_PENALTY : RELATIVE_INDENT_PENALTY;
+      } else if (indent < preIndent) {
+        if (postIndent != -1 && postIndent > indent) {
+          penalty += anyBlanks ? RELATIVE_OUTDENT_WITH_BLANK_PENALTY : RELATIVE_OUTDENT_PENALTY;
+        } else {
+          penalty += anyBlanks ? RELATIVE_DEDENT_WITH_BLANK_PENALTY : RELATIVE_DEDENT_PENALTY;
+        }
+      }
+    }
+    score[0] += indent;
+    score[1] += penalty;
+  }
+
+  // Returns the width of a line's leading whitespace, with tabs to multiples of 8, or -1 if it's
+  // blank.
+  private static int getIndent(String line) {
+    int result = 0;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (c == ' ') {
+        result++;
+      } else if (c == '\t') {
+        result += 8 - result % 8;
+      } else if (c != '\n' && c != '\r' && c != '\u000b' && c != '\f') {
+        return result;
+      }
+      if (result >= MAX_INDENT) {
+        return MAX_INDENT;
+      }
+    }
+    return -1;
+  }
+
+  /** A group of consecutive changed lines, which may be empty (between two unchanged lines). */
+  private static class Group {
+    private final boolean[] changed;
+    private final int lineCount;
+    private int start = 1;
+    private int end = 1;
+
+    Group(boolean[] changed, int lineCount) {
+      this.changed = changed;
+      this.lineCount = lineCount;
+      while (changed[end]) {
+        end++;
+      }
+    }
+
+    // Moves to the next group, or returns false if this is the last one.
+    boolean next() {
+      if (end == lineCount + 1) {
+        return false;
+      }
+      start = end + 1;
+      end = start;
+      while (changed[end]) {
+        end++;
+      }
+      return true;
+    }
+
+    // Moves to the previous group, or returns false if this is the first one.
+    boolean previous() {
+      if (start == 1) {
+        return false;
+      }
+      end = start - 1;
+      start = end;
+      while (changed[start - 1]) {
+        start--;
+      }
+      return true;
+    }
+
+    // Slides the group down by one line if the lines before and after it are the same. Returns
+    // false if it can't.
+    boolean slideDown(int[] lines) {
+      if (end == lineCount + 1 || lines[start - 1] != lines[end - 1]) {
+        return false;
+      }
+      changed[start++] = false;
+      changed[end++] = true;
+      while (changed[end]) {
+        end++;
+      }
+      return true;
+    }
+
+    boolean slideUp(int[] lines) {
+      if (start == 1 || lines[start - 2] != lines[end - 2]) {
+        return false;
+      }
+      changed[--start] = true;
+      changed[--end] = false;
+      while (changed[start - 1]) {
+        start--;
+      }
+      return true;
+    }
+  }
+}
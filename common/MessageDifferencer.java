@@ -19,6 +19,8 @@ package com.google.startupos.common;
 import com.google.auto.value.AutoValue;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
@@ -28,8 +30,11 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Ordering;
 import com.google.common.collect.Sets;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Descriptors.Descriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor.JavaType;
+import com.google.protobuf.FieldMask;
 import com.google.protobuf.Message;
 import com.google.protobuf.TextFormat;
 import com.google.protobuf.UnknownFieldSet;
@@ -43,6 +48,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 
@@ -50,6 +58,12 @@ import javax.annotation.concurrent.Immutable;
  * Static methods and classes for comparing Protocol Messages.
  *
  * <p>Taken from: com.google.common.truth.extensions.proto.MessageDifferencer
+ *
+ * <p>What a differencer needs to know about the fields of a message type (their order, how
+ * repeated fields are matched, which fields are ignored) is compiled once per {@link Descriptor}
+ * into a plan, which is cached and reused by all comparisons of that type. See {@link
+ * #compile(Descriptor)}. The cache is bounded, so a differencer can be used with any number of
+ * message types, including the shared differencers of the static methods.
  */
 @Immutable
 public final class MessageDifferencer {
@@ -137,6 +151,13 @@ public final class MessageDifferencer {
     }
   }
 
+  // The number of message types whose plans a differencer keeps. Plans that are evicted are
+  // compiled again when they're needed.
+  private static final int MAX_CACHED_PLANS = 1000;
+
+  /** Default for {@link Builder#setParallelFieldThreshold}. */
+  public static final int DEFAULT_PARALLEL_FIELD_THRESHOLD = 1000;
+
   /** Creates a new builder. */
   public static Builder newBuilder() {
     return new Builder();
@@ -154,6 +175,8 @@ public final class MessageDifferencer {
     private boolean reportMatches;
     private FieldComparator fieldComparator;
     private final List<IgnoreCriteria> ignoreCriterias = Lists.newArrayList();
+    private ForkJoinPool fieldComparisonPool;
+    private int parallelFieldThreshold = DEFAULT_PARALLEL_FIELD_THRESHOLD;
 
     private Builder() {}
 
@@ -332,6 +355,30 @@ public final class MessageDifferencer {
       return this;
     }
 
+    /**
+     * Compares the top-level message and repeated fields of large messages on `pool`, each field
+     * in its own task (see {@link #setParallelFieldThreshold}). By default, or if `pool` is null,
+     * they're compared on the calling thread.
+     *
+     * <p>Reporters are still only called on the calling thread, with the same reports in the same
+     * order as when comparing sequentially. The {@link FieldComparator}, {@link MapKeyComparator}s
+     * and {@link IgnoreCriteria} are called from the pool's threads, so they must be thread-safe.
+     */
+    public Builder setFieldComparisonPool(ForkJoinPool pool) {
+      fieldComparisonPool = pool;
+      return this;
+    }
+
+    /**
+     * Sets the number of elements, in the top-level repeated fields of the compared messages, from
+     * which their fields are compared in parallel. Smaller messages aren't worth the overhead.
+     */
+    public Builder setParallelFieldThreshold(int threshold) {
+      Preconditions.checkArgument(threshold >= 0, "Threshold must not be negative: %s", threshold);
+      parallelFieldThreshold = threshold;
+      return this;
+    }
+
     IgnoreCriteria getMergedIgnoreCriteria() {
       if (!ignoreFields.isEmpty()) {
         IgnoreCriteria criterion = ignoringFields(ImmutableSet.copyOf(ignoreFields));
@@ -356,22 +403,250 @@ public final class MessageDifferencer {
   private final RepeatedFieldComparison repeatedFieldComparison;
   private final boolean reportMatches;
   private final FieldComparator fieldComparator;
+  private final ImmutableSet<FieldDescriptor> ignoreFields;
+  // Whether fields can only be ignored by ignoreField(), so it's known for each field in advance.
+  private final boolean hasOnlyIgnoreFields;
+  // DefaultFieldComparator doesn't use the parent fields, so they're not copied for it.
+  private final boolean usesParentFields;
+  // A cache rather than state, so it doesn't affect the differencer's immutability. It's bounded,
+  // since differencers like the shared ones below can be used with any number of message types,
+  // e.g DynamicMessage types built at runtime.
+  private final Cache<Descriptor, DescriptorPlan> plans =
+      CacheBuilder.newBuilder().maximumSize(MAX_CACHED_PLANS).build();
+  private final ForkJoinPool fieldComparisonPool;
+  private final int parallelFieldThreshold;
+  // Whether messages are the same exactly when Message.equals() says so, so that a different
+  // serialized size or hash code means they're not, and the same bytes mean they are.
+  private final boolean comparesLikeEquals;
 
   private MessageDifferencer(Builder builder) {
     setFields = ImmutableSet.copyOf(builder.setFields);
+    ignoreFields = ImmutableSet.copyOf(builder.ignoreFields);
+    hasOnlyIgnoreFields = builder.ignoreCriterias.isEmpty();
     ignoreCriteria = builder.getMergedIgnoreCriteria();
     mapKeyComparatorMap = ImmutableMap.copyOf(builder.mapKeyComparatorMap);
     messageFieldComparison = builder.messageFieldComparison;
     scope = builder.scope;
     floatComparison = builder.floatComparison;
     repeatedFieldComparison = builder.repeatedFieldComparison;
+    fieldComparisonPool = builder.fieldComparisonPool;
+    parallelFieldThreshold = builder.parallelFieldThreshold;
     reportMatches = builder.reportMatches;
     fieldComparator =
         builder.fieldComparator == null
             ? new DefaultFieldComparator(floatComparison)
             : builder.fieldComparator;
+    usesParentFields = !(fieldComparator instanceof DefaultFieldComparator);
+    comparesLikeEquals =
+        !usesParentFields
+            && ((DefaultFieldComparator) fieldComparator).floatComparison == FloatComparison.EXACT
+            && messageFieldComparison == MessageFieldComparison.EQUAL
+            && scope == Scope.FULL
+            && repeatedFieldComparison == RepeatedFieldComparison.AS_LIST
+            && setFields.isEmpty()
+            && mapKeyComparatorMap.isEmpty()
+            && ignoreFields.isEmpty()
+            && hasOnlyIgnoreFields;
+  }
+
+  // How a field is compared, resolved from the differencer's settings.
+  private static final class FieldPlan {
+    private final FieldDescriptor field;
+    private final SpecificField specificField;
+    // Only used if the differencer has no IgnoreCriteria other than ignored fields.
+    private final boolean ignored;
+    // For repeated fields, the key comparator if they're compared as a map, or else null.
+    @Nullable private final MapKeyComparator keyComparator;
+    private final boolean treatedAsSet;
+    private final boolean treatedAsSubset;
+    // Whether elements of a repeated field can only match elements with the same match hash (see
+    // getMatchHash()), so they're bucketed by it.
+    private final boolean bucketed;
+    // The element fields that the match hash is computed from, or null to hash whole elements.
+    @Nullable private final ImmutableList<FieldDescriptor> matchHashFields;
+
+    private FieldPlan(MessageDifferencer differencer, FieldDescriptor field) {
+      this.field = field;
+      specificField = SpecificField.forField(field);
+      ignored = differencer.ignoreFields.contains(field);
+      MapKeyComparator keyComparator = differencer.mapKeyComparatorMap.get(field);
+      if (field.isMapField() && (keyComparator == null)) {
+        keyComparator = PROTO_MAP_KEY_COMPARATOR;
+      }
+      this.keyComparator = field.isRepeated() ? keyComparator : null;
+      treatedAsSet = field.isRepeated() && differencer.isTreatedAsSet(field);
+      treatedAsSubset = treatedAsSet && (differencer.scope == Scope.PARTIAL);
+
+      // A match hash can only be used if elements that match are known to have the same hash.
+      // Keys are matched by comparing their values, so with DefaultFieldComparator, key fields
+      // that are compared with equals() can be hashed. Whole elements are also matched by
+      // ignored fields and by the scope, so they're only hashed when these can't make elements
+      // with different values match.
+      boolean canHash = field.isRepeated() && !differencer.usesParentFields;
+      if (canHash && (this.keyComparator instanceof MultipleFieldsMapKeyComparator)) {
+        matchHashFields =
+            differencer.getHashableFields(
+                ((MultipleFieldsMapKeyComparator) this.keyComparator).keyFields);
+      } else if (canHash && (this.keyComparator == PROTO_MAP_KEY_COMPARATOR)) {
+        matchHashFields =
+            differencer.getHashableFields(
+                ImmutableList.of(field.getMessageType().findFieldByName("key")));
+      } else if (canHash
+          && (this.keyComparator == null)
+          && treatedAsSet
+          && differencer.hasOnlyIgnoreFields
+          && (differencer.scope == Scope.FULL)
+          && (field.getJavaType() == JavaType.MESSAGE)) {
+        matchHashFields = differencer.getHashableFields(field.getMessageType().getFields());
+      } else {
+        matchHashFields = null;
+        canHash =
+            canHash
+                && (this.keyComparator == null)
+                && treatedAsSet
+                && differencer.isHashable(field.getJavaType());
+      }
+      // Hashing no fields would put all elements in the same bucket.
+      bucketed = canHash && ((matchHashFields == null) || !matchHashFields.isEmpty());
+    }
+
+    // Returns a hash of an element of the repeated field, which is the same for all elements that
+    // can match it.
+    private int getMatchHash(Message message, int index) {
+      Object element = message.getRepeatedField(field, index);
+      if (matchHashFields == null) {
+        return element.hashCode();
+      }
+      int hash = 1;
+      for (FieldDescriptor hashField : matchHashFields) {
+        hash = 31 * hash + ((Message) element).getField(hashField).hashCode();
+      }
+      return hash;
+    }
+  }
+
+  // Returns the singular fields that DefaultFieldComparator compares with equals(), and that
+  // aren't ignored. Messages that match have equal values in them, as returned by getField().
+  private ImmutableList<FieldDescriptor> getHashableFields(List<FieldDescriptor> fields) {
+    ImmutableList.Builder<FieldDescriptor> result = ImmutableList.builder();
+    for (FieldDescriptor field : fields) {
+      if (!field.isRepeated() && isHashable(field.getJavaType()) && !ignoreFields.contains(field)) {
+        result.add(field);
+      }
+    }
+    return result.build();
+  }
+
+  private boolean isHashable(JavaType javaType) {
+    switch (javaType) {
+      case MESSAGE:
+        return false;
+      case FLOAT:
+      case DOUBLE:
+        return ((DefaultFieldComparator) fieldComparator).floatComparison == FloatComparison.EXACT;
+      default:
+        return true;
+    }
+  }
+
+  // The field plans of a message type.
+  private static final class DescriptorPlan {
+    private final Descriptor descriptor;
+    // Indexed by FieldDescriptor.getIndex().
+    private final FieldPlan[] fields;
+    // The same plans, in field number order.
+    private final FieldPlan[] fieldsByNumber;
+
+    private DescriptorPlan(MessageDifferencer differencer, Descriptor descriptor) {
+      this.descriptor = descriptor;
+      List<FieldDescriptor> fieldDescriptors = descriptor.getFields();
+      fields = new FieldPlan[fieldDescriptors.size()];
+      for (FieldDescriptor field : fieldDescriptors) {
+        fields[field.getIndex()] = new FieldPlan(differencer, field);
+      }
+      fieldsByNumber = fields.clone();
+      Arrays.sort(
+          fieldsByNumber,
+          (plan1, plan2) -> Integer.compare(plan1.field.getNumber(), plan2.field.getNumber()));
+    }
+
+    private FieldPlan getFieldPlan(MessageDifferencer differencer, FieldDescriptor field) {
+      if (field.isExtension() || !field.getContainingType().equals(descriptor)) {
+        return new FieldPlan(differencer, field);
+      }
+      return fields[field.getIndex()];
+    }
+
+    // Returns the fields that are set in `message`, in field number order, like the keys of
+    // getAllFields(), without reading their values.
+    private Set<FieldDescriptor> getSetFields(Message message) {
+      if (descriptor.isExtendable()) {
+        return message.getAllFields().keySet();
+      }
+      ImmutableSet.Builder<FieldDescriptor> result = ImmutableSet.builder();
+      for (FieldPlan plan : fieldsByNumber) {
+        FieldDescriptor field = plan.field;
+        if (field.isRepeated()
+            ? (message.getRepeatedFieldCount(field) > 0)
+            : message.hasField(field)) {
+          result.add(field);
+        }
+      }
+      return result.build();
+    }
+  }
+
+  /**
+   * Compiles the plans for comparing messages of `descriptor` and of all message types in its
+   * fields, ahead of the first comparison. Otherwise, plans are compiled on first use. Either way,
+   * a differencer compiles each plan once, unless it's evicted: plans are kept for up to 1000
+   * message types.
+   */
+  public void compile(Descriptor descriptor) {
+    Set<Descriptor> visited = Sets.newHashSet(descriptor);
+    LinkedList<Descriptor> queue = new LinkedList<>(visited);
+    while (!queue.isEmpty()) {
+      for (FieldDescriptor field : getPlan(queue.removeFirst()).descriptor.getFields()) {
+        if ((field.getJavaType() == JavaType.MESSAGE) && visited.add(field.getMessageType())) {
+          queue.add(field.getMessageType());
+        }
+      }
+    }
+  }
+
+  private DescriptorPlan getPlan(Descriptor descriptor) {
+    DescriptorPlan plan = plans.getIfPresent(descriptor);
+    if (plan == null) {
+      plan = plans.asMap().computeIfAbsent(descriptor, key -> new DescriptorPlan(this, key));
+    }
+    return plan;
+  }
+
+  private FieldPlan getFieldPlan(FieldDescriptor field) {
+    return getPlan(field.getContainingType()).getFieldPlan(this, field);
   }
 
+  private boolean isIgnored(
+      Message message1, Message message2, FieldPlan fieldPlan, List<SpecificField> stack) {
+    if (hasOnlyIgnoreFields) {
+      return fieldPlan.ignored;
+    }
+    return ignoreCriteria.isIgnored(
+        message1, message2, fieldPlan.field, Collections.unmodifiableList(stack));
+  }
+
+  // Shared by the static methods below, so that their plans are compiled once.
+  private static final MessageDifferencer EQUALS = newBuilder().build();
+  private static final MessageDifferencer EQUIVALENT =
+      newBuilder().setMessageFieldComparison(MessageFieldComparison.EQUIVALENT).build();
+  private static final MessageDifferencer APPROXIMATELY_EQUALS =
+      newBuilder().setFloatComparison(FloatComparison.APPROXIMATE).build();
+  private static final MessageDifferencer APPROXIMATELY_EQUIVALENT =
+      newBuilder()
+          .setMessageFieldComparison(MessageFieldComparison.EQUIVALENT)
+          .setFloatComparison(FloatComparison.APPROXIMATE)
+          .build();
+
   /**
    * Determines whether the supplied messages are equal. Equality is defined as all fields within
    * the two messages being set to the same value. Primitive fields and strings are compared by
@@ -380,7 +655,7 @@ public final class MessageDifferencer {
    * @throws IllegalArgumentException if the messages have different descriptors
    */
   public static boolean equals(Message message1, Message message2) {
-    return newBuilder().build().compare(message1, message2);
+    return EQUALS.compare(message1, message2);
   }
 
   /**
@@ -392,10 +667,7 @@ public final class MessageDifferencer {
    * @throws IllegalArgumentException if the messages have different descriptors
    */
   public static boolean equivalent(Message message1, Message message2) {
-    return newBuilder()
-        .setMessageFieldComparison(MessageFieldComparison.EQUIVALENT)
-        .build()
-        .compare(message1, message2);
+    return EQUIVALENT.compare(message1, message2);
   }
 
   /**
@@ -407,10 +679,7 @@ public final class MessageDifferencer {
    * @throws IllegalArgumentException if the messages have different descriptors
    */
   public static boolean approximatelyEquals(Message message1, Message message2) {
-    return newBuilder()
-        .setFloatComparison(FloatComparison.APPROXIMATE)
-        .build()
-        .compare(message1, message2);
+    return APPROXIMATELY_EQUALS.compare(message1, message2);
   }
 
   /**
@@ -424,11 +693,7 @@ public final class MessageDifferencer {
    * @throws IllegalArgumentException if the messages have different descriptors
    */
   public static boolean approximatelyEquivalent(Message message1, Message message2) {
-    return newBuilder()
-        .setMessageFieldComparison(MessageFieldComparison.EQUIVALENT)
-        .setFloatComparison(FloatComparison.APPROXIMATE)
-        .build()
-        .compare(message1, message2);
+    return APPROXIMATELY_EQUIVALENT.compare(message1, message2);
   }
 
   /**
@@ -772,10 +1037,41 @@ public final class MessageDifferencer {
    * @throws IllegalArgumentException if the messages have different descriptors
    */
   public boolean compare(Message message1, Message message2, @Nullable Reporter reporter) {
+    checkSameDescriptor(message1, message2);
+    if ((message1 == message2) && ((reporter == null) || !reportMatches)) {
+      return true;
+    }
+    // Other differencers, e.g with EQUIVALENT or AS_SET, would still have to compare messages with
+    // different bytes field by field, so serializing them would mostly be wasted.
+    if (comparesLikeEquals && (reporter == null)) {
+      if ((message1.getSerializedSize() != message2.getSerializedSize())
+          || (message1.hashCode() != message2.hashCode())) {
+        return false;
+      }
+      // Different bytes can still be equal, e.g NaNs with different payloads, so they're compared
+      // field by field.
+      if (Arrays.equals(toDeterministicBytes(message1), toDeterministicBytes(message2))) {
+        return true;
+      }
+    }
     List<SpecificField> stack = Lists.newArrayList();
     return compare(message1, message2, reporter, stack);
   }
 
+  // Serializes with map entries sorted by key, so that equal maps have the same bytes.
+  private static byte[] toDeterministicBytes(Message message) {
+    byte[] result = new byte[message.getSerializedSize()];
+    CodedOutputStream output = CodedOutputStream.newInstance(result);
+    output.useDeterministicSerialization();
+    try {
+      message.writeTo(output);
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot serialize to a byte array", e);
+    }
+    output.checkNoSpaceLeft();
+    return result;
+  }
+
   private boolean compare(
       Message message1, Message message2, @Nullable Reporter reporter, List<SpecificField> stack) {
     checkSameDescriptor(message1, message2);
@@ -789,10 +1085,11 @@ public final class MessageDifferencer {
       }
       unknownCompareResult = false;
     }
-    Set<FieldDescriptor> message1Fields = message1.getAllFields().keySet();
-    Set<FieldDescriptor> message2Fields = message2.getAllFields().keySet();
+    DescriptorPlan plan = getPlan(message1.getDescriptorForType());
+    Set<FieldDescriptor> message1Fields = plan.getSetFields(message1);
+    Set<FieldDescriptor> message2Fields = plan.getSetFields(message2);
     return compareRequestedFields(
-            message1, message2, message1Fields, message2Fields, reporter, stack)
+            plan, message1, message2, message1Fields, message2Fields, reporter, stack)
         && unknownCompareResult;
   }
 
@@ -828,7 +1125,13 @@ public final class MessageDifferencer {
     message2Fields = ImmutableSet.copyOf(Ordering.natural().sortedCopy(message2Fields));
     List<SpecificField> stack = Lists.newArrayList();
     return compareRequestedFields(
-        message1, message2, message1Fields, message2Fields, reporter, stack);
+        getPlan(message1.getDescriptorForType()),
+        message1,
+        message2,
+        message1Fields,
+        message2Fields,
+        reporter,
+        stack);
   }
 
   private void checkSameDescriptor(Message message1, Message message2) {
@@ -931,6 +1234,7 @@ public final class MessageDifferencer {
   }
 
   private boolean compareRequestedFields(
+      DescriptorPlan plan,
       Message message1,
       Message message2,
       Set<FieldDescriptor> message1Fields,
@@ -944,11 +1248,11 @@ public final class MessageDifferencer {
         // rather than the addition or deletion of fields).
         Set<FieldDescriptor> fieldsUnion = Sets.union(message1Fields, message2Fields);
         return compareWithFieldsInternal(
-            message1, message2, fieldsUnion, fieldsUnion, reporter, stack);
+            plan, message1, message2, fieldsUnion, fieldsUnion, reporter, stack);
       } else {
         // Simple equality comparison, use the unaltered field lists.
         return compareWithFieldsInternal(
-            message1, message2, message1Fields, message2Fields, reporter, stack);
+            plan, message1, message2, message1Fields, message2Fields, reporter, stack);
       }
     } else {
       if (messageFieldComparison == MessageFieldComparison.EQUIVALENT) {
@@ -956,7 +1260,7 @@ public final class MessageDifferencer {
         // comparing.  This way, extra fields in message2 are ignored,
         // and missing fields in message2 use their default value.
         return compareWithFieldsInternal(
-            message1, message2, message1Fields, message1Fields, reporter, stack);
+            plan, message1, message2, message1Fields, message1Fields, reporter, stack);
       } else {
         // We need to consider the full list of fields for message1
         // but only the intersection for message2.  This way, any fields
@@ -964,7 +1268,7 @@ public final class MessageDifferencer {
         // present in message1 will be marked as a difference.
         Set<FieldDescriptor> fieldsIntersection = Sets.intersection(message1Fields, message2Fields);
         return compareWithFieldsInternal(
-            message1, message2, message1Fields, fieldsIntersection, reporter, stack);
+            plan, message1, message2, message1Fields, fieldsIntersection, reporter, stack);
       }
     }
   }
@@ -972,12 +1276,165 @@ public final class MessageDifferencer {
   private static final Set<FieldDescriptor> SENTINEL = Collections.singleton(null);
 
   private boolean compareWithFieldsInternal(
+      DescriptorPlan plan,
       Message message1,
       Message message2,
       Set<FieldDescriptor> message1Fields,
       Set<FieldDescriptor> message2Fields,
       @Nullable Reporter reporter,
       List<SpecificField> stack) {
+    if ((fieldComparisonPool == null) || !stack.isEmpty()) {
+      return compareWithFieldsInternal(
+          plan,
+          message1,
+          message2,
+          message1Fields,
+          message2Fields,
+          reporter,
+          stack,
+          ImmutableMap.of());
+    }
+    Map<FieldDescriptor, ForkJoinTask<FieldComparison>> fieldComparisons =
+        submitFieldComparisons(plan, message1, message2, message1Fields, message2Fields, reporter);
+    try {
+      return compareWithFieldsInternal(
+          plan,
+          message1,
+          message2,
+          message1Fields,
+          message2Fields,
+          reporter,
+          stack,
+          fieldComparisons);
+    } finally {
+      // Comparisons whose results weren't needed, e.g after a difference without a reporter.
+      for (ForkJoinTask<FieldComparison> fieldComparison : fieldComparisons.values()) {
+        fieldComparison.cancel(false);
+      }
+    }
+  }
+
+  // The result of comparing a field's values in parallel, with the reports it made.
+  private static final class FieldComparison {
+    private final boolean isSame;
+    @Nullable private final BufferingReporter reports;
+
+    private FieldComparison(boolean isSame, @Nullable BufferingReporter reports) {
+      this.isSame = isSame;
+      this.reports = reports;
+    }
+  }
+
+  // Keeps the reports of a comparison that runs on another thread, so that they can be passed to
+  // the actual reporter later, in order and on its thread.
+  private static final class BufferingReporter implements Reporter {
+    private final List<ReportType> types = Lists.newArrayList();
+    private final List<Message> messages1 = Lists.newArrayList();
+    private final List<Message> messages2 = Lists.newArrayList();
+    private final List<ImmutableList<SpecificField>> fieldPaths = Lists.newArrayList();
+
+    @Override
+    public void report(
+        ReportType type,
+        Message message1,
+        Message message2,
+        ImmutableList<SpecificField> fieldPath) {
+      types.add(type);
+      messages1.add(message1);
+      messages2.add(message2);
+      fieldPaths.add(fieldPath);
+    }
+
+    private void replay(Reporter reporter) {
+      for (int i = 0; i < types.size(); i++) {
+        reporter.report(types.get(i), messages1.get(i), messages2.get(i), fieldPaths.get(i));
+      }
+    }
+  }
+
+  // Starts comparing the values of top-level fields that are set in both messages in parallel, if
+  // the messages are large enough. Returns the comparisons by field. Ignored fields aren't
+  // compared, like when comparing sequentially.
+  private Map<FieldDescriptor, ForkJoinTask<FieldComparison>> submitFieldComparisons(
+      DescriptorPlan plan,
+      Message message1,
+      Message message2,
+      Set<FieldDescriptor> message1Fields,
+      Set<FieldDescriptor> message2Fields,
+      @Nullable Reporter reporter) {
+    List<FieldPlan> fieldPlans = Lists.newArrayList();
+    long elements = 0;
+    for (FieldDescriptor field : message1Fields) {
+      FieldPlan fieldPlan = plan.getFieldPlan(this, field);
+      if (!message2Fields.contains(field)
+          || isIgnored(message1, message2, fieldPlan, ImmutableList.of())
+          || (!field.isRepeated() && (field.getJavaType() != JavaType.MESSAGE))) {
+        continue;
+      }
+      fieldPlans.add(fieldPlan);
+      if (field.isRepeated()) {
+        elements +=
+            Math.max(
+                message1.getRepeatedFieldCount(field), message2.getRepeatedFieldCount(field));
+      }
+    }
+    if ((fieldPlans.size() < 2) || (elements < parallelFieldThreshold)) {
+      return ImmutableMap.of();
+    }
+    Map<FieldDescriptor, ForkJoinTask<FieldComparison>> result = Maps.newHashMap();
+    for (FieldPlan fieldPlan : fieldPlans) {
+      result.put(
+          fieldPlan.field,
+          fieldComparisonPool.submit(
+              () -> {
+                BufferingReporter reports = (reporter == null) ? null : new BufferingReporter();
+                return new FieldComparison(
+                    compareFieldValues(
+                        ImmutableMap.of(),
+                        fieldPlan,
+                        message1,
+                        message2,
+                        reports,
+                        Lists.newArrayList()),
+                    reports);
+              }));
+    }
+    return result;
+  }
+
+  // Compares the values of a field that's set in both messages, or gets the result of comparing
+  // them in parallel.
+  private boolean compareFieldValues(
+      Map<FieldDescriptor, ForkJoinTask<FieldComparison>> fieldComparisons,
+      FieldPlan fieldPlan,
+      Message message1,
+      Message message2,
+      @Nullable Reporter reporter,
+      List<SpecificField> stack) {
+    ForkJoinTask<FieldComparison> fieldComparison = fieldComparisons.get(fieldPlan.field);
+    if (fieldComparison != null) {
+      FieldComparison result = fieldComparison.join();
+      if (reporter != null) {
+        result.reports.replay(reporter);
+      }
+      return result.isSame;
+    }
+    if (fieldPlan.field.isRepeated()) {
+      return compareRepeatedField(message1, message2, fieldPlan, reporter, stack);
+    }
+    return compareFieldValueUsingParentFields(
+        message1, message2, fieldPlan.field, -1, -1, reporter, stack);
+  }
+
+  private boolean compareWithFieldsInternal(
+      DescriptorPlan plan,
+      Message message1,
+      Message message2,
+      Set<FieldDescriptor> message1Fields,
+      Set<FieldDescriptor> message2Fields,
+      @Nullable Reporter reporter,
+      List<SpecificField> stack,
+      Map<FieldDescriptor, ForkJoinTask<FieldComparison>> fieldComparisons) {
 
     boolean isDifferent = false;
     Iterator<FieldDescriptor> it1 = Iterables.concat(message1Fields, SENTINEL).iterator();
@@ -990,8 +1447,7 @@ public final class MessageDifferencer {
       // Check for differences in the field itself.
       if (fieldBefore(field1, field2)) {
         // Field 1 is not in the field list for message 2.
-        if (ignoreCriteria.isIgnored(
-            message1, message2, field1, Collections.unmodifiableList(stack))) {
+        if (isIgnored(message1, message2, plan.getFieldPlan(this, field1), stack)) {
           // We are ignoring field1. Report the ignore and move on to the next field in message1.
           if (reporter != null) {
             report(ReportType.IGNORED, message1, message2, field1, message1, reporter, stack);
@@ -1009,8 +1465,7 @@ public final class MessageDifferencer {
         continue;
       } else if (fieldBefore(field2, field1)) {
         // Field 2 is not in the field list for message 1.
-        if (ignoreCriteria.isIgnored(
-            message1, message2, field2, Collections.unmodifiableList(stack))) {
+        if (isIgnored(message1, message2, plan.getFieldPlan(this, field2), stack)) {
           // We are ignoring field2. Report the ignore and move on to the next field in message2.
           if (reporter != null) {
             report(ReportType.IGNORED, message1, message2, field2, message2, reporter, stack);
@@ -1031,13 +1486,14 @@ public final class MessageDifferencer {
       // By this point, field1 and field2 are guaranteed to point to the same
       // field, so we can now compare the values.
       boolean fieldDifferent;
-      if (ignoreCriteria.isIgnored(
-          message1, message2, field1, Collections.unmodifiableList(stack))) {
+      FieldPlan fieldPlan = plan.getFieldPlan(this, field1);
+      if (isIgnored(message1, message2, fieldPlan, stack)) {
         if (reporter != null) {
           report(ReportType.IGNORED, message1, message2, field2, message2, reporter, stack);
         }
       } else if (field1.isRepeated()) {
-        fieldDifferent = !compareRepeatedField(message1, message2, field1, reporter, stack);
+        fieldDifferent =
+            !compareFieldValues(fieldComparisons, fieldPlan, message1, message2, reporter, stack);
         if (fieldDifferent) {
           if (reporter == null) {
             return false;
@@ -1045,10 +1501,9 @@ public final class MessageDifferencer {
           isDifferent = true;
         }
       } else {
-        SpecificField specificField = SpecificField.forField(field1);
+        SpecificField specificField = fieldPlan.specificField;
         fieldDifferent =
-            !compareFieldValueUsingParentFields(
-                message1, message2, field1, -1, -1, reporter, stack);
+            !compareFieldValues(fieldComparisons, fieldPlan, message1, message2, reporter, stack);
         // If we have found differences, either report them or terminate if
         // no reporter is present.
         if (fieldDifferent) {
@@ -1079,7 +1534,12 @@ public final class MessageDifferencer {
       List<SpecificField> stack) {
     FieldComparator.ComparisonResult result =
         fieldComparator.compare(
-            message1, message2, field, index1, index2, ImmutableList.copyOf(stack));
+            message1,
+            message2,
+            field,
+            index1,
+            index2,
+            usesParentFields ? ImmutableList.copyOf(stack) : ImmutableList.of());
     if (result == FieldComparator.ComparisonResult.RECURSE) {
       Preconditions.checkArgument(
           field.getJavaType() == JavaType.MESSAGE,
@@ -1146,9 +1606,20 @@ public final class MessageDifferencer {
       FieldDescriptor repeatedField,
       @Nullable Reporter reporter,
       List<SpecificField> stack) {
+    return compareRepeatedField(
+        message1, message2, getFieldPlan(repeatedField), reporter, stack);
+  }
+
+  private boolean compareRepeatedField(
+      Message message1,
+      Message message2,
+      FieldPlan fieldPlan,
+      @Nullable Reporter reporter,
+      List<SpecificField> stack) {
+    FieldDescriptor repeatedField = fieldPlan.field;
     int count1 = message1.getRepeatedFieldCount(repeatedField);
     int count2 = message2.getRepeatedFieldCount(repeatedField);
-    boolean treatedAsSubset = isTreatedAsSubset(repeatedField);
+    boolean treatedAsSubset = fieldPlan.treatedAsSubset;
 
     // If the field is not treated as subset and no detailed reports is needed,
     // we do a quick check on the number of the elements to avoid unnecessary
@@ -1164,7 +1635,7 @@ public final class MessageDifferencer {
 
     // Try to match indices of the repeated fields. Return false if match fails
     // and there's no detailed report needed.
-    if (!matchRepeatedFieldIndices(message1, message2, repeatedField, matchList1, matchList2, stack)
+    if (!matchRepeatedFieldIndices(message1, message2, fieldPlan, matchList1, matchList2, stack)
         && (reporter == null)) {
       return false;
     }
@@ -1244,14 +1715,12 @@ public final class MessageDifferencer {
   private boolean matchRepeatedFieldIndices(
       Message message1,
       Message message2,
-      FieldDescriptor repeatedField,
+      FieldPlan fieldPlan,
       int[] matchList1,
       int[] matchList2,
       List<SpecificField> stack) {
-    MapKeyComparator keyComparator = mapKeyComparatorMap.get(repeatedField);
-    if (repeatedField.isMapField() && (keyComparator == null)) {
-      keyComparator = PROTO_MAP_KEY_COMPARATOR;
-    }
+    FieldDescriptor repeatedField = fieldPlan.field;
+    MapKeyComparator keyComparator = fieldPlan.keyComparator;
     int count1 = matchList1.length;
     int count2 = matchList2.length;
     Arrays.fill(matchList1, -1);
@@ -1259,7 +1728,33 @@ public final class MessageDifferencer {
 
     boolean success = true;
     // Find potential match if this is a special repeated field.
-    if ((keyComparator != null) || isTreatedAsSet(repeatedField)) {
+    if (fieldPlan.bucketed) {
+      // Same as below, but only elements in the same bucket are compared.
+      Map<Integer, List<Integer>> buckets = Maps.newHashMap();
+      for (int j = 0; j < count2; j++) {
+        buckets
+            .computeIfAbsent(fieldPlan.getMatchHash(message2, j), hash -> Lists.newArrayList())
+            .add(j);
+      }
+      for (int i = 0; i < count1; i++) {
+        boolean match = false;
+        List<Integer> bucket = buckets.get(fieldPlan.getMatchHash(message1, i));
+        if (bucket != null) {
+          for (int j : bucket) {
+            if (matchList2[j] != -1) {
+              continue;
+            }
+            match = isMatch(repeatedField, keyComparator, message1, message2, i, j, stack);
+            if (match) {
+              matchList1[i] = j;
+              matchList2[j] = i;
+              break;
+            }
+          }
+        }
+        success = success && match;
+      }
+    } else if ((keyComparator != null) || fieldPlan.treatedAsSet) {
       for (int i = 0; i < count1; i++) {
         // Indicates any matched elements for this repeated field.
         boolean match = false;
@@ -1311,10 +1806,6 @@ public final class MessageDifferencer {
     return isSame;
   }
 
-  private boolean isTreatedAsSubset(FieldDescriptor field) {
-    return isTreatedAsSet(field) && (scope == Scope.PARTIAL);
-  }
-
   private boolean isTreatedAsSet(FieldDescriptor field) {
     if (repeatedFieldComparison == RepeatedFieldComparison.AS_SET) {
       return true;
@@ -1513,6 +2004,154 @@ public final class MessageDifferencer {
     }
   }
 
+  /** A difference between two messages, as collected by {@link DeltaReporter}. */
+  @AutoValue
+  @Immutable
+  public abstract static class Delta {
+
+    private static Delta create(
+        ReportType type,
+        ImmutableList<SpecificField> fieldPath,
+        @Nullable Object value1,
+        @Nullable Object value2) {
+      return new AutoValue_MessageDifferencer_Delta(type, fieldPath, value1, value2);
+    }
+
+    /** Returns {@link ReportType#ADDED}, {@link ReportType#DELETED}, MODIFIED or MOVED. */
+    public abstract ReportType getType();
+
+    /** Returns the path from the compared messages to the field, as passed to a Reporter. */
+    public abstract ImmutableList<SpecificField> getFieldPath();
+
+    /**
+     * Returns the field's value in the first message, or null if it was added. Also null for
+     * unknown fields.
+     */
+    @Nullable
+    public abstract Object getValue1();
+
+    /**
+     * Returns the field's value in the second message, or null if it was deleted. Also null for
+     * unknown fields.
+     */
+    @Nullable
+    public abstract Object getValue2();
+  }
+
+  /**
+   * A message difference reporter that collects the differences as {@link Delta}s, from which a
+   * {@link FieldMask} of the changed fields can be made. Ignored and matched fields are not
+   * collected.
+   *
+   * <p>Like {@link Reporter}, a modified message field is reported after the changes in its
+   * subfields, and both are collected.
+   */
+  public static final class DeltaReporter implements Reporter {
+    private final List<Delta> deltas = Lists.newArrayList();
+
+    @Override
+    public void report(
+        ReportType type,
+        Message message1,
+        Message message2,
+        ImmutableList<SpecificField> fieldPath) {
+      if ((type == ReportType.IGNORED) || (type == ReportType.MATCHED)) {
+        return;
+      }
+      SpecificField specificField = Iterables.getLast(fieldPath);
+      Object value1 = null;
+      Object value2 = null;
+      if (specificField.getField() != null) {
+        if (type != ReportType.ADDED) {
+          value1 = getValue(message1, specificField.getField(), specificField.getIndex());
+        }
+        if (type != ReportType.DELETED) {
+          value2 = getValue(message2, specificField.getField(), specificField.getNewIndex());
+        }
+      }
+      deltas.add(Delta.create(type, fieldPath, value1, value2));
+    }
+
+    private static Object getValue(Message message, FieldDescriptor field, int index) {
+      return field.isRepeated() ? message.getRepeatedField(field, index) : message.getField(field);
+    }
+
+    /** Returns the collected differences, in the order they were reported. */
+    public ImmutableList<Delta> getDeltas() {
+      return ImmutableList.copyOf(deltas);
+    }
+
+    /** Returns whether no differences were collected. */
+    public boolean isEmpty() {
+      return deltas.isEmpty();
+    }
+
+    /**
+     * Returns the smallest {@link FieldMask} that covers all changed fields, with paths in sorted
+     * order.
+     *
+     * <p>Field masks can't refer to elements of repeated fields, so any change in a repeated field
+     * (including moved elements) is covered by the whole field. A modified message field is
+     * covered by its changed subfields. Changes to unknown fields are covered by the message field
+     * that contains them, and can't be covered if they're in the compared messages themselves.
+     */
+    public FieldMask toFieldMask() {
+      TreeSet<String> paths = new TreeSet<>();
+      TreeSet<String> aggregatePaths = new TreeSet<>();
+      for (Delta delta : deltas) {
+        String path = getMaskPath(delta.getFieldPath());
+        if (path.isEmpty()) {
+          continue;
+        }
+        FieldDescriptor field = Iterables.getLast(delta.getFieldPath()).getField();
+        if ((delta.getType() == ReportType.MODIFIED)
+            && (field != null)
+            && !field.isRepeated()
+            && (field.getJavaType() == JavaType.MESSAGE)) {
+          aggregatePaths.add(path);
+        } else {
+          paths.add(path);
+        }
+      }
+      // A modified message field is only needed if a FieldComparator found it different without
+      // comparing its subfields. Nested ones are checked first, as they can be such subfields.
+      for (String aggregatePath : aggregatePaths.descendingSet()) {
+        String prefix = aggregatePath + ".";
+        String next = paths.ceiling(prefix);
+        if ((next == null) || !next.startsWith(prefix)) {
+          paths.add(aggregatePath);
+        }
+      }
+      // Paths are sorted, so paths that are covered by a shorter path come right after it.
+      FieldMask.Builder result = FieldMask.newBuilder();
+      String previous = null;
+      for (String path : paths) {
+        if ((previous != null) && path.startsWith(previous + ".")) {
+          continue;
+        }
+        result.addPaths(path);
+        previous = path;
+      }
+      return result.build();
+    }
+
+    // Returns the field mask path for a field path, which stops at repeated and unknown fields.
+    private static String getMaskPath(ImmutableList<SpecificField> fieldPath) {
+      List<String> names = Lists.newArrayList();
+      for (SpecificField specificField : fieldPath) {
+        FieldDescriptor field = specificField.getField();
+        if (field == null) {
+          break;
+        }
+        names.add(field.getName());
+        if (field.isRepeated()) {
+          break;
+        }
+      }
+      return String.join(".", names);
+    }
+  }
+
   // Wraps a message debug string in curly braces.
   private static String wrapDebugString(String debugString) {
     return debugString.isEmpty() ? "{ }" : ("{ " + debugString + " }");
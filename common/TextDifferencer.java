@@ -16,6 +16,8 @@
 
 package com.google.startupos.common;
 
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.startupos.common.Lists.Segment;
 import com.google.startupos.common.Protos.ChangeType;
@@ -24,10 +26,14 @@ import com.google.startupos.common.Protos.TextDiff;
 import com.google.startupos.common.Protos.WordChange;
 import com.google.startupos.name.fraser.neil.plaintext.DiffMatchPatch;
 import com.google.startupos.name.fraser.neil.plaintext.DiffMatchPatch.Operation;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 import javax.inject.Inject;
 
@@ -38,13 +44,127 @@ public class TextDifferencer {
           ' ', ChangeType.NO_CHANGE,
           '+', ChangeType.ADD,
           '-', ChangeType.DELETE);
+  private static final int DEFAULT_PARALLEL_WORD_DIFF_THRESHOLD = 16 * 1024;
+  private static final Duration DEFAULT_WORD_DIFF_TIMEOUT = Duration.ofSeconds(2);
+  private static final int DEFAULT_MAX_WORD_DIFF_SEGMENT_CHARS = 256 * 1024;
 
+  /** Creates a new builder. */
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /** Builder object for {@link TextDifferencer}. */
+  public static final class Builder {
+    private ForkJoinPool wordDiffPool;
+    private int parallelWordDiffThreshold = DEFAULT_PARALLEL_WORD_DIFF_THRESHOLD;
+    private Duration wordDiffTimeout = DEFAULT_WORD_DIFF_TIMEOUT;
+    private int maxWordDiffSegmentChars = DEFAULT_MAX_WORD_DIFF_SEGMENT_CHARS;
+    private boolean tokenWordDiffs;
+
+    private Builder() {}
+
+    /**
+     * Computes word changes of separate changed segments on `pool`, when there's enough changed
+     * text (see {@link #setParallelWordDiffThreshold}). By default, or if `pool` is null, they're
+     * computed on the calling thread. Results are the same either way.
+     */
+    public Builder setWordDiffPool(ForkJoinPool pool) {
+      wordDiffPool = pool;
+      return this;
+    }
+
+    /**
+     * Sets the number of changed characters, on both sides, from which word changes are computed in
+     * parallel. Smaller diffs aren't worth the overhead.
+     */
+    public Builder setParallelWordDiffThreshold(int threshold) {
+      Preconditions.checkArgument(threshold >= 0, "Threshold must not be negative: %s", threshold);
+      parallelWordDiffThreshold = threshold;
+      return this;
+    }
+
+    /**
+     * Sets the time budget for word changes of one call to {@link #getTextDiff}, for all its
+     * segments together. Segments that aren't diffed by then only have line changes. Zero or
+     * negative means no limit.
+     */
+    public Builder setWordDiffTimeout(Duration timeout) {
+      wordDiffTimeout = Preconditions.checkNotNull(timeout);
+      return this;
+    }
+
+    /**
+     * Sets the maximal number of characters, on both sides, of a changed segment to find word
+     * changes in. Larger segments (e.g long generated lines) only have line changes. Zero or
+     * negative means no limit.
+     */
+    public Builder setMaxWordDiffSegmentChars(int maxChars) {
+      maxWordDiffSegmentChars = maxChars;
+      return this;
+    }
+
+    /**
+     * Finds word changes token by token (identifiers, whitespace and punctuation), instead of
+     * character by character. This is faster for source code, and word changes don't start or end
+     * in the middle of an identifier. Off by default.
+     */
+    public Builder setTokenWordDiffs(boolean tokenWordDiffs) {
+      this.tokenWordDiffs = tokenWordDiffs;
+      return this;
+    }
+
+    /** Creates a new immutable differencer instance from this builder. */
+    public TextDifferencer build() {
+      return new TextDifferencer(this);
+    }
+  }
+
+  private final ForkJoinPool wordDiffPool;
+  private final int parallelWordDiffThreshold;
+  private final long wordDiffTimeoutMillis;
+  private final int maxWordDiffSegmentChars;
+  private final boolean tokenWordDiffs;
+
+  // Number of segments that only have line changes, because they were too large or timed out.
+  private final AtomicLong oversizedSegments = new AtomicLong();
+  private final AtomicLong timedOutSegments = new AtomicLong();
+
+  /** Creates a differencer with default settings, that computes word changes sequentially. */
   @Inject
-  public TextDifferencer() {}
+  public TextDifferencer() {
+    this(newBuilder());
+  }
 
+  private TextDifferencer(Builder builder) {
+    wordDiffPool = builder.wordDiffPool;
+    parallelWordDiffThreshold = builder.parallelWordDiffThreshold;
+    wordDiffTimeoutMillis = builder.wordDiffTimeout.toMillis();
+    maxWordDiffSegmentChars = builder.maxWordDiffSegmentChars;
+    tokenWordDiffs = builder.tokenWordDiffs;
+  }
+
+  /** Returns the number of segments that had no word changes because they were too large. */
+  public long getOversizedSegments() {
+    return oversizedSegments.get();
+  }
+
+  /** Returns the number of segments that had no word changes because they timed out. */
+  public long getTimedOutSegments() {
+    return timedOutSegments.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "TextDifferencer oversized segments: %d, timed out segments: %d",
+        getOversizedSegments(), getTimedOutSegments());
+  }
+
+  // DiffLines are kept as builders until the end, so that each one is built once, after its word
+  // changes are added.
   private void fillPlaceholderGap(
-      List<DiffLine> leftLines,
-      List<DiffLine> rightLines,
+      List<DiffLine.Builder> leftLines,
+      List<DiffLine.Builder> rightLines,
       int leftDiffLineNumber,
       int rightDiffLineNumber) {
     // Add left placeholders:
@@ -52,8 +172,7 @@ public class TextDifferencer {
       leftLines.add(
           DiffLine.newBuilder()
               .setType(ChangeType.LINE_PLACEHOLDER)
-              .setDiffLineNumber(leftDiffLineNumber)
-              .build());
+              .setDiffLineNumber(leftDiffLineNumber));
       leftDiffLineNumber++;
     }
     // Add right placeholders:
@@ -61,51 +180,132 @@ public class TextDifferencer {
       rightLines.add(
           DiffLine.newBuilder()
               .setType(ChangeType.LINE_PLACEHOLDER)
-              .setDiffLineNumber(rightDiffLineNumber)
-              .build());
+              .setDiffLineNumber(rightDiffLineNumber));
       rightDiffLineNumber++;
     }
   }
 
-  private int getLeftStartLine(String hunkHeader) {
-    // Examples of diff hunk headers:
-    // @@ -1 +1 @@
-    // @@ -5,83 +5,83 @@
-    // @@ -0,0 +1,10 @@ (for new file)
+  // Examples of diff hunk headers:
+  // @@ -1 +1 @@
+  // @@ -5,83 +5,83 @@
+  // @@ -0,0 +1,10 @@ (for new file)
+  // Returns the 0-based start line after `sign` ('-' for left, '+' for right) in the header that
+  // ends at `headerEnd`.
+  private int getStartLine(CharSequence diffString, int headerEnd, char sign) {
+    int index = 0;
+    while (index < headerEnd && diffString.charAt(index) != sign) {
+      index++;
+    }
+    index++;
+    int result = 0;
+    while (index < headerEnd && Character.isDigit(diffString.charAt(index))) {
+      result = result * 10 + (diffString.charAt(index) - '0');
+      index++;
+    }
     // Remove 1 to be 0-based, so we subtract 1
     // It shouldn't be negative, although for some reason it is, so we truncate at 0.
-    return Math.max(Integer.parseInt(hunkHeader.split(" ")[1].substring(1).split(",")[0]) - 1, 0);
+    return Math.max(result - 1, 0);
   }
 
-  private int getRightStartLine(String hunkHeader) {
-    return Math.max(Integer.parseInt(hunkHeader.split(" ")[2].substring(1).split(",")[0]) - 1, 0);
+  /**
+   * Returns the diff between `leftText` and `rightText`. Lines are diffed in-process, with the same
+   * algorithm as `git diff`.
+   */
+  public TextDiff getTextDiff(String leftText, String rightText) {
+    TextDiff.Builder result =
+        TextDiff.newBuilder().setLeftFileContents(leftText).setRightFileContents(rightText);
+    LineDiff lineDiff = LineDiff.compute(leftText, rightText);
+    if (lineDiff.isEmpty()) {
+      return result.build();
+    }
+    List<DiffLine.Builder> leftLines = new ArrayList<>();
+    List<DiffLine.Builder> rightLines = new ArrayList<>();
+    int leftCodeLineNumber = 0;
+    int leftDiffLineNumber = 0;
+    int rightCodeLineNumber = 0;
+    int rightDiffLineNumber = 0;
+    // Same as parsing a diff of the whole file, where all unchanged lines are context lines.
+    while (leftCodeLineNumber < lineDiff.leftLines.length
+        || rightCodeLineNumber < lineDiff.rightLines.length) {
+      if (leftCodeLineNumber < lineDiff.leftLines.length
+          && lineDiff.isDeleted(leftCodeLineNumber)) {
+        leftLines.add(
+            DiffLine.newBuilder()
+                .setText(lineDiff.leftLines[leftCodeLineNumber])
+                .setType(ChangeType.DELETE)
+                .setCodeLineNumber(leftCodeLineNumber)
+                .setDiffLineNumber(leftDiffLineNumber));
+        leftCodeLineNumber++;
+        leftDiffLineNumber++;
+      } else if (rightCodeLineNumber < lineDiff.rightLines.length
+          && lineDiff.isAdded(rightCodeLineNumber)) {
+        rightLines.add(
+            DiffLine.newBuilder()
+                .setText(lineDiff.rightLines[rightCodeLineNumber])
+                .setType(ChangeType.ADD)
+                .setCodeLineNumber(rightCodeLineNumber)
+                .setDiffLineNumber(rightDiffLineNumber));
+        rightCodeLineNumber++;
+        rightDiffLineNumber++;
+      } else {
+        // An unchanged line on both sides
+        fillPlaceholderGap(leftLines, rightLines, leftDiffLineNumber, rightDiffLineNumber);
+        leftDiffLineNumber = Math.max(leftDiffLineNumber, rightDiffLineNumber);
+        rightDiffLineNumber = leftDiffLineNumber;
+        leftCodeLineNumber++;
+        rightCodeLineNumber++;
+        leftDiffLineNumber++;
+        rightDiffLineNumber++;
+      }
+    }
+    fillPlaceholderGap(leftLines, rightLines, leftDiffLineNumber, rightDiffLineNumber);
+    return buildTextDiff(result, leftLines, rightLines);
   }
 
-  public TextDiff getTextDiff(String leftText, String rightText, String diffString) {
+  /**
+   * Returns the diff between `leftText` and `rightText`, given their unified diff `diffString` (e.g
+   * from `git diff`), without the file headers.
+   *
+   * <p>The diff is read in place, line by line, without splitting it. Only the text of changed
+   * lines is copied, since unchanged lines aren't part of the result.
+   */
+  public TextDiff getTextDiff(String leftText, String rightText, CharSequence diffString) {
     TextDiff.Builder result =
         TextDiff.newBuilder().setLeftFileContents(leftText).setRightFileContents(rightText);
-    if (diffString.isEmpty()) {
+    if (diffString.length() == 0) {
       return result.build();
     }
-    String[] diffLines = diffString.split("\n");
-    List<DiffLine> leftLines = new ArrayList();
-    List<DiffLine> rightLines = new ArrayList();
-    int leftCodeLineNumber = getLeftStartLine(diffLines[0]);
+    List<DiffLine.Builder> leftLines = new ArrayList<>();
+    List<DiffLine.Builder> rightLines = new ArrayList<>();
+    int lineEnd = indexOfNewline(diffString, 0);
+    int leftCodeLineNumber = getStartLine(diffString, lineEnd, '-');
     int leftDiffLineNumber = leftCodeLineNumber;
-    int rightCodeLineNumber = getRightStartLine(diffLines[0]);
+    int rightCodeLineNumber = getStartLine(diffString, lineEnd, '+');
     int rightDiffLineNumber = rightCodeLineNumber;
-    for (int diffIndex = 1; diffIndex < diffLines.length; diffIndex++) {
-      if (diffLines[diffIndex].charAt(0) == '\\') {
+    int diffIndex = 0;
+    for (int lineStart = lineEnd + 1; lineStart < diffString.length(); lineStart = lineEnd + 1) {
+      diffIndex++;
+      lineEnd = indexOfNewline(diffString, lineStart);
+      if (lineEnd == lineStart) {
+        // An empty line. Only trailing empty lines are ignored, like String.split().
+        if (isBlankUntilEnd(diffString, lineStart)) {
+          break;
+        }
+        throw new IllegalStateException(
+            "Diff line " + diffIndex + " is empty\nFor diffString:\n" + diffString);
+      }
+      char firstChar = diffString.charAt(lineStart);
+      if (firstChar == '\\') {
         // This is not a real code line, probably "\ No newline at end of file".
         continue;
       }
-      ChangeType type = CHANGE_TYPE_MAP.get(diffLines[diffIndex].charAt(0));
+      ChangeType type = CHANGE_TYPE_MAP.get(firstChar);
       if (type == null) {
         throw new IllegalStateException(
             "Diff line "
                 + diffIndex
                 + " does not start with a diff character (+- ):\n"
-                + diffLines[diffIndex]
+                + diffString.subSequence(lineStart, lineEnd)
                 + "\nFor diffString:\n"
                 + diffString);
       }
@@ -123,16 +323,15 @@ public class TextDifferencer {
         rightDiffLineNumber++;
         continue;
       }
-      String text = diffLines[diffIndex].substring(1);
+      String text = diffString.subSequence(lineStart + 1, lineEnd).toString();
       int codeLineNumber = type == ChangeType.DELETE ? leftCodeLineNumber : rightCodeLineNumber;
       int diffLineNumber = type == ChangeType.DELETE ? leftDiffLineNumber : rightDiffLineNumber;
-      DiffLine diffLine =
+      DiffLine.Builder diffLine =
           DiffLine.newBuilder()
               .setText(text)
               .setType(type)
               .setCodeLineNumber(codeLineNumber)
-              .setDiffLineNumber(diffLineNumber)
-              .build();
+              .setDiffLineNumber(diffLineNumber);
       if (type == ChangeType.DELETE) {
         leftLines.add(diffLine);
         leftCodeLineNumber++;
@@ -145,40 +344,139 @@ public class TextDifferencer {
     }
     // Fill any last section:
     fillPlaceholderGap(leftLines, rightLines, leftDiffLineNumber, rightDiffLineNumber);
+    return buildTextDiff(result, leftLines, rightLines);
+  }
+
+  // Returns the index of the next "\n" from `start`, or the length if there is none.
+  private static int indexOfNewline(CharSequence text, int start) {
+    int index = start;
+    while (index < text.length() && text.charAt(index) != '\n') {
+      index++;
+    }
+    return index;
+  }
+
+  private static boolean isBlankUntilEnd(CharSequence text, int start) {
+    for (int i = start; i < text.length(); i++) {
+      if (text.charAt(i) != '\n') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private TextDiff buildTextDiff(
+      TextDiff.Builder result,
+      List<DiffLine.Builder> leftLines,
+      List<DiffLine.Builder> rightLines) {
     addWordChanges(leftLines, rightLines);
-    result.addAllLeftDiffLine(leftLines);
-    result.addAllRightDiffLine(rightLines);
-    TextDiff textDiff = result.build();
-    return textDiff;
+    for (DiffLine.Builder line : leftLines) {
+      result.addLeftDiffLine(line);
+    }
+    for (DiffLine.Builder line : rightLines) {
+      result.addRightDiffLine(line);
+    }
+    return result.build();
   }
 
-  private void addWordChanges(List<DiffLine> leftLines, List<DiffLine> rightLines) {
+  private void addWordChanges(List<DiffLine.Builder> leftLines, List<DiffLine.Builder> rightLines) {
     List<Integer> diffLineNumbers =
-        leftLines.stream().map(DiffLine::getDiffLineNumber).collect(Collectors.toList());
-    for (Segment segment : Lists.splitToSegments(diffLineNumbers)) {
-      addWordChanges(leftLines, rightLines, segment.startIndex(), segment.endIndex());
+        leftLines.stream().map(DiffLine.Builder::getDiffLineNumber).collect(Collectors.toList());
+    ImmutableList<Segment> segments = Lists.splitToSegments(diffLineNumbers);
+    List<String> leftTexts = new ArrayList<>(segments.size());
+    List<String> rightTexts = new ArrayList<>(segments.size());
+    long changedChars = 0;
+    for (Segment segment : segments) {
+      leftTexts.add(getMultilineText(leftLines, segment.startIndex(), segment.endIndex()));
+      rightTexts.add(getMultilineText(rightLines, segment.startIndex(), segment.endIndex()));
+      changedChars += leftTexts.get(leftTexts.size() - 1).length();
+      changedChars += rightTexts.get(rightTexts.size() - 1).length();
+    }
+    long deadline =
+        wordDiffTimeoutMillis > 0
+            ? System.currentTimeMillis() + wordDiffTimeoutMillis
+            : Long.MAX_VALUE;
+    if (wordDiffPool == null || segments.size() < 2 || changedChars < parallelWordDiffThreshold) {
+      for (int i = 0; i < segments.size(); i++) {
+        addWordChanges(
+            leftLines,
+            rightLines,
+            segments.get(i).startIndex(),
+            getWordDiffs(leftTexts.get(i), rightTexts.get(i), deadline));
+      }
+      return;
+    }
+    // Segments are independent, so their diffs are computed in parallel. Word changes are then
+    // added in segment order, so the result is the same as when computed sequentially.
+    List<ForkJoinTask<List<DiffMatchPatch.Diff>>> tasks = new ArrayList<>(segments.size());
+    for (int i = 0; i < segments.size(); i++) {
+      String leftText = leftTexts.get(i);
+      String rightText = rightTexts.get(i);
+      tasks.add(wordDiffPool.submit(() -> getWordDiffs(leftText, rightText, deadline)));
+    }
+    for (int i = 0; i < segments.size(); i++) {
+      addWordChanges(leftLines, rightLines, segments.get(i).startIndex(), tasks.get(i).join());
     }
   }
 
-  // Adds WordChanges, from segmentStart until segmentEnd (inclusive).
-  private void addWordChanges(
-      List<DiffLine> leftLines, List<DiffLine> rightLines, int segmentStart, int segmentEnd) {
+  // Returns the word diffs of a segment, or an empty list if it's over budget, so that it only has
+  // line changes.
+  private List<DiffMatchPatch.Diff> getWordDiffs(String leftText, String rightText, long deadline) {
+    if (maxWordDiffSegmentChars > 0
+        && leftText.length() + rightText.length() > maxWordDiffSegmentChars) {
+      oversizedSegments.incrementAndGet();
+      return ImmutableList.of();
+    }
+    long timeLeft = deadline - System.currentTimeMillis();
+    if (timeLeft <= 0) {
+      timedOutSegments.incrementAndGet();
+      return ImmutableList.of();
+    }
     DiffMatchPatch diffMatchPatch = new DiffMatchPatch();
+    diffMatchPatch.Diff_Timeout = deadline == Long.MAX_VALUE ? 0 : timeLeft / 1000f;
+    diffMatchPatch.Diff_UseArrays = true;
     LinkedList<DiffMatchPatch.Diff> diffs =
-        diffMatchPatch.diff_main(
-            getMultilineText(leftLines, segmentStart, segmentEnd),
-            getMultilineText(rightLines, segmentStart, segmentEnd));
+        tokenWordDiffs
+            ? diffMatchPatch.diff_mainTokens(leftText, rightText)
+            : diffMatchPatch.diff_main(leftText, rightText);
+    if (System.currentTimeMillis() > deadline) {
+      // DiffMatchPatch gave up on part of the segment, so its diffs are coarse.
+      timedOutSegments.incrementAndGet();
+      return ImmutableList.of();
+    }
     diffMatchPatch.diff_cleanupSemantic(diffs);
+    return diffs;
+  }
 
+  // Adds WordChanges from the diffs of a segment starting at segmentStart.
+  private void addWordChanges(
+      List<DiffLine.Builder> leftLines,
+      List<DiffLine.Builder> rightLines,
+      int segmentStart,
+      List<DiffMatchPatch.Diff> diffs) {
     // Split multi-lines
     int leftLineCounter = 0;
     int rightLineCounter = 0;
     int leftCharCounter = 0;
     int rightCharCounter = 0;
     for (DiffMatchPatch.Diff diff : diffs) {
-      String[] diffLines = diff.text.split("\n");
+      String text = diff.text;
       ChangeType type = getChangeType(diff.operation);
-      for (int i = 0; i < diffLines.length; i++) {
+      // Lines of the diff are walked like String.split("\n") would return them, which drops
+      // trailing empty lines.
+      int textEnd = text.length();
+      while (textEnd > 0 && text.charAt(textEnd - 1) == '\n') {
+        textEnd--;
+      }
+      if (textEnd == 0 && !text.isEmpty()) {
+        continue;
+      }
+      int lineStart = 0;
+      for (int i = 0; lineStart <= textEnd; i++) {
+        int lineEnd = text.indexOf('\n', lineStart);
+        if (lineEnd == -1 || lineEnd > textEnd) {
+          lineEnd = textEnd;
+        }
         if (i > 0) { // This means we had a newline
           leftCharCounter = 0;
           rightCharCounter = 0;
@@ -189,47 +487,55 @@ public class TextDifferencer {
             rightLineCounter++;
           }
         }
-        String line = diffLines[i];
-        int charCounter = type == ChangeType.DELETE ? leftCharCounter : rightCharCounter;
-        WordChange wordChange =
-            WordChange.newBuilder()
-                .setText(line)
-                .setStartIndex(charCounter)
-                .setEndIndex(charCounter + line.length())
-                .setType(type)
-                .build();
+        int lineLength = lineEnd - lineStart;
         if (type == ChangeType.DELETE) {
-          int index = segmentStart + leftLineCounter;
-          if (!wordChangeIsWholeLine(leftLines.get(index), wordChange)) {
-            leftLines.set(
-                index, leftLines.get(index).toBuilder().addWordChange(wordChange).build());
-          }
+          addWordChange(
+              leftLines.get(segmentStart + leftLineCounter),
+              text,
+              lineStart,
+              lineEnd,
+              leftCharCounter,
+              type);
         } else if (type == ChangeType.ADD) {
-          int index = segmentStart + rightLineCounter;
-          if (!wordChangeIsWholeLine(rightLines.get(index), wordChange)) {
-            rightLines.set(
-                index, rightLines.get(index).toBuilder().addWordChange(wordChange).build());
-          }
+          addWordChange(
+              rightLines.get(segmentStart + rightLineCounter),
+              text,
+              lineStart,
+              lineEnd,
+              rightCharCounter,
+              type);
         }
         if (type == ChangeType.DELETE || type == ChangeType.NO_CHANGE) {
-          leftCharCounter += line.length();
+          leftCharCounter += lineLength;
         }
         if (type == ChangeType.ADD || type == ChangeType.NO_CHANGE) {
-          rightCharCounter += line.length();
+          rightCharCounter += lineLength;
         }
+        lineStart = lineEnd + 1;
       }
     }
   }
 
-  private boolean wordChangeIsWholeLine(DiffLine line, WordChange word) {
-    return line.getText().equals(word.getText());
+  // Adds text[start, end) as a WordChange at `charCounter` in `line`, unless it's the whole line.
+  private void addWordChange(
+      DiffLine.Builder line, String text, int start, int end, int charCounter, ChangeType type) {
+    String lineText = line.getText();
+    if (lineText.length() == end - start && lineText.regionMatches(0, text, start, end - start)) {
+      return;
+    }
+    line.addWordChange(
+        WordChange.newBuilder()
+            .setText(text.substring(start, end))
+            .setStartIndex(charCounter)
+            .setEndIndex(charCounter + end - start)
+            .setType(type));
   }
 
   // endIndex is inclusive - i.e, diffLines at endIndex are used.
-  private String getMultilineText(List<DiffLine> diffLines, int startIndex, int endIndex) {
+  private String getMultilineText(List<DiffLine.Builder> diffLines, int startIndex, int endIndex) {
     StringBuilder result = new StringBuilder();
     for (int i = startIndex; i < endIndex; i++) {
-      result.append(diffLines.get(i).getText() + "\n");
+      result.append(diffLines.get(i).getText()).append('\n');
     }
     // Last one without newline
     result.append(diffLines.get(endIndex).getText());
@@ -248,4 +554,3 @@ public class TextDifferencer {
     }
   }
 }
-
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2018 The StartupOS Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.startupos.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.inject.Inject;
+
+/**
+ * Three-way text merger, for merging 2 versions of a text that were changed from the same base.
+ *
+ * <p>Both versions are line-diffed against the base in-process (see {@link LineDiff}). Changes to
+ * separate parts of the base are combined. Like `git merge-file`, changes to overlapping or
+ * adjacent lines are a conflict, unless both versions changed them the same way.
+ */
+public class TextMerger {
+  @Inject
+  public TextMerger() {}
+
+  // A changed range of base lines, [baseStart, baseEnd), and the lines that replaced it in a
+  // version, [start, end).
+  private static class Hunk {
+    private final int baseStart;
+    private final int baseEnd;
+    private final int start;
+    private final int end;
+    private final boolean ours;
+
+    Hunk(int baseStart, int baseEnd, int start, int end, boolean ours) {
+      this.baseStart = baseStart;
+      this.baseEnd = baseEnd;
+      this.start = start;
+      this.end = end;
+      this.ours = ours;
+    }
+  }
+
+  /**
+   * Returns `ours` and `theirs` merged, given that both were changed from `base`. Returns null if
+   * they have conflicting changes.
+   */
+  public String merge(String base, String ours, String theirs) {
+    if (ours.equals(theirs) || theirs.equals(base)) {
+      return ours;
+    }
+    if (ours.equals(base)) {
+      return theirs;
+    }
+    String[] baseLines = getLines(base);
+    String[] ourLines = getLines(ours);
+    String[] theirLines = getLines(theirs);
+    List<Hunk> hunks = new ArrayList<>();
+    addHunks(hunks, LineDiff.compute(base, ours), true);
+    addHunks(hunks, LineDiff.compute(base, theirs), false);
+    hunks.sort((hunk1, hunk2) -> Integer.compare(hunk1.baseStart, hunk2.baseStart));
+
+    StringBuilder result = new StringBuilder();
+    int baseIndex = 0;
+    int hunkIndex = 0;
+    while (hunkIndex < hunks.size()) {
+      // Find a region of the base that's changed by overlapping or adjacent hunks.
+      int regionStart = hunks.get(hunkIndex).baseStart;
+      int regionEnd = hunks.get(hunkIndex).baseEnd;
+      Hunk firstOurs = null;
+      Hunk lastOurs = null;
+      Hunk firstTheirs = null;
+      Hunk lastTheirs = null;
+      while (hunkIndex < hunks.size() && hunks.get(hunkIndex).baseStart <= regionEnd) {
+        Hunk hunk = hunks.get(hunkIndex);
+        regionEnd = Math.max(regionEnd, hunk.baseEnd);
+        if (hunk.ours) {
+          firstOurs = firstOurs == null ? hunk : firstOurs;
+          lastOurs = hunk;
+        } else {
+          firstTheirs = firstTheirs == null ? hunk : firstTheirs;
+          lastTheirs = hunk;
+        }
+        hunkIndex++;
+      }
+      append(result, baseLines, baseIndex, regionStart);
+      if (firstTheirs == null) {
+        appendVersion(result, ourLines, firstOurs, lastOurs, regionStart, regionEnd);
+      } else if (firstOurs == null) {
+        appendVersion(result, theirLines, firstTheirs, lastTheirs, regionStart, regionEnd);
+      } else {
+        // Both changed the region, which is only fine if they changed it the same way.
+        int ourStart = firstOurs.start - (firstOurs.baseStart - regionStart);
+        int ourEnd = lastOurs.end + (regionEnd - lastOurs.baseEnd);
+        int theirStart = firstTheirs.start - (firstTheirs.baseStart - regionStart);
+        int theirEnd = lastTheirs.end + (regionEnd - lastTheirs.baseEnd);
+        if (!Arrays.equals(
+            Arrays.copyOfRange(ourLines, ourStart, ourEnd),
+            Arrays.copyOfRange(theirLines, theirStart, theirEnd))) {
+          return null;
+        }
+        append(result, ourLines, ourStart, ourEnd);
+      }
+      baseIndex = regionEnd;
+    }
+    append(result, baseLines, baseIndex, baseLines.length);
+    return result.toString();
+  }
+
+  // Adds the changed ranges of `lineDiff`, from the base (left) to a version (right).
+  private static void addHunks(List<Hunk> hunks, LineDiff lineDiff, boolean ours) {
+    int baseIndex = 0;
+    int index = 0;
+    while (baseIndex < lineDiff.leftLines.length || index < lineDiff.rightLines.length) {
+      int baseStart = baseIndex;
+      int start = index;
+      while (baseIndex < lineDiff.leftLines.length && lineDiff.isDeleted(baseIndex)) {
+        baseIndex++;
+      }
+      while (index < lineDiff.rightLines.length && lineDiff.isAdded(index)) {
+        index++;
+      }
+      if (baseIndex != baseStart || index != start) {
+        hunks.add(new Hunk(baseStart, baseIndex, start, index, ours));
+      } else {
+        // An unchanged line on both sides
+        baseIndex++;
+        index++;
+      }
+    }
+  }
+
+  // Appends the lines of a version for the base region [regionStart, regionEnd), which is changed
+  // by the version's hunks from `first` to `last`. Lines around them are unchanged from the base.
+  private static void appendVersion(
+      StringBuilder result, String[] lines, Hunk first, Hunk last, int regionStart, int regionEnd) {
+    append(
+        result,
+        lines,
+        first.start - (first.baseStart - regionStart),
+        last.end + (regionEnd - last.baseEnd));
+  }
+
+  private static void append(StringBuilder result, String[] lines, int start, int end) {
+    for (int i = start; i < end; i++) {
+      result.append(lines[i]);
+    }
+  }
+
+  // Splits to lines that keep their newline, so that a last line without one stays that way.
+  private static String[] getLines(String text) {
+    List<String> result = new ArrayList<>();
+    int start = 0;
+    while (start < text.length()) {
+      int end = text.indexOf('\n', start);
+      end = end == -1 ? text.length() : end + 1;
+      result.add(text.substring(start, end));
+      start = end;
+    }
+    return result.toArray(new String[0]);
+  }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2018 The StartupOS Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.startupos.common.benchmarks;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.util.JsonFormat;
+import com.google.startupos.common.CommonModule;
+import com.google.startupos.common.FileUtils;
+import com.google.startupos.common.Lists;
+import com.google.startupos.common.Protos.DiffLine;
+import com.google.startupos.common.Protos.TextDiff;
+import com.google.startupos.common.TextDifferencer;
+import com.google.startupos.common.benchmarks.Protos.BenchmarkResult;
+import com.google.startupos.common.benchmarks.Protos.BenchmarkRun;
+import com.google.startupos.common.flags.Flag;
+import com.google.startupos.common.flags.FlagDesc;
+import com.google.startupos.common.flags.Flags;
+import com.google.startupos.common.repo.GitRepo;
+import com.google.startupos.name.fraser.neil.plaintext.DiffMatchPatch;
+import dagger.Component;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Benchmarks for the diff engines, on a generated corpus of file pairs. Results are printed as
+ * JSON, so that runs can be compared over time.
+ */
+@Singleton
+public class DiffBenchmark {
+  @FlagDesc(name = "iterations", description = "Measured iterations of each benchmark")
+  public static Flag<Integer> iterations = Flag.create(10);
+
+  @FlagDesc(name = "warmup_iterations", description = "Unmeasured iterations of each benchmark")
+  public static Flag<Integer> warmupIterations = Flag.create(3);
+
+  @FlagDesc(
+      name = "filter",
+      description = "Regex for benchmark/case names to run, e.g 'text_differencer/.*'")
+  public static Flag<String> filter = Flag.create(".*");
+
+  @FlagDesc(name = "output_file", description = "File to write JSON results to, instead of stdout")
+  public static Flag<String> outputFile = Flag.create("");
+
+  private static final String[] WORDS = {
+    "int", "value", "result", "compute", "diffLine", "textDiff", "return", "this", "builder", "i"
+  };
+
+  private interface Benchmark {
+    // Returns something computed from the result. It's added to the result's checksum, so the work
+    // isn't optimized away.
+    int run(FilePair pair) throws IOException;
+  }
+
+  private static class FilePair {
+    private final String name;
+    private final String left;
+    private final String right;
+    private String leftPath;
+    private String rightPath;
+    private String diffString;
+    private List<Integer> diffLineNumbers;
+
+    FilePair(String name, String left, String right) {
+      this.name = name;
+      this.left = left;
+      this.right = right;
+    }
+  }
+
+  private final FileUtils fileUtils;
+  private final TextDifferencer textDifferencer;
+
+  @Inject
+  DiffBenchmark(FileUtils fileUtils, TextDifferencer textDifferencer) {
+    this.fileUtils = fileUtils;
+    this.textDifferencer = textDifferencer;
+  }
+
+  void run() throws IOException {
+    BenchmarkRun.Builder run =
+        BenchmarkRun.newBuilder()
+            .setTimestampMs(System.currentTimeMillis())
+            .setJavaVersion(System.getProperty("java.version"))
+            .setAvailableProcessors(Runtime.getRuntime().availableProcessors())
+            .setWarmupIterations(warmupIterations.get())
+            .setIterations(iterations.get());
+    String corpusFolder = Files.createTempDirectory("diff_benchmark").toAbsolutePath().toString();
+    for (FilePair pair : createCorpus()) {
+      prepare(pair, corpusFolder);
+      measure(
+          run,
+          "text_differencer",
+          pair,
+          p -> getSize(textDifferencer.getTextDiff(p.left, p.right)));
+      measure(
+          run,
+          "text_differencer_git_diff_string",
+          pair,
+          p -> getSize(textDifferencer.getTextDiff(p.left, p.right, p.diffString)));
+      measure(run, "diff_match_patch", pair, p -> runDiffMatchPatch(p, false));
+      measure(run, "diff_match_patch_arrays", pair, p -> runDiffMatchPatch(p, true));
+      measure(run, "split_to_segments", pair, p -> Lists.splitToSegments(p.diffLineNumbers).size());
+      measure(
+          run,
+          "git_repo_get_text_diff",
+          pair,
+          p -> GitRepo.getTextDiff(p.leftPath, p.rightPath).length());
+    }
+    fileUtils.deleteFileOrDirectoryIfExistsUnchecked(corpusFolder);
+    String json = JsonFormat.printer().print(run);
+    if (outputFile.get().isEmpty()) {
+      System.out.println(json);
+    } else {
+      fileUtils.writeString(json, outputFile.get());
+    }
+  }
+
+  private static int runDiffMatchPatch(FilePair pair, boolean useArrays) {
+    DiffMatchPatch diffMatchPatch = new DiffMatchPatch();
+    diffMatchPatch.Diff_UseArrays = useArrays;
+    LinkedList<DiffMatchPatch.Diff> diffs = diffMatchPatch.diff_main(pair.left, pair.right);
+    diffMatchPatch.diff_cleanupSemantic(diffs);
+    return diffs.size();
+  }
+
+  private static int getSize(TextDiff textDiff) {
+    return textDiff.getLeftDiffLineCount() + textDiff.getRightDiffLineCount();
+  }
+
+  // Writes the pair to files for git, and computes inputs of the benchmarks that need them.
+  private void prepare(FilePair pair, String corpusFolder) throws IOException {
+    pair.leftPath = fileUtils.joinToAbsolutePath(corpusFolder, pair.name + "_left.txt");
+    pair.rightPath = fileUtils.joinToAbsolutePath(corpusFolder, pair.name + "_right.txt");
+    fileUtils.writeString(pair.left, pair.leftPath);
+    fileUtils.writeString(pair.right, pair.rightPath);
+    pair.diffString = GitRepo.getTextDiff(pair.leftPath, pair.rightPath);
+    pair.diffLineNumbers =
+        textDifferencer
+            .getTextDiff(pair.left, pair.right)
+            .getLeftDiffLineList()
+            .stream()
+            .map(DiffLine::getDiffLineNumber)
+            .collect(Collectors.toList());
+  }
+
+  private void measure(BenchmarkRun.Builder run, String name, FilePair pair, Benchmark benchmark)
+      throws IOException {
+    if (!Pattern.matches(filter.get(), name + "/" + pair.name)) {
+      return;
+    }
+    long checksum = 0;
+    for (int i = 0; i < warmupIterations.get(); i++) {
+      checksum += benchmark.run(pair);
+    }
+    double totalMs = 0;
+    double minMs = Double.MAX_VALUE;
+    double maxMs = 0;
+    for (int i = 0; i < iterations.get(); i++) {
+      long start = System.nanoTime();
+      checksum += benchmark.run(pair);
+      double ms = (System.nanoTime() - start) / 1e6;
+      totalMs += ms;
+      minMs = Math.min(minMs, ms);
+      maxMs = Math.max(maxMs, ms);
+    }
+    run.addResult(
+        BenchmarkResult.newBuilder()
+            .setBenchmark(name)
+            .setCorpusCase(pair.name)
+            .setLeftChars(pair.left.length())
+            .setRightChars(pair.right.length())
+            .setMeanMs(iterations.get() > 0 ? totalMs / iterations.get() : 0)
+            .setMinMs(iterations.get() > 0 ? minMs : 0)
+            .setMaxMs(maxMs)
+            .setChecksum(checksum));
+  }
+
+  // The corpus is generated from fixed seeds, so it's the same in every run.
+  private static ImmutableList<FilePair> createCorpus() {
+    ImmutableList.Builder<FilePair> result = ImmutableList.builder();
+    result.add(createEditedPair("small", 1, 50, 5));
+    result.add(createEditedPair("medium", 2, 2000, 100));
+    result.add(createEditedPair("huge", 3, 50000, 2000));
+
+    // Minified: a whole file on a single line.
+    FilePair medium = createEditedPair("minified", 4, 2000, 100);
+    result.add(
+        new FilePair(
+            "minified",
+            medium.left.replaceAll("\n\\s*", " ") + "\n",
+            medium.right.replaceAll("\n\\s*", " ") + "\n"));
+
+    // Long lines: few lines that are each thousands of characters long.
+    Random random = new Random(5);
+    List<String> longLines = new ArrayList<>();
+    for (int i = 0; i < 300; i++) {
+      StringBuilder line = new StringBuilder();
+      while (line.length() < 3000) {
+        line.append(createLine(random)).append(' ');
+      }
+      longLines.add(line.toString());
+    }
+    result.add(
+        new FilePair("long_lines", joinLines(longLines), joinLines(edit(random, longLines, 30))));
+
+    // Whitespace only: the same code, with some lines reindented.
+    List<String> lines = createLines(new Random(6), 2000);
+    List<String> reindented = new ArrayList<>();
+    for (int i = 0; i < lines.size(); i++) {
+      reindented.add(i % 3 == 0 ? "  " + lines.get(i) : lines.get(i));
+    }
+    result.add(new FilePair("whitespace_only", joinLines(lines), joinLines(reindented)));
+    return result.build();
+  }
+
+  private static FilePair createEditedPair(String name, int seed, int lineCount, int editCount) {
+    Random random = new Random(seed);
+    List<String> lines = createLines(random, lineCount);
+    return new FilePair(name, joinLines(lines), joinLines(edit(random, lines, editCount)));
+  }
+
+  private static List<String> createLines(Random random, int lineCount) {
+    List<String> result = new ArrayList<>();
+    for (int i = 0; i < lineCount; i++) {
+      result.add(Strings.repeat("  ", random.nextInt(4)) + createLine(random));
+    }
+    return result;
+  }
+
+  // Returns a line that looks like source code.
+  private static String createLine(Random random) {
+    switch (random.nextInt(4)) {
+      case 0:
+        return String.format(
+            "int %s%d = %s(%s, %d);",
+            WORDS[random.nextInt(WORDS.length)],
+            random.nextInt(100),
+            WORDS[random.nextInt(WORDS.length)],
+            WORDS[random.nextInt(WORDS.length)],
+            random.nextInt(1000));
+      case 1:
+        return String.format(
+            "if (%s.%s() > %d) {",
+            WORDS[random.nextInt(WORDS.length)],
+            WORDS[random.nextInt(WORDS.length)],
+            random.nextInt(10));
+      case 2:
+        return "}";
+      default:
+        return String.format(
+            "// %s %s %s",
+            WORDS[random.nextInt(WORDS.length)],
+            WORDS[random.nextInt(WORDS.length)],
+            WORDS[random.nextInt(WORDS.length)]);
+    }
+  }
+
+  // Returns a copy of `lines` with `editCount` random lines changed, added or deleted.
+  private static List<String> edit(Random random, List<String> lines, int editCount) {
+    List<String> result = new ArrayList<>(lines);
+    for (int i = 0; i < editCount && !result.isEmpty(); i++) {
+      int index = random.nextInt(result.size());
+      switch (random.nextInt(3)) {
+        case 0:
+          result.set(index, result.get(index).replace("int", "long") + " // Changed");
+          break;
+        case 1:
+          result.add(index, createLine(random));
+          break;
+        default:
+          result.remove(index);
+      }
+    }
+    return result;
+  }
+
+  private static String joinLines(List<String> lines) {
+    return String.join("\n", lines) + "\n";
+  }
+
+  @Singleton
+  @Component(modules = CommonModule.class)
+  interface BenchmarkComponent {
+    DiffBenchmark getBenchmark();
+  }
+
+  public static void main(String[] args) throws IOException {
+    Flags.parseCurrentPackage(args);
+    DaggerDiffBenchmark_BenchmarkComponent.create().getBenchmark().run();
+  }
+}
@@ -19,12 +19,16 @@ package com.google.startupos.common.firestore;
 import com.google.api.core.ApiFuture;
 import com.google.auth.oauth2.AccessToken;
 import com.google.auth.oauth2.GoogleCredentials;
+import com.google.cloud.firestore.Blob;
 import com.google.cloud.firestore.CollectionReference;
 import com.google.cloud.firestore.DocumentReference;
 import com.google.cloud.firestore.DocumentSnapshot;
 import com.google.cloud.firestore.EventListener;
+import com.google.cloud.firestore.FieldPath;
 import com.google.cloud.firestore.Firestore;
 import com.google.cloud.firestore.FirestoreException;
+import com.google.cloud.firestore.ListenerRegistration;
+import com.google.cloud.firestore.Query;
 import com.google.cloud.firestore.QueryDocumentSnapshot;
 import com.google.cloud.firestore.QuerySnapshot;
 import com.google.cloud.firestore.WriteResult;
@@ -33,6 +37,7 @@ import com.google.cloud.storage.BlobId;
 import com.google.cloud.storage.BlobInfo;
 import com.google.cloud.storage.Storage;
 import com.google.cloud.storage.StorageOptions;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.flogger.FluentLogger;
@@ -40,26 +45,68 @@ import com.google.common.io.Files;
 import com.google.firebase.FirebaseApp;
 import com.google.firebase.FirebaseOptions;
 import com.google.firebase.cloud.FirestoreClient;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
+import com.google.protobuf.WireFormat;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import javax.annotation.Nullable;
 
 /** A proto wrapper for Firestore's client, that uses protos' binary format. */
 public class FirestoreProtoClient {
   private static final FluentLogger logger = FluentLogger.forEnclosingClass();
   private static final String PROTO_FIELD = "proto";
+  private static final int DEFAULT_PAGE_SIZE = 100;
+  // Buffers that decoded protos are parsed from, so they're not allocated for each document.
+  private static final ThreadLocal<byte[]> decodeBuffer =
+      ThreadLocal.withInitial(() -> new byte[1024]);
+
+  /**
+   * How protos are stored in documents. Documents in any of them can be read by this client, but
+   * e.g the web app can't read COMPRESSED_BLOB, and the REST API returns Blobs as bytesValue rather
+   * than stringValue.
+   */
+  public enum ProtoEncoding {
+    /** A Base64 string, which is 33% larger than the proto. Readable by older clients. */
+    BASE64,
+    /** A Blob of the proto's bytes. */
+    BLOB,
+    /** A Blob of the proto's bytes compressed with gzip, if that's smaller. */
+    COMPRESSED_BLOB
+  }
 
   Firestore client;
   Storage storage;
+  // The client's own FirebaseApp, or null if it uses the default one.
+  @Nullable private FirebaseApp app;
+  // By collection path, without leading or trailing slashes. Other collections are BASE64.
+  private final Map<String, ProtoEncoding> collectionEncodings = new ConcurrentHashMap<>();
 
   public FirestoreProtoClient(String serviceAccountJson) {
     try {
@@ -82,6 +129,19 @@ public class FirestoreProtoClient {
     }
   }
 
+  /**
+   * Creates a client with its own FirebaseApp named `appName`, so that it uses `token` even if
+   * other clients were created with other tokens. It should be closed when it's no longer used.
+   */
+  public FirestoreProtoClient(String project, String token, String appName) {
+    GoogleCredentials credentials = GoogleCredentials.create(new AccessToken(token, null));
+    FirebaseOptions options =
+        new FirebaseOptions.Builder().setCredentials(credentials).setProjectId(project).build();
+    app = FirebaseApp.initializeApp(options, appName);
+    client = FirestoreClient.getFirestore(app);
+    storage = StorageOptions.newBuilder().setCredentials(credentials).build().getService();
+  }
+
   public FirestoreProtoClient(String project, String token) {
     GoogleCredentials credentials = GoogleCredentials.create(new AccessToken(token, null));
     FirebaseOptions options =
@@ -103,7 +163,34 @@ public class FirestoreProtoClient {
     return client;
   }
 
-  private String joinPath(String collection, String documentId) {
+  /** Returns the id of the project that the client reads and writes. */
+  public String getProjectId() {
+    return client.getOptions().getProjectId();
+  }
+
+  /** Releases the client's own FirebaseApp, if it has one. The client can't be used after that. */
+  public void close() {
+    if (app != null) {
+      app.delete();
+    }
+  }
+
+  /**
+   * Sets how protos are written to the documents directly in `collection`. The default is BASE64,
+   * which every reader of the documents can read, so only collections whose readers all support
+   * `protoEncoding` should be changed.
+   */
+  public void setProtoEncoding(String collection, ProtoEncoding protoEncoding) {
+    collectionEncodings.put(trimSlashes(collection), protoEncoding);
+  }
+
+  private static String trimSlashes(String path) {
+    int start = path.startsWith("/") ? 1 : 0;
+    int end = path.endsWith("/") ? path.length() - 1 : path.length();
+    return path.substring(start, Math.max(start, end));
+  }
+
+  static String joinPath(String collection, String documentId) {
     if (collection.endsWith("/")) {
       return collection + documentId;
     }
@@ -112,17 +199,144 @@ public class FirestoreProtoClient {
 
   public static Message parseProto(DocumentSnapshot document, Message.Builder builder)
       throws InvalidProtocolBufferException {
-    return builder
-        .build()
-        .getParserForType()
-        .parseFrom(Base64.getDecoder().decode(document.getString(PROTO_FIELD)));
+    return parseProto(document.getData(), builder);
+  }
+
+  /** Parses the proto of a document's data, as returned by {@link DocumentSnapshot#getData}. */
+  public static Message parseProto(Map<String, Object> data, Message.Builder builder)
+      throws InvalidProtocolBufferException {
+    int length = decodeProto(data);
+    return builder.build().getParserForType().parseFrom(decodeBuffer.get(), 0, length);
+  }
+
+  /**
+   * Parses only the fields of the document's proto with numbers in `fieldNumbers`. Other fields are
+   * skipped without being parsed, so that e.g scanning Diffs by status doesn't materialize all of
+   * their threads. The result must not be written back, as it's missing the other fields.
+   */
+  public static Message parseProto(
+      DocumentSnapshot document, Message.Builder builder, Set<Integer> fieldNumbers)
+      throws InvalidProtocolBufferException {
+    return parseProto(document.getData(), builder, fieldNumbers);
   }
 
-  private ImmutableMap<String, String> encodeProto(Message proto)
+  /** Same as above, for a document's data, as returned by {@link DocumentSnapshot#getData}. */
+  public static Message parseProto(
+      Map<String, Object> data, Message.Builder builder, Set<Integer> fieldNumbers)
       throws InvalidProtocolBufferException {
+    int length = decodeProto(data);
+    byte[] buffer = decodeBuffer.get();
+    CodedInputStream input = CodedInputStream.newInstance(buffer, 0, length);
+    ByteArrayOutputStream fields = new ByteArrayOutputStream();
+    try {
+      while (true) {
+        int start = input.getTotalBytesRead();
+        int tag = input.readTag();
+        if (tag == 0) {
+          break;
+        }
+        input.skipField(tag);
+        if (fieldNumbers.contains(WireFormat.getTagFieldNumber(tag))) {
+          fields.write(buffer, start, input.getTotalBytesRead() - start);
+        }
+      }
+      return builder.build().getParserForType().parseFrom(fields.toByteArray());
+    } catch (InvalidProtocolBufferException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new InvalidProtocolBufferException(e.getMessage());
+    }
+  }
+
+  // Decodes the document's proto into the thread's decodeBuffer, and returns its length.
+  private static int decodeProto(Map<String, Object> data) throws InvalidProtocolBufferException {
+    Object value = data.get(PROTO_FIELD);
+    if (value instanceof Blob) {
+      ByteString bytes = ((Blob) value).toByteString();
+      if (isCompressed(bytes)) {
+        return decompress(bytes);
+      }
+      ensureDecodeBufferSize(bytes.size());
+      bytes.copyTo(decodeBuffer.get(), 0);
+      return bytes.size();
+    }
+    byte[] encoded = ((String) value).getBytes(StandardCharsets.ISO_8859_1);
+    ensureDecodeBufferSize(encoded.length / 4 * 3);
+    return Base64.getDecoder().decode(encoded, decodeBuffer.get());
+  }
+
+  // A proto can't start with the gzip magic bytes, since 0x1f is a tag with the invalid wire type
+  // 7, so compressed Blobs are told apart from uncompressed ones by them.
+  private static boolean isCompressed(ByteString bytes) {
+    return bytes.size() >= 2
+        && bytes.byteAt(0) == (byte) GZIPInputStream.GZIP_MAGIC
+        && bytes.byteAt(1) == (byte) (GZIPInputStream.GZIP_MAGIC >> 8);
+  }
+
+  private static int decompress(ByteString bytes) throws InvalidProtocolBufferException {
+    try (GZIPInputStream input = new GZIPInputStream(bytes.newInput())) {
+      int length = 0;
+      while (true) {
+        ensureDecodeBufferSize(length + 1);
+        byte[] buffer = decodeBuffer.get();
+        int read = input.read(buffer, length, buffer.length - length);
+        if (read == -1) {
+          return length;
+        }
+        length += read;
+      }
+    } catch (IOException e) {
+      throw new InvalidProtocolBufferException("Cannot decompress proto: " + e.getMessage());
+    }
+  }
+
+  // Grows the thread's decodeBuffer, keeping its contents, so that it has at least `size` bytes.
+  private static void ensureDecodeBufferSize(int size) {
+    byte[] buffer = decodeBuffer.get();
+    if (buffer.length < size) {
+      decodeBuffer.set(Arrays.copyOf(buffer, Math.max(size, buffer.length * 2)));
+    }
+  }
+
+  private ProtoEncoding getProtoEncoding(String collection) {
+    return collectionEncodings.getOrDefault(trimSlashes(collection), ProtoEncoding.BASE64);
+  }
+
+  // Encodes `proto` for the document at `path`, with the encoding of its collection.
+  ImmutableMap<String, Object> encodeProto(String path, Message proto) {
+    String trimmedPath = trimSlashes(path);
+    String collection = trimmedPath.substring(0, Math.max(0, trimmedPath.lastIndexOf('/')));
+    return encodeProto(proto, getProtoEncoding(collection));
+  }
+
+  /** Returns the data of a document that stores `proto` with `protoEncoding`. */
+  public static ImmutableMap<String, Object> encodeProto(
+      Message proto, ProtoEncoding protoEncoding) {
     byte[] protoBytes = proto.toByteArray();
-    String base64BinaryString = Base64.getEncoder().encodeToString(protoBytes);
-    return ImmutableMap.of(PROTO_FIELD, base64BinaryString);
+    switch (protoEncoding) {
+      case BASE64:
+        return ImmutableMap.of(PROTO_FIELD, Base64.getEncoder().encodeToString(protoBytes));
+      case BLOB:
+        return ImmutableMap.of(PROTO_FIELD, Blob.fromBytes(protoBytes));
+      case COMPRESSED_BLOB:
+        byte[] compressed = compress(protoBytes);
+        // Small protos can get larger when compressed.
+        return ImmutableMap.of(
+            PROTO_FIELD,
+            Blob.fromBytes(compressed.length < protoBytes.length ? compressed : protoBytes));
+      default:
+        throw new IllegalStateException("Unknown encoding " + protoEncoding);
+    }
+  }
+
+  private static byte[] compress(byte[] bytes) {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    try (GZIPOutputStream output = new GZIPOutputStream(result)) {
+      output.write(bytes);
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot compress to a byte array", e);
+    }
+    return result.toByteArray();
   }
 
   private CollectionReference getCollectionReference(String[] parts, int length) {
@@ -215,11 +429,7 @@ public class FirestoreProtoClient {
   }
 
   public ApiFuture<WriteResult> setProtoDocumentAsync(String path, Message proto) {
-    try {
-      return setDocumentAsync(path, encodeProto(proto));
-    } catch (InvalidProtocolBufferException e) {
-      throw new IllegalStateException(e);
-    }
+    return setDocumentAsync(path, encodeProto(path, proto));
   }
 
   public ApiFuture<WriteResult> setProtoDocumentAsync(
@@ -239,15 +449,38 @@ public class FirestoreProtoClient {
     return setProtoDocument(joinPath(collection, documentId), proto);
   }
 
-  public ApiFuture<DocumentReference> addProtoDocumentToCollectionAsync(
-      String path, Message proto) {
+  /**
+   * Replaces the proto at `path` with `update` applied to it, in a transaction, and returns the new
+   * proto. If the document doesn't exist, `update` is applied to `builder`'s default instance.
+   * `update` can be called more than once, if the document is changed concurrently.
+   */
+  public Message updateProtoDocument(
+      String path, Message.Builder builder, UnaryOperator<Message> update) {
+    DocumentReference document = getDocumentReference(path);
     try {
-      return getCollectionReference(path).add(encodeProto(proto));
-    } catch (InvalidProtocolBufferException e) {
+      return client
+          .runTransaction(
+              transaction -> {
+                DocumentSnapshot snapshot = transaction.get(document).get();
+                Message proto =
+                    update.apply(
+                        snapshot.exists()
+                            ? parseProto(snapshot, builder)
+                            : builder.build().getDefaultInstanceForType());
+                transaction.set(document, encodeProto(path, proto));
+                return proto;
+              })
+          .get();
+    } catch (ExecutionException | InterruptedException e) {
       throw new IllegalStateException(e);
     }
   }
 
+  public ApiFuture<DocumentReference> addProtoDocumentToCollectionAsync(
+      String path, Message proto) {
+    return getCollectionReference(path).add(encodeProto(proto, getProtoEncoding(path)));
+  }
+
   public DocumentReference addProtoDocumentToCollection(String path, Message proto) {
     try {
       return addProtoDocumentToCollectionAsync(path, proto).get();
@@ -261,12 +494,24 @@ public class FirestoreProtoClient {
   }
 
   public List<Message> getProtoDocuments(String path, Message.Builder builder) {
+    return getProtoDocuments(path, builder, null);
+  }
+
+  /**
+   * Returns the protos in the collection at `path`, with only the fields with numbers in
+   * `fieldNumbers`, or with all fields if it's null. See {@link #parseProto(DocumentSnapshot,
+   * Message.Builder, Set)}.
+   */
+  public List<Message> getProtoDocuments(
+      String path, Message.Builder builder, @Nullable Set<Integer> fieldNumbers) {
     ImmutableList.Builder<Message> result = ImmutableList.builder();
     try {
-      Message proto = builder.build();
       QuerySnapshot querySnapshot = getDocumentsAsync(path).get();
       for (QueryDocumentSnapshot document : querySnapshot.getDocuments()) {
-        result.add(parseProto(document, builder));
+        result.add(
+            fieldNumbers == null
+                ? parseProto(document, builder)
+                : parseProto(document, builder, fieldNumbers));
       }
       return result.build();
     } catch (ExecutionException | InterruptedException | InvalidProtocolBufferException e) {
@@ -274,6 +519,135 @@ public class FirestoreProtoClient {
     }
   }
 
+  public Stream<Message> streamProtoDocuments(String path, Message.Builder builder) {
+    return streamProtoDocuments(path, builder, null, DEFAULT_PAGE_SIZE, null);
+  }
+
+  /**
+   * Returns the protos in the collection at `path`, ordered by document id, as a stream that reads
+   * the collection in pages of `pageSize` documents. Each page is read ahead while the previous one
+   * is consumed, so only 2 pages are in memory at a time. If `parsePool` is not null, the
+   * documents of each page are parsed in parallel in it. See {@link #getProtoDocuments(String,
+   * Message.Builder, Set)} for `fieldNumbers`.
+   */
+  public Stream<Message> streamProtoDocuments(
+      String path,
+      Message.Builder builder,
+      @Nullable Set<Integer> fieldNumbers,
+      int pageSize,
+      @Nullable ForkJoinPool parsePool) {
+    Preconditions.checkArgument(pageSize > 0, "Page size must be positive: %s", pageSize);
+    Query query = getCollectionReference(path).orderBy(FieldPath.documentId());
+    return streamProtoDocuments(
+        after -> (after == null ? query : query.startAfter(after)).limit(pageSize).get(),
+        builder,
+        fieldNumbers,
+        pageSize,
+        parsePool);
+  }
+
+  /**
+   * Same as above, except pages are read with `readPage`, which returns the `pageSize` documents
+   * after the given one, or the first ones if it's null.
+   */
+  public static Stream<Message> streamProtoDocuments(
+      Function<DocumentSnapshot, ApiFuture<QuerySnapshot>> readPage,
+      Message.Builder builder,
+      @Nullable Set<Integer> fieldNumbers,
+      int pageSize,
+      @Nullable ForkJoinPool parsePool) {
+    Preconditions.checkArgument(pageSize > 0, "Page size must be positive: %s", pageSize);
+    return StreamSupport.stream(
+        Spliterators.spliteratorUnknownSize(
+            new ProtoDocumentIterator(readPage, builder.build(), fieldNumbers, pageSize, parsePool),
+            Spliterator.ORDERED | Spliterator.NONNULL),
+        false);
+  }
+
+  // Iterates over the protos of documents that are read in pages.
+  private static class ProtoDocumentIterator implements Iterator<Message> {
+    // Reads the page after a document, or the first page if it's null.
+    private final Function<DocumentSnapshot, ApiFuture<QuerySnapshot>> readPage;
+    // Builders aren't thread-safe, so one is created from it for each document.
+    private final Message prototype;
+    @Nullable private final Set<Integer> fieldNumbers;
+    private final int pageSize;
+    @Nullable private final ForkJoinPool parsePool;
+    private List<Message> page = ImmutableList.of();
+    private int index;
+    // Null if there are no more pages.
+    @Nullable private ApiFuture<QuerySnapshot> nextPage;
+
+    ProtoDocumentIterator(
+        Function<DocumentSnapshot, ApiFuture<QuerySnapshot>> readPage,
+        Message prototype,
+        @Nullable Set<Integer> fieldNumbers,
+        int pageSize,
+        @Nullable ForkJoinPool parsePool) {
+      this.readPage = readPage;
+      this.prototype = prototype;
+      this.fieldNumbers = fieldNumbers;
+      this.pageSize = pageSize;
+      this.parsePool = parsePool;
+      nextPage = readPage.apply(null);
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (index == page.size()) {
+        if (nextPage == null) {
+          return false;
+        }
+        readNextPage();
+      }
+      return true;
+    }
+
+    @Override
+    public Message next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return page.get(index++);
+    }
+
+    private void readNextPage() {
+      List<QueryDocumentSnapshot> documents;
+      try {
+        documents = nextPage.get().getDocuments();
+      } catch (ExecutionException | InterruptedException e) {
+        throw new IllegalStateException(e);
+      }
+      // A page that isn't full is the last one.
+      nextPage =
+          documents.size() < pageSize ? null : readPage.apply(documents.get(documents.size() - 1));
+      index = 0;
+      if (parsePool == null) {
+        page = documents.stream().map(this::parse).collect(Collectors.toList());
+        return;
+      }
+      try {
+        page =
+            parsePool
+                .submit(
+                    () -> documents.parallelStream().map(this::parse).collect(Collectors.toList()))
+                .get();
+      } catch (ExecutionException | InterruptedException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    private Message parse(DocumentSnapshot document) {
+      try {
+        return fieldNumbers == null
+            ? parseProto(document, prototype.newBuilderForType())
+            : parseProto(document, prototype.newBuilderForType(), fieldNumbers);
+      } catch (InvalidProtocolBufferException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
   public MessageWithId getDocumentFromCollection(
       String path, Message.Builder builder, boolean shouldRemove) {
     try {
@@ -322,9 +696,21 @@ public class FirestoreProtoClient {
     return deleteDocument(joinPath(collection, documentId));
   }
 
-  public void addCollectionListener(
+  public ListenerRegistration addCollectionListener(
       String path, Message.Builder builder, ProtoEventListener listener) {
-    getCollectionReference(path)
+    return addCollectionListener(path, builder, null, listener);
+  }
+
+  /**
+   * Same as above, except the protos only have the fields with numbers in `fieldNumbers`, or all
+   * fields if it's null.
+   */
+  public ListenerRegistration addCollectionListener(
+      String path,
+      Message.Builder builder,
+      @Nullable Set<Integer> fieldNumbers,
+      ProtoEventListener listener) {
+    return getCollectionReference(path)
         .addSnapshotListener(
             new EventListener<QuerySnapshot>() {
               @Override
@@ -335,7 +721,8 @@ public class FirestoreProtoClient {
                   return;
                 }
                 try {
-                  listener.onEvent(new ProtoQuerySnapshot(querySnapshot, builder), null);
+                  listener.onEvent(
+                      new ProtoQuerySnapshot(querySnapshot, builder, fieldNumbers), null);
                 } catch (InvalidProtocolBufferException e2) {
                   listener.onEvent(null, new IllegalArgumentException(e2));
                 }
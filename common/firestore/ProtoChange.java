@@ -16,7 +16,9 @@
 
 package com.google.startupos.common.firestore;
 
+import com.google.cloud.Timestamp;
 import com.google.protobuf.Message;
+import javax.annotation.Nullable;
 
 // TODO: Convert to AutoValue
 public class ProtoChange<T extends Message> {
@@ -24,6 +26,7 @@ public class ProtoChange<T extends Message> {
   private int newIndex;
   private int oldIndex;
   private Type type;
+  @Nullable private Timestamp updateTime;
 
   public enum Type {
     ADDED,
@@ -32,10 +35,16 @@ public class ProtoChange<T extends Message> {
   }
 
   public ProtoChange(T proto, int newIndex, int oldIndex, Type type) {
+    this(proto, newIndex, oldIndex, type, null);
+  }
+
+  public ProtoChange(
+      T proto, int newIndex, int oldIndex, Type type, @Nullable Timestamp updateTime) {
     this.proto = proto;
     this.newIndex = newIndex;
     this.oldIndex = oldIndex;
     this.type = type;
+    this.updateTime = updateTime;
   }
 
   public T getProto() {
@@ -53,5 +62,11 @@ public class ProtoChange<T extends Message> {
   public Type getType() {
     return type;
   }
+
+  /** Returns when the document was last updated, which orders its versions, or null if unknown. */
+  @Nullable
+  public Timestamp getUpdateTime() {
+    return updateTime;
+  }
 }
 
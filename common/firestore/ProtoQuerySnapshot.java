@@ -22,6 +22,8 @@ import com.google.cloud.firestore.QuerySnapshot;
 import com.google.common.collect.ImmutableList;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
+import java.util.Set;
+import javax.annotation.Nullable;
 
 /** A proto wrapper for Firestore's QuerySnapshot. */
 public class ProtoQuerySnapshot<T extends Message> {
@@ -30,25 +32,45 @@ public class ProtoQuerySnapshot<T extends Message> {
 
   public ProtoQuerySnapshot(QuerySnapshot querySnapshot, Message.Builder builder)
       throws InvalidProtocolBufferException {
+    this(querySnapshot, builder, null);
+  }
+
+  /**
+   * Creates a snapshot whose protos only have the fields with numbers in `fieldNumbers`, or all
+   * fields if it's null.
+   */
+  public ProtoQuerySnapshot(
+      QuerySnapshot querySnapshot, Message.Builder builder, @Nullable Set<Integer> fieldNumbers)
+      throws InvalidProtocolBufferException {
     // TODO: Avoid parsing the same objects twice in getDocuments() and getDocumentChanges().
     ImmutableList.Builder<T> protos = ImmutableList.builder();
     for (DocumentSnapshot docSnapshot : querySnapshot.getDocuments()) {
-      protos.add((T) FirestoreProtoClient.parseProto(docSnapshot, builder));
+      protos.add(parseProto(docSnapshot, builder, fieldNumbers));
     }
     this.protos = protos.build();
     ImmutableList.Builder<ProtoChange<T>> protoChanges = ImmutableList.builder();
     for (DocumentChange docChange : querySnapshot.getDocumentChanges()) {
-      T proto = (T) FirestoreProtoClient.parseProto(docChange.getDocument(), builder);
+      T proto = parseProto(docChange.getDocument(), builder, fieldNumbers);
       protoChanges.add(
           new ProtoChange<T>(
               proto,
               docChange.getNewIndex(),
               docChange.getOldIndex(),
-              convertChangeType(docChange.getType())));
+              convertChangeType(docChange.getType()),
+              docChange.getDocument().getUpdateTime()));
     }
     this.protoChanges = protoChanges.build();
   }
 
+  private T parseProto(
+      DocumentSnapshot document, Message.Builder builder, @Nullable Set<Integer> fieldNumbers)
+      throws InvalidProtocolBufferException {
+    return (T)
+        (fieldNumbers == null
+            ? FirestoreProtoClient.parseProto(document, builder)
+            : FirestoreProtoClient.parseProto(document, builder, fieldNumbers));
+  }
+
   ProtoChange.Type convertChangeType(DocumentChange.Type type) {
     switch (type) {
       case ADDED:
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2018 The StartupOS Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.startupos.common.firestore;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+import com.google.cloud.firestore.WriteBatch;
+import com.google.cloud.firestore.WriteResult;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.Message;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
+
+/**
+ * Batches writes of protos to Firestore documents.
+ *
+ * <p>Writes are collected for a time window, and then committed together in WriteBatches. Writes
+ * to the same document in a window are coalesced, so only the last one is committed. Each write
+ * returns a future of its result, so that callers don't have to wait for it.
+ */
+public class ProtoWriteBatcher {
+  // Firestore's limit of writes in a WriteBatch.
+  private static final int MAX_BATCH_WRITES = 500;
+
+  /** Commits a batch of writes. */
+  public interface Committer {
+    /**
+     * Writes each proto in `writes` to the document at its path, all or none of them, and returns
+     * a future of the results in the order of `writes`.
+     */
+    ApiFuture<List<WriteResult>> commit(Map<String, Message> writes);
+  }
+
+  private static class PendingWrite {
+    private Message proto;
+    // Futures of all writes that were coalesced into this one.
+    private final List<SettableApiFuture<WriteResult>> futures = new ArrayList<>();
+  }
+
+  private final Committer committer;
+  private final long windowMs;
+  private final ScheduledExecutorService scheduler =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat("proto-write-batcher").build());
+  private final Object flushLock = new Object();
+  // Guarded by flushLock
+  private final List<ApiFuture<List<WriteResult>>> inFlightCommits = new ArrayList<>();
+  // Guarded by this
+  private Map<String, PendingWrite> pendingWrites = new LinkedHashMap<>();
+  private boolean flushScheduled;
+  private boolean closed;
+
+  public ProtoWriteBatcher(FirestoreProtoClient client, Duration window) {
+    this(() -> client, window);
+  }
+
+  /** Creates a batcher that commits with the client returned by `clientSupplier` at the time. */
+  public ProtoWriteBatcher(Supplier<FirestoreProtoClient> clientSupplier, Duration window) {
+    this((Committer) writes -> commit(clientSupplier.get(), writes), window);
+  }
+
+  /** Creates a batcher that commits with `committer`, e.g a fake one in tests. */
+  public ProtoWriteBatcher(Committer committer, Duration window) {
+    this.committer = committer;
+    windowMs = window.toMillis();
+  }
+
+  /** Writes `proto` to the document at `path`, and returns a future of the result. */
+  public ApiFuture<WriteResult> set(String path, Message proto) {
+    SettableApiFuture<WriteResult> future = SettableApiFuture.create();
+    boolean flushNow;
+    synchronized (this) {
+      PendingWrite write = pendingWrites.computeIfAbsent(path, key -> new PendingWrite());
+      write.proto = proto;
+      write.futures.add(future);
+      // After close(), writes are committed right away, as there's no scheduler to flush them.
+      flushNow = pendingWrites.size() >= MAX_BATCH_WRITES || closed;
+      if (!flushNow && !flushScheduled) {
+        scheduler.schedule(this::flush, windowMs, TimeUnit.MILLISECONDS);
+        flushScheduled = true;
+      }
+    }
+    if (flushNow) {
+      flush();
+    }
+    return future;
+  }
+
+  public ApiFuture<WriteResult> set(String collection, String documentId, Message proto) {
+    return set(FirestoreProtoClient.joinPath(collection, documentId), proto);
+  }
+
+  /** Commits pending writes now, without waiting for the end of the window. */
+  public void flush() {
+    // Flushes are one at a time, and wait for the previous commits, so that a write is never
+    // committed before an earlier write to the same document.
+    synchronized (flushLock) {
+      awaitInFlightCommits();
+      Map<String, PendingWrite> writes;
+      synchronized (this) {
+        writes = pendingWrites;
+        pendingWrites = new LinkedHashMap<>();
+        flushScheduled = false;
+      }
+      if (writes.isEmpty()) {
+        return;
+      }
+      for (List<Map.Entry<String, PendingWrite>> batchWrites :
+          Lists.partition(new ArrayList<>(writes.entrySet()), MAX_BATCH_WRITES)) {
+        ApiFuture<List<WriteResult>> commit = commitBatch(batchWrites);
+        if (commit != null) {
+          inFlightCommits.add(commit);
+        }
+      }
+    }
+  }
+
+  // Waits for the commits of previous flushes to finish. Guarded by flushLock.
+  private void awaitInFlightCommits() {
+    for (ApiFuture<List<WriteResult>> commit : inFlightCommits) {
+      try {
+        commit.get();
+      } catch (ExecutionException e) {
+        // Reported to the futures of its writes.
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException(e);
+      }
+    }
+    inFlightCommits.clear();
+  }
+
+  /**
+   * Commits pending writes, waits for all commits to finish, and stops the batcher. Later writes
+   * are committed right away.
+   */
+  public void close() {
+    synchronized (this) {
+      closed = true;
+    }
+    flush();
+    synchronized (flushLock) {
+      awaitInFlightCommits();
+    }
+    scheduler.shutdown();
+  }
+
+  // Commits `writes` in a WriteBatch.
+  private static ApiFuture<List<WriteResult>> commit(
+      FirestoreProtoClient client, Map<String, Message> writes) {
+    WriteBatch batch = client.getClient().batch();
+    for (Map.Entry<String, Message> write : writes.entrySet()) {
+      batch.set(
+          client.getDocumentReference(write.getKey()),
+          client.encodeProto(write.getKey(), write.getValue()));
+    }
+    return batch.commit();
+  }
+
+  // Commits `writes` with the committer, and returns the commit's future, or null if it failed.
+  @Nullable
+  private ApiFuture<List<WriteResult>> commitBatch(List<Map.Entry<String, PendingWrite>> writes) {
+    Map<String, Message> protos = new LinkedHashMap<>();
+    for (Map.Entry<String, PendingWrite> write : writes) {
+      protos.put(write.getKey(), write.getValue().proto);
+    }
+    ApiFuture<List<WriteResult>> commitFuture;
+    try {
+      commitFuture = committer.commit(protos);
+    } catch (RuntimeException e) {
+      fail(writes, e);
+      return null;
+    }
+    ApiFutures.addCallback(
+        commitFuture,
+        new ApiFutureCallback<List<WriteResult>>() {
+          @Override
+          public void onSuccess(List<WriteResult> results) {
+            // Results are in the order of the writes.
+            for (int i = 0; i < writes.size(); i++) {
+              for (SettableApiFuture<WriteResult> future : writes.get(i).getValue().futures) {
+                future.set(results.get(i));
+              }
+            }
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            fail(writes, t);
+          }
+        },
+        MoreExecutors.directExecutor());
+    return commitFuture;
+  }
+
+  private static void fail(List<Map.Entry<String, PendingWrite>> writes, Throwable t) {
+    for (Map.Entry<String, PendingWrite> write : writes) {
+      for (SettableApiFuture<WriteResult> future : write.getValue().futures) {
+        future.setException(t);
+      }
+    }
+  }
+}
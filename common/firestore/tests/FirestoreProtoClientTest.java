@@ -0,0 +1,346 @@
+/*
+ * Copyright 2018 The StartupOS Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.startupos.common.firestore.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.firestore.Blob;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.QuerySnapshot;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.primitives.Bytes;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import com.google.protobuf.Struct;
+import com.google.protobuf.Value;
+import com.google.startupos.common.firestore.FirestoreProtoClient;
+import com.google.startupos.common.firestore.FirestoreProtoClient.ProtoEncoding;
+import com.google.startupos.common.tests.MessageDifferencerTestProtos.TestItem;
+import com.google.startupos.common.tests.MessageDifferencerTestProtos.TestRecord;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests that protos are read back the same in every {@link ProtoEncoding}, that only the requested
+ * fields are parsed, and that collections are streamed in order, page by page.
+ */
+@RunWith(JUnit4.class)
+public class FirestoreProtoClientTest {
+  // Returns a proto of about `size` bytes, which compresses well.
+  private static Struct createProto(int size) {
+    return Struct.newBuilder()
+        .putFields(
+            "text", Value.newBuilder().setStringValue(Strings.repeat("ab", size / 2)).build())
+        .build();
+  }
+
+  private static Message parse(ImmutableMap<String, Object> data) throws Exception {
+    return FirestoreProtoClient.parseProto(data, Struct.newBuilder());
+  }
+
+  private static TestRecord createRecord() {
+    TestItem item = TestItem.newBuilder().setName("item").setVersion(1).addTags("tag").build();
+    return TestRecord.newBuilder()
+        .setStringField("string")
+        .setInt32Field(32)
+        .setDoubleField(0.5)
+        .setItem(item)
+        .addItems(item)
+        .addItems(TestItem.newBuilder().setName("other item"))
+        .addNumbers(1)
+        .addNumbers(300)
+        .addNumbers(-1)
+        .addStrings("a")
+        .addStrings("b")
+        .putItemMap("key", item)
+        .putStringMap(1, "value")
+        .setChoiceItem(item)
+        .setChild(TestRecord.newBuilder().setStringField("child").addNumbers(2))
+        .build();
+  }
+
+  // Returns `message` without the fields whose numbers aren't in `fieldNumbers`.
+  private static Message keepFields(Message message, Set<Integer> fieldNumbers) {
+    Message.Builder builder = message.toBuilder();
+    for (FieldDescriptor field : message.getDescriptorForType().getFields()) {
+      if (!fieldNumbers.contains(field.getNumber())) {
+        builder.clearField(field);
+      }
+    }
+    return builder.build();
+  }
+
+  // Returns document data with `bytes` as the proto, like encodeProto() does for a proto.
+  private static ImmutableMap<String, Object> createData(byte[] bytes, ProtoEncoding encoding) {
+    return ImmutableMap.of(
+        "proto",
+        encoding == ProtoEncoding.BASE64
+            ? Base64.getEncoder().encodeToString(bytes)
+            : Blob.fromBytes(bytes));
+  }
+
+  private static Message parseFields(ImmutableMap<String, Object> data, Set<Integer> fieldNumbers)
+      throws Exception {
+    return FirestoreProtoClient.parseProto(data, TestRecord.newBuilder(), fieldNumbers);
+  }
+
+  private static ImmutableList<TestRecord> createRecords(int count) {
+    ImmutableList.Builder<TestRecord> records = ImmutableList.builder();
+    for (int i = 0; i < count; i++) {
+      records.add(TestRecord.newBuilder().setInt32Field(i).setStringField("record " + i).build());
+    }
+    return records.build();
+  }
+
+  private static ImmutableList<QueryDocumentSnapshot> createDocuments(List<TestRecord> records) {
+    ImmutableList.Builder<QueryDocumentSnapshot> documents = ImmutableList.builder();
+    for (TestRecord record : records) {
+      QueryDocumentSnapshot document = mock(QueryDocumentSnapshot.class);
+      when(document.getData())
+          .thenReturn(FirestoreProtoClient.encodeProto(record, ProtoEncoding.BASE64));
+      documents.add(document);
+    }
+    return documents.build();
+  }
+
+  // Reads pages of `documents`, ordered as in the list, like a query with startAfter() and limit().
+  // Adds the document each page is read after to `cursors`.
+  private static Function<DocumentSnapshot, ApiFuture<QuerySnapshot>> readPages(
+      List<QueryDocumentSnapshot> documents, int pageSize, List<DocumentSnapshot> cursors) {
+    return after -> {
+      cursors.add(after);
+      int start = after == null ? 0 : documents.indexOf(after) + 1;
+      QuerySnapshot snapshot = mock(QuerySnapshot.class);
+      when(snapshot.getDocuments())
+          .thenReturn(documents.subList(start, Math.min(start + pageSize, documents.size())));
+      return ApiFutures.immediateFuture(snapshot);
+    };
+  }
+
+  private static List<Message> streamRecords(
+      List<QueryDocumentSnapshot> documents,
+      int pageSize,
+      List<DocumentSnapshot> cursors,
+      Set<Integer> fieldNumbers,
+      ForkJoinPool parsePool) {
+    return FirestoreProtoClient.streamProtoDocuments(
+            readPages(documents, pageSize, cursors),
+            TestRecord.newBuilder(),
+            fieldNumbers,
+            pageSize,
+            parsePool)
+        .collect(Collectors.toList());
+  }
+
+  @Test
+  public void testEncodingsRoundTrip() throws Exception {
+    for (ProtoEncoding encoding : ProtoEncoding.values()) {
+      for (int size : new int[] {0, 10, 1000, 100000}) {
+        Struct proto = createProto(size);
+        assertEquals(
+            encoding + " " + size, proto, parse(FirestoreProtoClient.encodeProto(proto, encoding)));
+      }
+    }
+  }
+
+  @Test
+  public void testEncodedValues() {
+    Struct proto = createProto(1000);
+    assertEquals(
+        Base64.getEncoder().encodeToString(proto.toByteArray()),
+        FirestoreProtoClient.encodeProto(proto, ProtoEncoding.BASE64).get("proto"));
+    assertArrayEquals(
+        proto.toByteArray(),
+        ((Blob) FirestoreProtoClient.encodeProto(proto, ProtoEncoding.BLOB).get("proto"))
+            .toBytes());
+    byte[] compressed =
+        ((Blob) FirestoreProtoClient.encodeProto(proto, ProtoEncoding.COMPRESSED_BLOB).get("proto"))
+            .toBytes();
+    assertTrue(compressed.length < proto.getSerializedSize() / 10);
+
+    // Compressing a small proto would make it larger, so it's stored as is.
+    Struct smallProto = createProto(10);
+    assertArrayEquals(
+        smallProto.toByteArray(),
+        ((Blob)
+                FirestoreProtoClient.encodeProto(smallProto, ProtoEncoding.COMPRESSED_BLOB)
+                    .get("proto"))
+            .toBytes());
+  }
+
+  @Test
+  public void testDecompressGrowsBuffer() throws Exception {
+    Struct proto = createProto(1000000);
+    ImmutableMap<String, Object> data =
+        FirestoreProtoClient.encodeProto(proto, ProtoEncoding.COMPRESSED_BLOB);
+    // Parsed on a new thread, so that its decode buffer is still smaller than the proto, and is
+    // grown while decompressing.
+    FutureTask<Message> parsing = new FutureTask<>(() -> parse(data));
+    new Thread(parsing).start();
+    assertEquals(proto, parsing.get());
+  }
+
+  @Test
+  public void testParseFieldsSkipsOtherFields() throws Exception {
+    TestRecord record = createRecord();
+    ImmutableSet<Set<Integer>> fieldNumberSets =
+        ImmutableSet.<Set<Integer>>of(
+            ImmutableSet.<Integer>of(),
+            // Packed repeated numbers
+            ImmutableSet.of(6),
+            // Nested messages
+            ImmutableSet.of(5, 7, 15),
+            ImmutableSet.of(10, 11, 14),
+            ImmutableSet.of(1, 2, 3, 8),
+            ImmutableSet.of(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16));
+    for (ProtoEncoding encoding : ProtoEncoding.values()) {
+      ImmutableMap<String, Object> data = FirestoreProtoClient.encodeProto(record, encoding);
+      for (Set<Integer> fieldNumbers : fieldNumberSets) {
+        assertEquals(
+            encoding + " " + fieldNumbers,
+            keepFields(record, fieldNumbers),
+            parseFields(data, fieldNumbers));
+      }
+    }
+  }
+
+  @Test
+  public void testParseFieldsMergesFieldsRepeatedOnTheWire() throws Exception {
+    TestRecord record1 = createRecord();
+    TestRecord record2 =
+        TestRecord.newBuilder()
+            .setStringField("string 2")
+            .setItem(TestItem.newBuilder().setValue("value").addTags("tag 2"))
+            .addNumbers(4)
+            .build();
+    // Like a proto that was appended to, the fields of record2 follow those of record1.
+    byte[] bytes = Bytes.concat(record1.toByteArray(), record2.toByteArray());
+    TestRecord merged = record1.toBuilder().mergeFrom(record2).build();
+    assertEquals(
+        TestItem.newBuilder()
+            .setName("item")
+            .setVersion(1)
+            .setValue("value")
+            .addTags("tag")
+            .addTags("tag 2")
+            .build(),
+        merged.getItem());
+    for (ProtoEncoding encoding : new ProtoEncoding[] {ProtoEncoding.BASE64, ProtoEncoding.BLOB}) {
+      ImmutableMap<String, Object> data = createData(bytes, encoding);
+      for (Set<Integer> fieldNumbers :
+          ImmutableSet.<Set<Integer>>of(ImmutableSet.of(2, 5, 6), ImmutableSet.of(5, 8))) {
+        assertEquals(
+            encoding + " " + fieldNumbers,
+            keepFields(merged, fieldNumbers),
+            parseFields(data, fieldNumbers));
+      }
+    }
+  }
+
+  @Test
+  public void testStreamProtoDocuments_readsPagesAfterLastDocument() {
+    int pageSize = 3;
+    // Covers an empty collection, short last pages, and sizes that are a multiple of the page size,
+    // whose last page is empty.
+    for (int count = 0; count <= 3 * pageSize; count++) {
+      ImmutableList<TestRecord> records = createRecords(count);
+      ImmutableList<QueryDocumentSnapshot> documents = createDocuments(records);
+      List<DocumentSnapshot> cursors = new ArrayList<>();
+
+      assertEquals("" + count, records, streamRecords(documents, pageSize, cursors, null, null));
+
+      List<DocumentSnapshot> expectedCursors = new ArrayList<>();
+      expectedCursors.add(null);
+      for (int end = pageSize; end <= count; end += pageSize) {
+        expectedCursors.add(documents.get(end - 1));
+      }
+      assertEquals("" + count, expectedCursors, cursors);
+    }
+  }
+
+  @Test
+  public void testStreamProtoDocuments_readsOnePageAhead() {
+    ImmutableList<QueryDocumentSnapshot> documents = createDocuments(createRecords(10));
+    List<DocumentSnapshot> cursors = new ArrayList<>();
+    Iterator<Message> iterator =
+        FirestoreProtoClient.streamProtoDocuments(
+                readPages(documents, 4, cursors), TestRecord.newBuilder(), null, 4, null)
+            .iterator();
+    // Only the first page is requested until the stream is consumed.
+    assertEquals(1, cursors.size());
+
+    // Reading the first page requests the second one.
+    iterator.next();
+    assertEquals(2, cursors.size());
+    assertEquals(documents.get(3), cursors.get(1));
+    for (int i = 1; i < 4; i++) {
+      iterator.next();
+    }
+    assertEquals(2, cursors.size());
+
+    iterator.next();
+    assertEquals(3, cursors.size());
+    assertEquals(documents.get(7), cursors.get(2));
+  }
+
+  @Test
+  public void testStreamProtoDocuments_parallelParsingKeepsOrder() {
+    ImmutableList<TestRecord> records = createRecords(100);
+    ForkJoinPool parsePool = new ForkJoinPool(4);
+    try {
+      assertEquals(
+          records,
+          streamRecords(createDocuments(records), 7, new ArrayList<>(), null, parsePool));
+    } finally {
+      parsePool.shutdown();
+    }
+  }
+
+  @Test
+  public void testStreamProtoDocuments_parsesOnlyFields() {
+    ImmutableList<TestRecord> records = createRecords(5);
+    ImmutableSet<Integer> fieldNumbers = ImmutableSet.of(1);
+    List<Message> expected =
+        records
+            .stream()
+            .map(record -> keepFields(record, fieldNumbers))
+            .collect(Collectors.toList());
+    assertEquals(
+        expected,
+        streamRecords(createDocuments(records), 2, new ArrayList<>(), fieldNumbers, null));
+  }
+}
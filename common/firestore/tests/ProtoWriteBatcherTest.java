@@ -0,0 +1,186 @@
+/*
+ * Copyright 2018 The StartupOS Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.startupos.common.firestore.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.SettableApiFuture;
+import com.google.cloud.firestore.WriteResult;
+import com.google.protobuf.Message;
+import com.google.protobuf.Value;
+import com.google.startupos.common.firestore.ProtoWriteBatcher;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ProtoWriteBatcher}, with a fake commit instead of Firestore. */
+@RunWith(JUnit4.class)
+public class ProtoWriteBatcherTest {
+  // Longer than any test, so that writes are only committed when they're flushed.
+  private static final Duration WINDOW = Duration.ofHours(1);
+
+  // Records the batches it commits. Commits succeed right away, unless they're held.
+  private static class FakeCommitter implements ProtoWriteBatcher.Committer {
+    private final List<Map<String, Message>> batches =
+        Collections.synchronizedList(new ArrayList<>());
+    private final List<SettableApiFuture<List<WriteResult>>> commits =
+        Collections.synchronizedList(new ArrayList<>());
+    private volatile boolean holdCommits;
+    private volatile Throwable failure;
+
+    @Override
+    public ApiFuture<List<WriteResult>> commit(Map<String, Message> writes) {
+      batches.add(new LinkedHashMap<>(writes));
+      SettableApiFuture<List<WriteResult>> commit = SettableApiFuture.create();
+      commits.add(commit);
+      if (failure != null) {
+        commit.setException(failure);
+      } else if (!holdCommits) {
+        complete(commit, writes.size());
+      }
+      return commit;
+    }
+
+    private static void complete(SettableApiFuture<List<WriteResult>> commit, int writes) {
+      // The batcher only passes the results on, so they don't have to be real ones.
+      commit.set(Collections.nCopies(writes, null));
+    }
+  }
+
+  private FakeCommitter committer;
+  private ProtoWriteBatcher batcher;
+
+  @Before
+  public void setup() {
+    committer = new FakeCommitter();
+    batcher = new ProtoWriteBatcher(committer, WINDOW);
+  }
+
+  private static Message createProto(int number) {
+    return Value.newBuilder().setNumberValue(number).build();
+  }
+
+  @Test
+  public void testWritesToSameDocumentAreCoalesced() throws Exception {
+    ApiFuture<WriteResult> write1 = batcher.set("collection", "a", createProto(1));
+    ApiFuture<WriteResult> write2 = batcher.set("collection", "b", createProto(2));
+    ApiFuture<WriteResult> write3 = batcher.set("collection", "a", createProto(3));
+    assertTrue(committer.batches.isEmpty());
+
+    batcher.flush();
+    Map<String, Message> expected = new LinkedHashMap<>();
+    expected.put("collection/a", createProto(3));
+    expected.put("collection/b", createProto(2));
+    assertEquals(Collections.singletonList(expected), committer.batches);
+    assertEquals(
+        Arrays.asList("collection/a", "collection/b"),
+        new ArrayList<>(committer.batches.get(0).keySet()));
+    // The coalesced writes get the result of the write they were coalesced into.
+    for (ApiFuture<WriteResult> write : Arrays.asList(write1, write2, write3)) {
+      assertTrue(write.isDone());
+      write.get();
+    }
+  }
+
+  @Test
+  public void testBatchesHaveAtMost500Writes() {
+    List<String> paths = new ArrayList<>();
+    for (int i = 0; i < 1200; i++) {
+      paths.add("collection/" + i);
+      batcher.set(paths.get(i), createProto(i));
+    }
+    batcher.flush();
+
+    List<Integer> batchSizes = new ArrayList<>();
+    List<String> committedPaths = new ArrayList<>();
+    for (Map<String, Message> batch : committer.batches) {
+      batchSizes.add(batch.size());
+      committedPaths.addAll(batch.keySet());
+    }
+    assertEquals(Arrays.asList(500, 500, 200), batchSizes);
+    assertEquals(paths, committedPaths);
+  }
+
+  @Test
+  public void testCommitWaitsForPreviousCommit() throws Exception {
+    committer.holdCommits = true;
+    batcher.set("collection/a", createProto(1));
+    batcher.flush();
+    batcher.set("collection/a", createProto(2));
+    Thread flushThread = new Thread(batcher::flush);
+    flushThread.start();
+    flushThread.join(200);
+    // The second write isn't committed before the first one is.
+    assertTrue(flushThread.isAlive());
+    assertEquals(1, committer.batches.size());
+
+    FakeCommitter.complete(committer.commits.get(0), 1);
+    flushThread.join();
+    assertEquals(2, committer.batches.size());
+    assertEquals(createProto(2), committer.batches.get(1).get("collection/a"));
+  }
+
+  @Test
+  public void testFailedCommitFailsWrites() throws Exception {
+    IllegalStateException error = new IllegalStateException("Commit failed");
+    committer.failure = error;
+    ApiFuture<WriteResult> write1 = batcher.set("collection/a", createProto(1));
+    ApiFuture<WriteResult> write2 = batcher.set("collection/a", createProto(2));
+    batcher.flush();
+    for (ApiFuture<WriteResult> write : Arrays.asList(write1, write2)) {
+      try {
+        write.get();
+        fail("Write should have failed");
+      } catch (ExecutionException e) {
+        assertEquals(error, e.getCause());
+      }
+    }
+  }
+
+  @Test
+  public void testCloseCommitsPendingWrites() throws Exception {
+    committer.holdCommits = true;
+    batcher.set("collection/a", createProto(1));
+    Thread closeThread = new Thread(batcher::close);
+    closeThread.start();
+    closeThread.join(200);
+    // close() waits for the commit to finish.
+    assertTrue(closeThread.isAlive());
+    assertEquals(1, committer.batches.size());
+    FakeCommitter.complete(committer.commits.get(0), 1);
+    closeThread.join();
+
+    // Writes after close() are committed right away.
+    committer.holdCommits = false;
+    ApiFuture<WriteResult> write = batcher.set("collection/b", createProto(2));
+    assertTrue(write.isDone());
+    assertFalse(committer.batches.get(1).isEmpty());
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2018 The StartupOS Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.startupos.common.repo;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.hash.Hashing;
+import com.google.startupos.common.FileUtils;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * A bounded cache of file contents at a commit, for use in front of {@link
+ * Repo#getFileContents(String, String)}.
+ *
+ * <p>Contents of a path at a commit id never change, so entries are never invalidated. Only full
+ * commit ids are cached, since branch names and other revisions can move. Entries are weighed by
+ * their size, and the least recently used ones are evicted when over the memory budget. If a spill
+ * folder is set, evicted entries are written there and read back on the next lookup, up to a
+ * separate disk budget.
+ */
+public class BlobCache {
+  private static final Pattern FULL_COMMIT_ID = Pattern.compile("[0-9a-f]{40}|[0-9a-f]{64}");
+
+  private final FileUtils fileUtils;
+  private final String spillFolder;
+  private final Cache<String, String> memory;
+  // Sizes of spilled entries, by key. Removing an entry deletes its file.
+  private final Cache<String, Integer> disk;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong diskHits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Creates a cache that holds up to `maxBytes` of contents in memory. If `spillFolder` is not
+   * empty, up to `maxSpillBytes` of evicted contents are kept there. Any previous contents of
+   * `spillFolder` are deleted.
+   */
+  public BlobCache(FileUtils fileUtils, long maxBytes, String spillFolder, long maxSpillBytes) {
+    this.fileUtils = fileUtils;
+    this.spillFolder = maxSpillBytes > 0 ? spillFolder : "";
+    memory =
+        CacheBuilder.newBuilder()
+            .maximumWeight(maxBytes)
+            .<String, String>weigher((key, contents) -> weigh(contents))
+            .removalListener(
+                notification -> {
+                  if (notification.getCause() == RemovalCause.SIZE) {
+                    spill(notification.getKey(), notification.getValue());
+                  }
+                })
+            .build();
+    disk =
+        CacheBuilder.newBuilder()
+            .maximumWeight(Math.max(maxSpillBytes, 0))
+            .<String, Integer>weigher((key, size) -> size)
+            .removalListener(
+                notification -> {
+                  if (notification.getCause() != RemovalCause.REPLACED) {
+                    fileUtils.deleteFileOrDirectoryIfExistsUnchecked(
+                        getSpillPath(notification.getKey()));
+                  }
+                })
+            .build();
+    if (!this.spillFolder.isEmpty()) {
+      // We don't know the keys of files from previous runs, so they can't be looked up.
+      fileUtils.deleteFileOrDirectoryIfExistsUnchecked(this.spillFolder);
+      fileUtils.mkdirs(this.spillFolder);
+    }
+  }
+
+  /**
+   * Returns the contents of `path` at `commitId`, calling `loader` to get them if they aren't
+   * cached. Null contents (e.g for a missing file) are returned but not cached.
+   */
+  public String get(String commitId, String path, Supplier<String> loader) {
+    if (!FULL_COMMIT_ID.matcher(commitId).matches()) {
+      return loader.get();
+    }
+    String key = commitId + ":" + path;
+    String contents = memory.getIfPresent(key);
+    if (contents != null) {
+      hits.incrementAndGet();
+      return contents;
+    }
+    contents = unspill(key);
+    if (contents != null) {
+      diskHits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+      contents = loader.get();
+    }
+    if (contents != null) {
+      memory.put(key, contents);
+    }
+    return contents;
+  }
+
+  /** Returns the number of lookups that were found in memory. */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /** Returns the number of lookups that were found in the spill folder. */
+  public long getDiskHits() {
+    return diskHits.get();
+  }
+
+  /** Returns the number of lookups that called the loader. */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "BlobCache hits: %d, disk hits: %d, misses: %d, entries: %d, spilled entries: %d",
+        getHits(), getDiskHits(), getMisses(), memory.size(), disk.size());
+  }
+
+  // Approximate heap size of a string's characters.
+  private static int weigh(String contents) {
+    return (int) Math.min(Integer.MAX_VALUE, 2L * contents.length());
+  }
+
+  private void spill(String key, String contents) {
+    if (spillFolder.isEmpty()) {
+      return;
+    }
+    try {
+      fileUtils.writeString(contents, getSpillPath(key));
+      disk.put(key, weigh(contents));
+    } catch (IOException e) {
+      // The entry is just dropped, as it would be without a spill folder.
+    }
+  }
+
+  // Returns spilled contents of `key` and removes them from disk, since they move back to memory.
+  private String unspill(String key) {
+    if (spillFolder.isEmpty() || disk.getIfPresent(key) == null) {
+      return null;
+    }
+    try {
+      return fileUtils.readFile(getSpillPath(key));
+    } catch (IOException e) {
+      return null;
+    } finally {
+      disk.invalidate(key);
+    }
+  }
+
+  private String getSpillPath(String key) {
+    return fileUtils.joinToAbsolutePath(
+        spillFolder, Hashing.sha256().hashString(key, UTF_8).toString());
+  }
+}
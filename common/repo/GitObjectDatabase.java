@@ -0,0 +1,824 @@
+/*
+ * Copyright 2018 The StartupOS Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.startupos.common.repo;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads a git object database in-process: loose objects, packfiles (v2 pack indexes, memory-mapped)
+ * and refs (loose and packed).
+ *
+ * <p>Only what's needed for read-only operations is supported. Anything unsupported (e.g
+ * alternates, v1 indexes, revision syntax such as `HEAD~1`) throws an {@link IOException}, so
+ * callers can fall back to the git CLI.
+ *
+ * <p>Databases are pooled per git dir, like {@link GitObjectReader}, so pack indexes are mapped
+ * once per repo rather than once per {@link GitRepo} instance.
+ */
+class GitObjectDatabase {
+  static final int OBJ_COMMIT = 1;
+  static final int OBJ_TREE = 2;
+  static final int OBJ_BLOB = 3;
+  static final int OBJ_TAG = 4;
+  private static final int OBJ_OFS_DELTA = 6;
+  private static final int OBJ_REF_DELTA = 7;
+
+  // Mode bits, as in tree entries
+  private static final int S_IFMT = 0170000;
+  private static final int S_IFDIR = 0040000;
+  static final int S_IFGITLINK = 0160000;
+
+  private static final int MAX_POOL_SIZE = 64;
+  private static final int MAX_SYMREF_DEPTH = 5;
+  private static final int INFLATE_CHUNK_SIZE = 8192;
+  // Order in which short ref names are resolved, as in `git rev-parse`.
+  private static final String[] REF_RESOLUTION_RULES = {
+    "%s", "refs/%s", "refs/tags/%s", "refs/heads/%s", "refs/remotes/%s", "refs/remotes/%s/HEAD"
+  };
+
+  private static final Map<String, GitObjectDatabase> pool =
+      new LinkedHashMap<String, GitObjectDatabase>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, GitObjectDatabase> eldest) {
+          return size() > MAX_POOL_SIZE;
+        }
+      };
+
+  /** A git object: its type and uncompressed contents. */
+  static class GitObject {
+    final int type;
+    final byte[] data;
+
+    GitObject(int type, byte[] data) {
+      this.type = type;
+      this.data = data;
+    }
+  }
+
+  /** An entry of a tree object. */
+  static class TreeEntry {
+    final int mode;
+    final String name;
+    final String id;
+
+    TreeEntry(int mode, String name, String id) {
+      this.mode = mode;
+      this.name = name;
+      this.id = id;
+    }
+
+    boolean isTree() {
+      return (mode & S_IFMT) == S_IFDIR;
+    }
+
+    int fileType() {
+      return mode & S_IFMT;
+    }
+  }
+
+  /** The parts of a commit object used for history walks. */
+  static class CommitInfo {
+    final String id;
+    final String tree;
+    final List<String> parents;
+    final long commitTime;
+
+    CommitInfo(String id, String tree, List<String> parents, long commitTime) {
+      this.id = id;
+      this.tree = tree;
+      this.parents = parents;
+      this.commitTime = commitTime;
+    }
+  }
+
+  private final Path gitDir;
+  private final Path objectsDir;
+  private volatile List<PackFile> packs;
+  private PackedRefs packedRefs;
+
+  private GitObjectDatabase(Path gitDir) {
+    this.gitDir = gitDir;
+    objectsDir = gitDir.resolve("objects");
+  }
+
+  /** Returns the shared database for `gitDir`. */
+  static GitObjectDatabase forGitDir(String gitDir) {
+    synchronized (pool) {
+      return pool.computeIfAbsent(gitDir, path -> new GitObjectDatabase(Paths.get(path)));
+    }
+  }
+
+  /** Is this a plain git dir that can be read in-process (e.g not a worktree `.git` file). */
+  boolean isSupported() {
+    return Files.isDirectory(objectsDir)
+        && !Files.exists(objectsDir.resolve("info").resolve("alternates"));
+  }
+
+  /** Reads an object by its full hex id. Returns null if it doesn't exist. */
+  GitObject read(String id) throws IOException {
+    checkObjectId(id);
+    GitObject object = readLoose(id);
+    if (object != null) {
+      return object;
+    }
+    byte[] rawId = toRawId(id);
+    object = readPacked(rawId, getPacks());
+    if (object == null) {
+      // Packs may have been added (e.g by a fetch or gc) since we last listed them.
+      object = readPacked(rawId, rescanPacks());
+    }
+    return object;
+  }
+
+  private GitObject readLoose(String id) throws IOException {
+    Path path = objectsDir.resolve(id.substring(0, 2)).resolve(id.substring(2));
+    byte[] data;
+    try (InputStream in = new InflaterInputStream(Files.newInputStream(path))) {
+      data = readAll(in);
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+    // Header is "<type> <size>\0"
+    int space = indexOf(data, (byte) ' ', 0);
+    int nul = indexOf(data, (byte) 0, space);
+    if (space < 0 || nul < 0) {
+      throw new IOException("Corrupt loose object " + id);
+    }
+    int type = parseTypeName(new String(data, 0, space, UTF_8));
+    return new GitObject(type, Arrays.copyOfRange(data, nul + 1, data.length));
+  }
+
+  private GitObject readPacked(byte[] rawId, List<PackFile> packs) throws IOException {
+    for (PackFile pack : packs) {
+      long offset = pack.findOffset(rawId);
+      if (offset >= 0) {
+        return pack.readAt(offset);
+      }
+    }
+    return null;
+  }
+
+  private List<PackFile> getPacks() throws IOException {
+    List<PackFile> result = packs;
+    if (result == null) {
+      result = rescanPacks();
+    }
+    return result;
+  }
+
+  private synchronized List<PackFile> rescanPacks() throws IOException {
+    Map<Path, PackFile> previous = new HashMap<>();
+    if (packs != null) {
+      for (PackFile pack : packs) {
+        previous.put(pack.indexPath, pack);
+      }
+    }
+    List<PackFile> result = new ArrayList<>();
+    Path packDir = objectsDir.resolve("pack");
+    if (Files.isDirectory(packDir)) {
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(packDir, "*.idx")) {
+        for (Path indexPath : stream) {
+          PackFile pack = previous.get(indexPath);
+          result.add(pack != null ? pack : new PackFile(indexPath));
+        }
+      }
+    }
+    packs = Collections.unmodifiableList(result);
+    return packs;
+  }
+
+  /** Reads an object, peeling tags, and checks that it's of `expectedType`. */
+  GitObject readPeeled(String id, int expectedType) throws IOException {
+    GitObject object = read(id);
+    while (object != null && object.type == OBJ_TAG && expectedType != OBJ_TAG) {
+      object = read(getHeaderValue(object.data, "object"));
+    }
+    return checkType(object, id, expectedType);
+  }
+
+  private static GitObject checkType(GitObject object, String id, int expectedType)
+      throws IOException {
+    if (object == null) {
+      throw new IOException("Object " + id + " does not exist");
+    }
+    if (object.type != expectedType) {
+      throw new IOException(
+          String.format("Object %s is of type %d, expected %d", id, object.type, expectedType));
+    }
+    return object;
+  }
+
+  CommitInfo readCommit(String id) throws IOException {
+    // `id` may be a tag, so it's peeled here, to know the id of the commit.
+    String commitId = id;
+    GitObject object = read(commitId);
+    while (object != null && object.type == OBJ_TAG) {
+      commitId = getHeaderValue(object.data, "object");
+      object = read(commitId);
+    }
+    byte[] data = checkType(object, id, OBJ_COMMIT).data;
+    String tree = null;
+    List<String> parents = new ArrayList<>(1);
+    long commitTime = 0;
+    int lineStart = 0;
+    while (lineStart < data.length && data[lineStart] != '\n') {
+      int lineEnd = indexOf(data, (byte) '\n', lineStart);
+      if (lineEnd < 0) {
+        lineEnd = data.length;
+      }
+      String line = new String(data, lineStart, lineEnd - lineStart, UTF_8);
+      if (line.startsWith("tree ")) {
+        tree = line.substring("tree ".length());
+      } else if (line.startsWith("parent ")) {
+        parents.add(line.substring("parent ".length()));
+      } else if (line.startsWith("committer ")) {
+        // committer <name> <<email>> <timestamp> <timezone>
+        String[] parts = line.split(" ");
+        commitTime = Long.parseLong(parts[parts.length - 2]);
+      }
+      lineStart = lineEnd + 1;
+    }
+    if (tree == null) {
+      throw new IOException("Commit " + id + " has no tree");
+    }
+    return new CommitInfo(commitId, tree, parents, commitTime);
+  }
+
+  List<TreeEntry> readTree(String id) throws IOException {
+    byte[] data = readPeeled(id, OBJ_TREE).data;
+    List<TreeEntry> result = new ArrayList<>();
+    // Each entry is "<octal mode> <name>\0<20 byte id>"
+    int position = 0;
+    while (position < data.length) {
+      int space = indexOf(data, (byte) ' ', position);
+      int nul = indexOf(data, (byte) 0, space);
+      if (space < 0 || nul < 0 || nul + 21 > data.length) {
+        throw new IOException("Corrupt tree " + id);
+      }
+      int mode = Integer.parseInt(new String(data, position, space - position, UTF_8), 8);
+      String name = new String(data, space + 1, nul - space - 1, UTF_8);
+      result.add(new TreeEntry(mode, name, toHexId(data, nul + 1)));
+      position = nul + 21;
+    }
+    return result;
+  }
+
+  /** Finds the tree entry at `path` under the tree of `commitId`. Returns null if not found. */
+  TreeEntry findEntry(String commitId, String path) throws IOException {
+    String treeId = readCommit(commitId).tree;
+    TreeEntry entry = new TreeEntry(S_IFDIR, "", treeId);
+    for (String name : path.split("/")) {
+      if (name.isEmpty()) {
+        continue;
+      }
+      if (!entry.isTree()) {
+        return null;
+      }
+      TreeEntry child = null;
+      for (TreeEntry candidate : readTree(entry.id)) {
+        if (candidate.name.equals(name)) {
+          child = candidate;
+          break;
+        }
+      }
+      if (child == null) {
+        return null;
+      }
+      entry = child;
+    }
+    return entry;
+  }
+
+  /**
+   * Resolves a ref, short ref name (e.g `master`, `remotes/origin/D5`) or full object id to an
+   * object id. Returns null if there's no such ref.
+   */
+  String resolve(String name) throws IOException {
+    if (isObjectId(name)) {
+      return name;
+    }
+    if (name.isEmpty()
+        || name.startsWith("/")
+        || name.contains("..")
+        || name.matches(".*[:^~@{}\\\\*?\\[\\s].*")) {
+      throw new IOException("Unsupported revision: " + name);
+    }
+    for (String rule : REF_RESOLUTION_RULES) {
+      if (rule.equals("%s") && !name.startsWith("refs/") && !name.matches("[A-Z_]+")) {
+        // Other files directly under the git dir (e.g config) are not refs.
+        continue;
+      }
+      String id = readRef(String.format(rule, name), 0);
+      if (id != null) {
+        return id;
+      }
+    }
+    return null;
+  }
+
+  private String readRef(String refName, int depth) throws IOException {
+    if (depth > MAX_SYMREF_DEPTH) {
+      throw new IOException("Too many levels of symbolic refs: " + refName);
+    }
+    String value = readLooseRef(refName);
+    if (value == null) {
+      return getPackedRefs().get(refName);
+    }
+    if (value.startsWith("ref: ")) {
+      return readRef(value.substring("ref: ".length()), depth + 1);
+    }
+    if (!isObjectId(value)) {
+      throw new IOException("Unexpected value of ref " + refName + ": " + value);
+    }
+    return value;
+  }
+
+  // Returns the trimmed contents of a loose ref file, or null if there is none.
+  private String readLooseRef(String refName) throws IOException {
+    Path path = gitDir.resolve(refName);
+    if (!Files.isRegularFile(path)) {
+      return null;
+    }
+    return new String(Files.readAllBytes(path), UTF_8).trim();
+  }
+
+  /** Returns the target of symbolic ref `refName` (e.g HEAD), or null if it's not symbolic. */
+  String readSymbolicRef(String refName) throws IOException {
+    String value = readLooseRef(refName);
+    if (value != null && value.startsWith("ref: ")) {
+      return value.substring("ref: ".length());
+    }
+    return null;
+  }
+
+  /**
+   * Lists refs under `prefix` (e.g `refs/heads/`), sorted by name. Values are object ids, or "ref:
+   * <target>" for symbolic refs.
+   */
+  TreeMap<String, String> listRefs(String prefix) throws IOException {
+    TreeMap<String, String> result = new TreeMap<>();
+    for (Map.Entry<String, String> entry : getPackedRefs().entrySet()) {
+      if (entry.getKey().startsWith(prefix)) {
+        result.put(entry.getKey(), entry.getValue());
+      }
+    }
+    Path root = gitDir.resolve(prefix);
+    if (Files.isDirectory(root)) {
+      List<Path> files;
+      try (Stream<Path> paths = Files.walk(root)) {
+        files = paths.filter(Files::isRegularFile).collect(Collectors.toList());
+      }
+      for (Path path : files) {
+        String refName = gitDir.relativize(path).toString().replace('\\', '/');
+        // Loose refs override packed ones
+        result.put(refName, new String(Files.readAllBytes(path), UTF_8).trim());
+      }
+    }
+    return result;
+  }
+
+  private synchronized Map<String, String> getPackedRefs() throws IOException {
+    Path path = gitDir.resolve("packed-refs");
+    if (!Files.isRegularFile(path)) {
+      packedRefs = null;
+      return Collections.emptyMap();
+    }
+    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    long modified = attributes.lastModifiedTime().toMillis();
+    if (packedRefs == null
+        || packedRefs.modified != modified
+        || packedRefs.size != attributes.size()) {
+      Map<String, String> refs = new HashMap<>();
+      for (String line : new String(Files.readAllBytes(path), UTF_8).split("\n")) {
+        // Skip the header and peeled values of tags ("^<id>")
+        if (line.isEmpty() || line.startsWith("#") || line.startsWith("^")) {
+          continue;
+        }
+        int space = line.indexOf(' ');
+        if (space > 0) {
+          refs.put(line.substring(space + 1).trim(), line.substring(0, space));
+        }
+      }
+      packedRefs = new PackedRefs(refs, modified, attributes.size());
+    }
+    return packedRefs.refs;
+  }
+
+  private static class PackedRefs {
+    private final Map<String, String> refs;
+    private final long modified;
+    private final long size;
+
+    PackedRefs(Map<String, String> refs, long modified, long size) {
+      this.refs = refs;
+      this.modified = modified;
+      this.size = size;
+    }
+  }
+
+  /** A packfile and its (v2) index, both memory-mapped. */
+  private class PackFile {
+    private static final int INDEX_HEADER_SIZE = 8;
+    private static final int FANOUT_SIZE = 256 * 4;
+
+    private final Path indexPath;
+    private final ByteBuffer index;
+    private final ByteBuffer pack;
+    private final int objectCount;
+
+    PackFile(Path indexPath) throws IOException {
+      this.indexPath = indexPath;
+      String packName = indexPath.getFileName().toString().replaceFirst("\\.idx$", ".pack");
+      index = map(indexPath);
+      pack = map(indexPath.resolveSibling(packName));
+      // v2 index starts with "\377tOc" and version 2
+      if (index.getInt(0) != 0xff744f63 || index.getInt(4) != 2) {
+        throw new IOException("Unsupported pack index version: " + indexPath);
+      }
+      objectCount = index.getInt(INDEX_HEADER_SIZE + 255 * 4);
+      // Ids, CRCs and 4-byte offsets of all objects must fit, so that findOffset() can't read past
+      // the end of a truncated index.
+      if (objectCount < 0
+          || (long) INDEX_HEADER_SIZE + FANOUT_SIZE + objectCount * 28L > index.limit()) {
+        throw new IOException("Corrupt pack index " + indexPath);
+      }
+    }
+
+    private ByteBuffer map(Path path) throws IOException {
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        if (channel.size() > Integer.MAX_VALUE) {
+          throw new IOException("Packs over 2GB are not supported: " + path);
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        return buffer.asReadOnlyBuffer();
+      }
+    }
+
+    /** Returns the offset of the object in the pack, or -1 if it isn't in this pack. */
+    long findOffset(byte[] rawId) throws IOException {
+      int firstByte = rawId[0] & 0xff;
+      int low = firstByte == 0 ? 0 : index.getInt(INDEX_HEADER_SIZE + (firstByte - 1) * 4);
+      int high = index.getInt(INDEX_HEADER_SIZE + firstByte * 4);
+      if (low < 0 || high > objectCount) {
+        throw new IOException("Corrupt pack index " + indexPath);
+      }
+      int idsStart = INDEX_HEADER_SIZE + FANOUT_SIZE;
+      while (low < high) {
+        int middle = (low + high) >>> 1;
+        int compare = compareId(rawId, idsStart + middle * 20);
+        if (compare == 0) {
+          return getOffset(middle);
+        } else if (compare < 0) {
+          high = middle;
+        } else {
+          low = middle + 1;
+        }
+      }
+      return -1;
+    }
+
+    private int compareId(byte[] rawId, int position) {
+      for (int i = 0; i < 20; i++) {
+        int compare = (rawId[i] & 0xff) - (index.get(position + i) & 0xff);
+        if (compare != 0) {
+          return compare;
+        }
+      }
+      return 0;
+    }
+
+    private long getOffset(int position) throws IOException {
+      // Ids are followed by CRCs, then 4-byte offsets, then 8-byte offsets for large packs.
+      int offsetsStart = INDEX_HEADER_SIZE + FANOUT_SIZE + objectCount * 24;
+      int offset = index.getInt(offsetsStart + position * 4);
+      if ((offset & 0x80000000) == 0) {
+        return offset;
+      }
+      long largeOffsetPosition = offsetsStart + objectCount * 4L + (offset & 0x7fffffff) * 8L;
+      if (largeOffsetPosition + 8 > index.limit()) {
+        throw new IOException("Corrupt pack index " + indexPath);
+      }
+      return index.getLong((int) largeOffsetPosition);
+    }
+
+    // Returns the byte at `position` of the pack, checking that it isn't past the end.
+    private int readByte(int position) throws IOException {
+      if (position < 0 || position >= pack.limit()) {
+        throw new IOException("Truncated pack " + indexPath);
+      }
+      return pack.get(position) & 0xff;
+    }
+
+    GitObject readAt(long offset) throws IOException {
+      // Deltas are resolved iteratively: collect the chain down to a base object, then apply the
+      // deltas from the base up.
+      List<byte[]> deltas = new ArrayList<>();
+      GitObject base = null;
+      long entryOffset = offset;
+      while (base == null) {
+        if (entryOffset < 0 || entryOffset >= pack.limit()) {
+          throw new IOException("Object offset out of bounds in " + indexPath);
+        }
+        int position = (int) entryOffset;
+        int c = readByte(position++);
+        int type = (c >> 4) & 7;
+        long size = c & 15;
+        int shift = 4;
+        while ((c & 0x80) != 0) {
+          if (shift > 56) {
+            throw new IOException("Object size too long in " + indexPath);
+          }
+          c = readByte(position++);
+          size |= (long) (c & 0x7f) << shift;
+          shift += 7;
+        }
+        if (type == OBJ_OFS_DELTA) {
+          c = readByte(position++);
+          long baseDistance = c & 0x7f;
+          while ((c & 0x80) != 0) {
+            if (baseDistance > entryOffset) {
+              break;
+            }
+            c = readByte(position++);
+            baseDistance = ((baseDistance + 1) << 7) | (c & 0x7f);
+          }
+          // The base comes before the delta, so a distance of 0 would loop forever.
+          if (baseDistance <= 0 || baseDistance > entryOffset) {
+            throw new IOException("Delta base offset out of bounds in " + indexPath);
+          }
+          deltas.add(inflate(position, size));
+          entryOffset -= baseDistance;
+        } else if (type == OBJ_REF_DELTA) {
+          byte[] baseId = new byte[20];
+          for (int i = 0; i < 20; i++) {
+            baseId[i] = (byte) readByte(position + i);
+          }
+          deltas.add(inflate(position + 20, size));
+          base = read(toHexId(baseId, 0));
+          if (base == null) {
+            throw new IOException("Missing delta base " + toHexId(baseId, 0));
+          }
+        } else if (type >= OBJ_COMMIT && type <= OBJ_TAG) {
+          base = new GitObject(type, inflate(position, size));
+        } else {
+          throw new IOException("Unknown pack object type " + type + " in " + indexPath);
+        }
+      }
+      byte[] data = base.data;
+      for (int i = deltas.size() - 1; i >= 0; i--) {
+        data = applyDelta(data, deltas.get(i));
+      }
+      return new GitObject(base.type, data);
+    }
+
+    private byte[] inflate(int position, long size) throws IOException {
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("Object too large: " + size);
+      }
+      if (position > pack.limit()) {
+        throw new IOException("Truncated pack " + indexPath);
+      }
+      byte[] result = new byte[(int) size];
+      Inflater inflater = new Inflater();
+      try {
+        ByteBuffer input = pack.duplicate();
+        input.position(position);
+        byte[] chunk = new byte[INFLATE_CHUNK_SIZE];
+        byte[] overflow = new byte[1];
+        int resultLength = 0;
+        while (!inflater.finished()) {
+          if (inflater.needsInput()) {
+            int length = Math.min(chunk.length, input.remaining());
+            if (length == 0) {
+              throw new IOException("Truncated pack " + indexPath);
+            }
+            input.get(chunk, 0, length);
+            inflater.setInput(chunk, 0, length);
+          }
+          if (resultLength < result.length) {
+            resultLength += inflater.inflate(result, resultLength, result.length - resultLength);
+          } else if (inflater.inflate(overflow) > 0) {
+            // The result is full, but the stream may still need input to reach its end marker.
+            throw new IOException("Object larger than its header says in " + indexPath);
+          }
+          if (inflater.needsDictionary()) {
+            throw new IOException("Corrupt pack " + indexPath);
+          }
+        }
+        if (resultLength != result.length) {
+          throw new IOException("Object smaller than its header says in " + indexPath);
+        }
+        return result;
+      } catch (DataFormatException e) {
+        throw new IOException("Corrupt pack " + indexPath, e);
+      } finally {
+        inflater.end();
+      }
+    }
+  }
+
+  /**
+   * Applies a git delta (a list of copy/insert instructions) to `base`. Throws IOException if the
+   * delta is truncated or corrupt, e.g if it copies past the end of `base`.
+   */
+  static byte[] applyDelta(byte[] base, byte[] delta) throws IOException {
+    int[] position = {0};
+    long baseSize = readDeltaSize(delta, position);
+    long resultSize = readDeltaSize(delta, position);
+    if (baseSize != base.length) {
+      throw new IOException("Delta base size mismatch");
+    }
+    if (resultSize > Integer.MAX_VALUE) {
+      throw new IOException("Delta result too large: " + resultSize);
+    }
+    byte[] result = new byte[(int) resultSize];
+    int resultPosition = 0;
+    int i = position[0];
+    while (i < delta.length) {
+      int command = delta[i++] & 0xff;
+      if ((command & 0x80) != 0) {
+        // Copy from base. Bits 0-3 say which offset bytes follow, bits 4-6 which size bytes.
+        long copyOffset = 0;
+        int copySize = 0;
+        for (int bit = 0; bit < 4; bit++) {
+          if ((command & (1 << bit)) != 0) {
+            copyOffset |= (long) readDeltaByte(delta, i++) << (bit * 8);
+          }
+        }
+        for (int bit = 0; bit < 3; bit++) {
+          if ((command & (0x10 << bit)) != 0) {
+            copySize |= readDeltaByte(delta, i++) << (bit * 8);
+          }
+        }
+        if (copySize == 0) {
+          copySize = 0x10000;
+        }
+        if (copyOffset + copySize > base.length) {
+          throw new IOException("Delta copies past the end of its base");
+        }
+        if (copySize > result.length - resultPosition) {
+          throw new IOException("Delta result size mismatch");
+        }
+        System.arraycopy(base, (int) copyOffset, result, resultPosition, copySize);
+        resultPosition += copySize;
+      } else if (command != 0) {
+        // Insert the next `command` bytes
+        if (command > delta.length - i) {
+          throw new IOException("Truncated delta");
+        }
+        if (command > result.length - resultPosition) {
+          throw new IOException("Delta result size mismatch");
+        }
+        System.arraycopy(delta, i, result, resultPosition, command);
+        i += command;
+        resultPosition += command;
+      } else {
+        throw new IOException("Invalid delta command 0");
+      }
+    }
+    if (resultPosition != result.length) {
+      throw new IOException("Delta result size mismatch");
+    }
+    return result;
+  }
+
+  private static int readDeltaByte(byte[] delta, int position) throws IOException {
+    if (position >= delta.length) {
+      throw new IOException("Truncated delta");
+    }
+    return delta[position] & 0xff;
+  }
+
+  private static long readDeltaSize(byte[] delta, int[] position) throws IOException {
+    long size = 0;
+    int shift = 0;
+    int c;
+    do {
+      if (shift > 56) {
+        throw new IOException("Delta size too long");
+      }
+      c = readDeltaByte(delta, position[0]++);
+      size |= (long) (c & 0x7f) << shift;
+      shift += 7;
+    } while ((c & 0x80) != 0);
+    return size;
+  }
+
+  /** Returns the value of header `key` of a commit or tag object. */
+  private static String getHeaderValue(byte[] data, String key) throws IOException {
+    for (String line : new String(data, UTF_8).split("\n")) {
+      if (line.isEmpty()) {
+        break;
+      }
+      if (line.startsWith(key + " ")) {
+        return line.substring(key.length() + 1);
+      }
+    }
+    throw new IOException("Object has no " + key + " header");
+  }
+
+  private static int parseTypeName(String type) throws IOException {
+    switch (type) {
+      case "commit":
+        return OBJ_COMMIT;
+      case "tree":
+        return OBJ_TREE;
+      case "blob":
+        return OBJ_BLOB;
+      case "tag":
+        return OBJ_TAG;
+      default:
+        throw new IOException("Unknown object type " + type);
+    }
+  }
+
+  static boolean isObjectId(String string) {
+    return string.length() == 40 && string.matches("[0-9a-f]+");
+  }
+
+  private static void checkObjectId(String id) throws IOException {
+    if (!isObjectId(id)) {
+      throw new IOException("Not a full object id: " + id);
+    }
+  }
+
+  private static byte[] toRawId(String id) {
+    byte[] result = new byte[20];
+    for (int i = 0; i < 20; i++) {
+      result[i] = (byte) Integer.parseInt(id.substring(i * 2, i * 2 + 2), 16);
+    }
+    return result;
+  }
+
+  private static String toHexId(byte[] data, int start) {
+    StringBuilder result = new StringBuilder(40);
+    for (int i = start; i < start + 20; i++) {
+      result.append(Character.forDigit((data[i] >> 4) & 0xf, 16));
+      result.append(Character.forDigit(data[i] & 0xf, 16));
+    }
+    return result.toString();
+  }
+
+  private static int indexOf(byte[] data, byte value, int start) {
+    if (start < 0) {
+      return -1;
+    }
+    for (int i = start; i < data.length; i++) {
+      if (data[i] == value) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    byte[] buffer = new byte[INFLATE_CHUNK_SIZE];
+    int count;
+    while ((count = in.read(buffer)) != -1) {
+      result.write(buffer, 0, count);
+    }
+    return result.toByteArray();
+  }
+}
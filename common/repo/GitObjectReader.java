@@ -0,0 +1,244 @@
+/*
+ * Copyright 2018 The StartupOS Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.startupos.common.repo;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads git objects through long-lived `git cat-file --batch` and `git cat-file --batch-check`
+ * processes, so that object lookups are a pipe round-trip instead of a process launch.
+ *
+ * <p>Readers are pooled per git dir and shared by all {@link GitRepo} instances of the same repo.
+ * The pool is bounded, and the least recently used reader is closed when it's full. A reader whose
+ * process fails is closed and removed from the pool, and a new one is started on next use.
+ */
+class GitObjectReader implements Closeable {
+  // Maximum number of repos that have open cat-file processes at the same time.
+  private static final int MAX_POOL_SIZE = 64;
+
+  private static final Map<String, GitObjectReader> pool =
+      new LinkedHashMap<String, GitObjectReader>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, GitObjectReader> eldest) {
+          if (size() > MAX_POOL_SIZE) {
+            eldest.getValue().close();
+            return true;
+          }
+          return false;
+        }
+      };
+
+  /** Header of an object, as returned by cat-file. */
+  static class ObjectInfo {
+    final String id;
+    final String type;
+    final long size;
+
+    ObjectInfo(String id, String type, long size) {
+      this.id = id;
+      this.type = type;
+      this.size = size;
+    }
+  }
+
+  private final String gitDir;
+  private final BatchProcess batch;
+  private final BatchProcess batchCheck;
+
+  private GitObjectReader(String gitDir) {
+    this.gitDir = gitDir;
+    batch = new BatchProcess(gitDir, "--batch");
+    batchCheck = new BatchProcess(gitDir, "--batch-check");
+  }
+
+  /** Returns the shared reader for `gitDir`, starting one if needed. */
+  static GitObjectReader forGitDir(String gitDir) {
+    synchronized (pool) {
+      return pool.computeIfAbsent(gitDir, GitObjectReader::new);
+    }
+  }
+
+  /** Closes and removes the reader of `gitDir`, if there is one. */
+  static void release(String gitDir) {
+    GitObjectReader reader;
+    synchronized (pool) {
+      reader = pool.remove(gitDir);
+    }
+    if (reader != null) {
+      reader.close();
+    }
+  }
+
+  /**
+   * Returns the header of the object named by `object` (e.g `<commit>`, `<commit>:<path>` or
+   * `refs/heads/<branch>`), or null if it doesn't exist.
+   */
+  ObjectInfo getInfo(String object) throws IOException {
+    checkObjectName(object);
+    try {
+      synchronized (batchCheck) {
+        return batchCheck.request(object, false).info;
+      }
+    } catch (IOException e) {
+      discard();
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the contents of the blob named by `object`, or null if it doesn't exist or isn't a
+   * blob.
+   */
+  byte[] getBlob(String object) throws IOException {
+    checkObjectName(object);
+    try {
+      Response response;
+      synchronized (batch) {
+        response = batch.request(object, true);
+      }
+      if (response.info == null || !response.info.type.equals("blob")) {
+        return null;
+      }
+      return response.contents;
+    } catch (IOException e) {
+      discard();
+      throw e;
+    }
+  }
+
+  // Closes this reader and removes it from the pool, so the next lookup starts fresh processes.
+  private void discard() {
+    synchronized (pool) {
+      pool.remove(gitDir, this);
+    }
+    close();
+  }
+
+  @Override
+  public void close() {
+    batch.close();
+    batchCheck.close();
+  }
+
+  // cat-file reads one object name per line, so names with newlines can't be sent.
+  private static void checkObjectName(String object) throws IOException {
+    if (object.isEmpty() || object.indexOf('\n') >= 0) {
+      throw new IOException("Invalid object name for cat-file: " + object);
+    }
+  }
+
+  private static class Response {
+    private ObjectInfo info;
+    private byte[] contents;
+  }
+
+  /** A single `git cat-file` process, started lazily. Not thread-safe. */
+  private static class BatchProcess {
+    private final String[] command;
+    private Process process;
+    private OutputStream stdin;
+    private InputStream stdout;
+
+    BatchProcess(String gitDir, String mode) {
+      command = new String[] {"git", "--git-dir=" + gitDir, "cat-file", mode};
+    }
+
+    private void start() throws IOException {
+      ProcessBuilder processBuilder = new ProcessBuilder(command);
+      // Nothing reads stderr, so it's discarded to avoid the process blocking on a full pipe.
+      processBuilder.redirectError(ProcessBuilder.Redirect.to(new File("/dev/null")));
+      process = processBuilder.start();
+      stdin = process.getOutputStream();
+      stdout = new BufferedInputStream(process.getInputStream());
+    }
+
+    Response request(String object, boolean readContents) throws IOException {
+      if (process == null || !process.isAlive()) {
+        close();
+        start();
+      }
+      stdin.write((object + "\n").getBytes(UTF_8));
+      stdin.flush();
+      Response response = new Response();
+      // Header is either "<id> <type> <size>", "<object> missing" or "<object> ambiguous".
+      String header = readLine();
+      if (header.endsWith(" missing") || header.endsWith(" ambiguous")) {
+        return response;
+      }
+      String[] parts = header.split(" ");
+      if (parts.length != 3) {
+        throw new IOException(
+            String.format(
+                "Unexpected cat-file header for %s: %s\n%s",
+                object, header, Arrays.asList(command)));
+      }
+      response.info = new ObjectInfo(parts[0], parts[1], Long.parseLong(parts[2]));
+      if (readContents) {
+        response.contents = readBytes((int) response.info.size);
+        // Contents are followed by a newline
+        if (stdout.read() != '\n') {
+          throw new IOException("Missing newline after contents of " + object);
+        }
+      }
+      return response;
+    }
+
+    private String readLine() throws IOException {
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      int b;
+      while ((b = stdout.read()) != '\n') {
+        if (b == -1) {
+          throw new EOFException("cat-file process exited: " + Arrays.asList(command));
+        }
+        line.write(b);
+      }
+      return new String(line.toByteArray(), UTF_8);
+    }
+
+    private byte[] readBytes(int size) throws IOException {
+      byte[] result = new byte[size];
+      int offset = 0;
+      while (offset < size) {
+        int count = stdout.read(result, offset, size - offset);
+        if (count == -1) {
+          throw new EOFException("cat-file process exited: " + Arrays.asList(command));
+        }
+        offset += count;
+      }
+      return result;
+    }
+
+    void close() {
+      if (process != null) {
+        process.destroy();
+        process = null;
+      }
+    }
+  }
+}
@@ -16,8 +16,8 @@
 
 package com.google.startupos.common.repo;
 
-import com.google.auto.factory.AutoFactory;
-import com.google.auto.factory.Provided;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
@@ -25,13 +25,16 @@ import com.google.startupos.common.FileUtils;
 import com.google.startupos.common.Strings;
 import com.google.startupos.common.repo.Protos.Commit;
 import com.google.startupos.common.repo.Protos.File;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
 
-@AutoFactory
+/** A {@link Repo} that runs git commands. Created by {@link GitRepoFactory}. */
 public class GitRepo implements Repo {
   // Git warnings to ignore:
   // TODO: Figure out if this warning is really harmless, as git does checkout the branch.
@@ -44,15 +47,19 @@ public class GitRepo implements Repo {
   private final List<CommandResult> commandLog = new ArrayList<>();
   private final FileUtils fileUtils;
   private final String repoPath;
+  private final String gitDir;
 
-  GitRepo(@Provided FileUtils fileUtils, String repoPath) {
+  GitRepo(FileUtils fileUtils, String repoPath) {
     this.fileUtils = fileUtils;
     this.repoPath = repoPath;
-    gitCommandBase =
-        Arrays.asList(
-            "git",
-            "--git-dir=" + fileUtils.joinToAbsolutePath(repoPath, ".git"),
-            "--work-tree=" + repoPath);
+    gitDir = fileUtils.joinToAbsolutePath(repoPath, ".git");
+    gitCommandBase = Arrays.asList("git", "--git-dir=" + gitDir, "--work-tree=" + repoPath);
+  }
+
+  // Object lookups go through a shared cat-file process. Returns null if the object doesn't exist.
+  // Throws IOException if the process failed, in which case callers fall back to a git command.
+  private GitObjectReader.ObjectInfo getObjectInfo(String object) throws IOException {
+    return GitObjectReader.forGitDir(gitDir).getInfo(object);
   }
 
   private class CommandResult {
@@ -94,6 +101,35 @@ public class GitRepo implements Repo {
     return result;
   }
 
+  private interface OutputParser<T> {
+    T parse(Reader stdout) throws IOException;
+  }
+
+  // Runs a command whose stdout is parsed while it's read, rather than buffered into a string.
+  private <T> T runCommand(List<String> command, OutputParser<T> parser) {
+    CommandResult result = new CommandResult();
+    T parsed = null;
+    try {
+      List<String> fullCommand = new ArrayList<>(gitCommandBase);
+      fullCommand.addAll(command);
+      result.command = String.join(" ", fullCommand);
+      result.stdout = "<parsed>";
+      Process process = Runtime.getRuntime().exec(fullCommand.toArray(new String[0]));
+      try (Reader stdout =
+          new BufferedReader(new InputStreamReader(process.getInputStream(), UTF_8))) {
+        parsed = parser.parse(stdout);
+      }
+      result.stderr = fileUtils.streamToString(process.getErrorStream());
+    } catch (IOException e) {
+      throw new RuntimeException(formatError(result), e);
+    }
+    if (!result.stderr.replaceAll(AMBIGUOUS_REFNAME, "").isEmpty()) {
+      throw new RuntimeException(formatError(result));
+    }
+    commandLog.add(result);
+    return parsed;
+  }
+
   private String formatError(CommandResult commandResult) {
     StringBuilder result = new StringBuilder();
     result.append(String.format("\n%s\n%s", commandResult.command, commandResult.stderr));
@@ -147,19 +183,89 @@ public class GitRepo implements Repo {
 
   @Override
   public ImmutableList<Commit> getCommits(String branch) {
-    ImmutableList<String> commits = getCommitIds(branch);
+    if (!branch.startsWith("remotes/origin")) {
+      branch = "refs/heads/" + branch;
+    }
+    // We don't need the file list for the first commit, which is the last commit from master.
     ImmutableList.Builder<Commit> result = ImmutableList.builder();
-    for (String commit : commits) {
-      if (commit.equals(commits.get(0))) {
-        // We don't need the file list for the first commit, which is the last commit from master.
-        result.add(Commit.newBuilder().setId(commit).build());
-      } else {
-        result.add(Commit.newBuilder().setId(commit).addAllFile(getFilesInCommit(commit)).build());
+    for (String commit : splitLines(runCommand("merge-base refs/heads/master " + branch).stdout)) {
+      result.add(Commit.newBuilder().setId(commit).build());
+    }
+    // All other commits and their files are read from a single `git log` stream, rather than
+    // running `git diff-tree` per commit. We disable renames and root commit diffs so that files
+    // are the same as in getFilesInCommit().
+    ImmutableList<Commit> commits =
+        runCommand(
+            Arrays.asList(
+                "-c",
+                "log.showRoot=false",
+                "log",
+                "-z",
+                "--name-status",
+                "--no-renames",
+                "--pretty=format:%H",
+                "refs/heads/master.." + branch),
+            this::parseLogWithFiles);
+    // We reverse to return by chronological order
+    return result.addAll(commits.reverse()).build();
+  }
+
+  /**
+   * Parses output of `git log -z --name-status --pretty=format:%H`, as it's read. Each commit is
+   * "<id>", followed by "\n" and "<status>\0<filename>\0" for each file if it has files. Commits
+   * are separated by "\0".
+   */
+  private ImmutableList<Commit> parseLogWithFiles(Reader stdout) throws IOException {
+    ImmutableList.Builder<Commit> result = ImmutableList.builder();
+    StringBuilder token = new StringBuilder();
+    int next = readToken(stdout, token);
+    while (token.length() > 0 || next != -1) {
+      if (token.length() == 0) {
+        // Separator between commits
+        next = readToken(stdout, token);
+        continue;
       }
+      String commitId = token.toString();
+      Commit.Builder commit = Commit.newBuilder().setId(commitId);
+      if (next == '\n') {
+        // Read "<status>\0<filename>\0" pairs until the empty token that ends the commit.
+        while (readToken(stdout, token) != -1 && token.length() > 0) {
+          String status = token.toString();
+          // With -z, filenames aren't quoted and can contain newlines
+          readToken(stdout, token, false);
+          try {
+            commit.addFile(
+                File.newBuilder()
+                    .setAction(getAction(status))
+                    .setCommitId(commitId)
+                    .setFilename(token.toString()));
+          } catch (IllegalStateException e) {
+            throw new IllegalStateException("getCommits failed for commit " + commitId, e);
+          }
+        }
+      }
+      result.add(commit.build());
+      next = readToken(stdout, token);
     }
     return result.build();
   }
 
+  private static int readToken(Reader reader, StringBuilder token) throws IOException {
+    return readToken(reader, token, true);
+  }
+
+  // Reads into `token` until a "\0" (or "\n" if `stopAtNewline`) and returns the delimiter, or -1
+  // at end of stream.
+  private static int readToken(Reader reader, StringBuilder token, boolean stopAtNewline)
+      throws IOException {
+    token.setLength(0);
+    int c;
+    while ((c = reader.read()) != -1 && c != '\0' && !(stopAtNewline && c == '\n')) {
+      token.append((char) c);
+    }
+    return c;
+  }
+
   @Override
   public ImmutableList<File> getUncommittedFiles() {
     ImmutableList.Builder<File> files = ImmutableList.builder();
@@ -198,7 +304,7 @@ public class GitRepo implements Repo {
     return files.build();
   }
 
-  private File.Action getAction(String changeType) {
+  File.Action getAction(String changeType) {
     switch (changeType) {
       case "A":
         return File.Action.ADD;
@@ -225,8 +331,13 @@ public class GitRepo implements Repo {
 
   @Override
   public boolean commitExists(String commitId) {
-    CommandResult commandResult = runCommand("cat-file -t " + commitId, false);
-    return commandResult.stdout.trim().startsWith("commit");
+    try {
+      GitObjectReader.ObjectInfo info = getObjectInfo(commitId);
+      return info != null && info.type.equals("commit");
+    } catch (IOException e) {
+      CommandResult commandResult = runCommand("cat-file -t " + commitId, false);
+      return commandResult.stdout.trim().startsWith("commit");
+    }
   }
 
   @Override
@@ -322,6 +433,65 @@ public class GitRepo implements Repo {
     runCommand("reset " + ref);
   }
 
+  /**
+   * Merges the changes from `basePath` to `otherPath` into `currentPath`, like `git merge-file`.
+   * Conflicting changes are written to `currentPath` between conflict markers. Returns whether
+   * there were no conflicts.
+   */
+  public boolean mergeFile(String currentPath, String basePath, String otherPath) {
+    runCommand(
+        Arrays.asList(
+            "merge-file",
+            "-q",
+            "-L",
+            "local",
+            "-L",
+            "base",
+            "-L",
+            "upstream",
+            currentPath,
+            basePath,
+            otherPath),
+        false);
+    return !fileUtils.readFileUnchecked(currentPath).contains("<<<<<<< local\n");
+  }
+
+  /** Returns whether a merge with conflicts is in progress, i.e it wasn't committed or aborted. */
+  public boolean isMerging() {
+    return !runCommand("rev-parse -q --verify MERGE_HEAD", false).stdout.trim().isEmpty();
+  }
+
+  /**
+   * Saves all uncommitted changes, including untracked files, in a stash with `message`, and
+   * removes them from the working tree. Unlike in-memory copies, the stash survives if the process
+   * is killed.
+   */
+  public void stash(String message) {
+    runCommand(
+        Arrays.asList("stash", "push", "--include-untracked", "--quiet", "--message", message));
+  }
+
+  /** Returns whether the most recent stash is one that was saved with `message`. */
+  public boolean hasStash(String message) {
+    ImmutableList<String> stashes =
+        splitLines(runCommand(Arrays.asList("stash", "list", "--format=%s")).stdout);
+    // Stash subjects are prefixed with the branch, e.g "On master: <message>".
+    return !stashes.isEmpty() && stashes.get(0).endsWith(": " + message);
+  }
+
+  /**
+   * Applies the most recent stash to the working tree. The stash is dropped only if it's applied
+   * without conflicts.
+   */
+  public void popStash() {
+    runCommand("stash pop --quiet");
+  }
+
+  /** Drops the most recent stash. */
+  public void dropStash() {
+    runCommand("stash drop --quiet");
+  }
+
   @Override
   public void resetHard(String commitId) {
     runCommand("reset --hard " + commitId);
@@ -334,8 +504,13 @@ public class GitRepo implements Repo {
 
   @Override
   public boolean branchExists(String name) {
-    // Note: Can also be done directly using 'git rev-parse --verify -q <branch name>'
-    return listBranches().contains(name);
+    // Branch names are as in listBranches(), i.e local branches or "remotes/<remote>/<branch>".
+    String ref = name.startsWith("remotes/") ? "refs/" + name : "refs/heads/" + name;
+    try {
+      return getObjectInfo(ref) != null;
+    } catch (IOException e) {
+      return listBranches().contains(name);
+    }
   }
 
   @Override
@@ -351,7 +526,11 @@ public class GitRepo implements Repo {
   @Override
   public boolean fileExists(String commitId, String path) {
     if (!commitId.isEmpty()) {
-      return runCommand("--no-pager show " + commitId + ":" + path, false).stderr.isEmpty();
+      try {
+        return getObjectInfo(commitId + ":" + path) != null;
+      } catch (IOException e) {
+        return runCommand("--no-pager show " + commitId + ":" + path, false).stderr.isEmpty();
+      }
     } else {
       return fileUtils.fileExists(fileUtils.joinToAbsolutePath(repoPath, path));
     }
@@ -365,12 +544,37 @@ public class GitRepo implements Repo {
   @Override
   public String getFileContents(String commitId, String path) {
     if (!commitId.isEmpty()) {
+      try {
+        byte[] contents = GitObjectReader.forGitDir(gitDir).getBlob(commitId + ":" + path);
+        if (contents != null) {
+          return new String(contents, UTF_8);
+        }
+      } catch (IOException e) {
+        // Fall back to git show below
+      }
+      // Also used for missing files and non-blobs, so that errors and output stay the same.
       return runCommand("--no-pager show " + commitId + ":" + path).stdout;
     } else {
       return fileUtils.readFileUnchecked(fileUtils.joinToAbsolutePath(repoPath, path));
     }
   }
 
+  @Override
+  public String getBlobId(String commitId, String path) {
+    if (commitId.isEmpty()) {
+      return null;
+    }
+    try {
+      GitObjectReader.ObjectInfo info = getObjectInfo(commitId + ":" + path);
+      return info != null && info.type.equals("blob") ? info.id : null;
+    } catch (IOException e) {
+      List<String> command =
+          Arrays.asList("rev-parse", "--verify", "--quiet", commitId + ":" + path + "^{blob}");
+      String id = runCommand(command, false).stdout.trim();
+      return id.isEmpty() ? null : id;
+    }
+  }
+
   private static String removeDiffHeader(String diff) {
     // Remove first 4 header lines, but leave the hunk header (e.g @@ -5,83 +5,83 @@)
     return diff.substring(Strings.ordinalIndexOf(diff, "\n", 4) + 1);
@@ -477,6 +681,14 @@ public class GitRepo implements Repo {
 
   @Override
   public String getMostRecentCommitOfBranch(String branch) {
+    try {
+      GitObjectReader.ObjectInfo info = getObjectInfo(branch);
+      if (info != null) {
+        return info.id;
+      }
+    } catch (IOException e) {
+      // Fall back to rev-parse below
+    }
     return runCommand("rev-parse " + branch).stdout.trim();
   }
 
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2018 The StartupOS Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.startupos.common.repo;
+
+import com.google.startupos.common.FileUtils;
+import com.google.startupos.common.flags.Flag;
+import com.google.startupos.common.flags.FlagDesc;
+import javax.inject.Inject;
+import javax.inject.Provider;
+
+/**
+ * Creates {@link GitRepo}s.
+ *
+ * <p>By default, repos run a git command for every operation. Callers that do many reads (e.g the
+ * reviewer's local server and job) can opt in to reading the object database in-process, see
+ * {@link InProcessGitRepo}, e.g with --in_process_git_reads.
+ */
+public class GitRepoFactory {
+  @FlagDesc(
+      name = "in_process_git_reads",
+      description = "Read git objects in-process instead of running git commands for reads")
+  public static final Flag<Boolean> inProcessGitReads = Flag.create(false);
+
+  private final Provider<FileUtils> fileUtilsProvider;
+
+  @Inject
+  public GitRepoFactory(Provider<FileUtils> fileUtilsProvider) {
+    this.fileUtilsProvider = fileUtilsProvider;
+  }
+
+  public GitRepo create(String repoPath) {
+    return create(repoPath, false);
+  }
+
+  /**
+   * Creates a repo at `repoPath`. If `inProcessReads` is true, read-only operations read the object
+   * database in-process, while write operations still run git commands.
+   */
+  public GitRepo create(String repoPath, boolean inProcessReads) {
+    if (inProcessReads) {
+      return new InProcessGitRepo(fileUtilsProvider.get(), repoPath);
+    }
+    return new GitRepo(fileUtilsProvider.get(), repoPath);
+  }
+}
@@ -0,0 +1,504 @@
+/*
+ * Copyright 2018 The StartupOS Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.startupos.common.repo;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.startupos.common.FileUtils;
+import com.google.startupos.common.repo.GitObjectDatabase.CommitInfo;
+import com.google.startupos.common.repo.GitObjectDatabase.TreeEntry;
+import com.google.startupos.common.repo.Protos.Commit;
+import com.google.startupos.common.repo.Protos.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A {@link GitRepo} that reads the object database in-process for read-only hot paths, instead of
+ * running a git command per call. Write operations, and reads that can't be done in-process (see
+ * {@link GitObjectDatabase}), run git commands as in {@link GitRepo}.
+ */
+public class InProcessGitRepo extends GitRepo {
+  // Like git, we keep walking history a little after only uninteresting commits are left, in case
+  // commit timestamps are skewed.
+  private static final int WALK_SLOP = 5;
+  // Flags for finding merge bases
+  private static final int FROM_FIRST = 1;
+  private static final int FROM_SECOND = 2;
+  private static final int STALE = 4;
+
+  private final GitObjectDatabase database;
+  private final boolean supported;
+
+  InProcessGitRepo(FileUtils fileUtils, String repoPath) {
+    super(fileUtils, repoPath);
+    database = GitObjectDatabase.forGitDir(fileUtils.joinToAbsolutePath(repoPath, ".git"));
+    supported = database.isSupported();
+  }
+
+  @Override
+  public String getFileContents(String commitId, String path) {
+    if (supported && !commitId.isEmpty()) {
+      try {
+        TreeEntry entry = findFile(commitId, path);
+        if (entry != null && !entry.isTree()) {
+          return new String(
+              database.readPeeled(entry.id, GitObjectDatabase.OBJ_BLOB).data, UTF_8);
+        }
+      } catch (IOException e) {
+        // Fall back to git below
+      }
+    }
+    // Also used for missing files and trees, so that errors and output stay the same.
+    return super.getFileContents(commitId, path);
+  }
+
+  @Override
+  public boolean fileExists(String commitId, String path) {
+    if (supported && !commitId.isEmpty()) {
+      try {
+        if (database.resolve(commitId) != null) {
+          return findFile(commitId, path) != null;
+        }
+      } catch (IOException e) {
+        // Fall back to git below
+      }
+    }
+    return super.fileExists(commitId, path);
+  }
+
+  @Override
+  public String getBlobId(String commitId, String path) {
+    if (supported && !commitId.isEmpty()) {
+      try {
+        TreeEntry entry = findFile(commitId, path);
+        return entry != null && !entry.isTree() ? entry.id : null;
+      } catch (IOException e) {
+        // Fall back to git below
+      }
+    }
+    return super.getBlobId(commitId, path);
+  }
+
+  // Returns the tree entry at `path`, or null if there is none or it's a submodule.
+  private TreeEntry findFile(String commitId, String path) throws IOException {
+    String id = database.resolve(commitId);
+    if (id == null) {
+      throw new IOException("Cannot resolve " + commitId);
+    }
+    TreeEntry entry = database.findEntry(id, path);
+    if (entry == null || entry.fileType() == GitObjectDatabase.S_IFGITLINK) {
+      return null;
+    }
+    return entry;
+  }
+
+  @Override
+  public ImmutableList<String> getCommitIds(String branch) {
+    if (supported) {
+      try {
+        ImmutableList<String> result = readCommitIds(branch);
+        if (result != null) {
+          return result;
+        }
+      } catch (IOException e) {
+        // Fall back to git below
+      }
+    }
+    return super.getCommitIds(branch);
+  }
+
+  @Override
+  public ImmutableList<Commit> getCommits(String branch) {
+    if (supported) {
+      try {
+        ImmutableList<String> commitIds = readCommitIds(branch);
+        if (commitIds != null) {
+          ImmutableList.Builder<Commit> result = ImmutableList.builder();
+          for (int i = 0; i < commitIds.size(); i++) {
+            Commit.Builder commit = Commit.newBuilder().setId(commitIds.get(i));
+            // We don't need the file list for the first commit, which is the last commit from
+            // master.
+            if (i > 0) {
+              commit.addAllFile(readFilesInCommit(commitIds.get(i)));
+            }
+            result.add(commit.build());
+          }
+          return result.build();
+        }
+      } catch (IOException e) {
+        // Fall back to git below
+      }
+    }
+    return super.getCommits(branch);
+  }
+
+  // Same as `git merge-base master <branch>` followed by `git log master..<branch>` in
+  // chronological order. Returns null if master or the branch don't exist.
+  private ImmutableList<String> readCommitIds(String branch) throws IOException {
+    String ref = branch.startsWith("remotes/origin") ? branch : "refs/heads/" + branch;
+    String masterId = database.resolve("refs/heads/master");
+    String branchId = database.resolve(ref);
+    if (masterId == null || branchId == null) {
+      return null;
+    }
+    ImmutableList<String> commits = ImmutableList.copyOf(log(masterId, branchId)).reverse();
+    String mergeBase = getMergeBase(masterId, branchId);
+    ImmutableList.Builder<String> result = ImmutableList.builder();
+    if (mergeBase != null) {
+      result.add(mergeBase);
+    }
+    return result.addAll(commits).build();
+  }
+
+  @Override
+  public ImmutableList<File> getFilesInCommit(String commitId) {
+    if (supported) {
+      try {
+        if (database.resolve(commitId) != null) {
+          return readFilesInCommit(commitId);
+        }
+      } catch (IOException e) {
+        // Fall back to git below
+      }
+    }
+    return super.getFilesInCommit(commitId);
+  }
+
+  private ImmutableList<File> readFilesInCommit(String commitId) throws IOException {
+    String id = database.resolve(commitId);
+    if (id == null) {
+      throw new IOException("Cannot resolve " + commitId);
+    }
+    CommitInfo commit = database.readCommit(id);
+    ImmutableList.Builder<File> result = ImmutableList.builder();
+    // Like `git diff-tree`, root and merge commits have no files listed.
+    if (commit.parents.size() == 1) {
+      String parentTree = database.readCommit(commit.parents.get(0)).tree;
+      List<String> lines = new ArrayList<>();
+      diffTrees(parentTree, commit.tree, "", lines);
+      for (String line : lines) {
+        result.add(
+            File.newBuilder()
+                .setAction(getAction(line.substring(0, 1)))
+                .setCommitId(commitId)
+                .setFilename(line.substring(2))
+                .build());
+      }
+    }
+    return result.build();
+  }
+
+  /**
+   * Adds "<status>\t<path>" lines for files that differ between two trees, recursively, in the
+   * same order as `git diff-tree -r --name-status`.
+   */
+  private void diffTrees(String oldTreeId, String newTreeId, String prefix, List<String> result)
+      throws IOException {
+    if (oldTreeId != null && oldTreeId.equals(newTreeId)) {
+      return;
+    }
+    List<TreeEntry> oldEntries =
+        oldTreeId == null ? ImmutableList.of() : database.readTree(oldTreeId);
+    List<TreeEntry> newEntries =
+        newTreeId == null ? ImmutableList.of() : database.readTree(newTreeId);
+    int oldIndex = 0;
+    int newIndex = 0;
+    while (oldIndex < oldEntries.size() || newIndex < newEntries.size()) {
+      TreeEntry oldEntry = oldIndex < oldEntries.size() ? oldEntries.get(oldIndex) : null;
+      TreeEntry newEntry = newIndex < newEntries.size() ? newEntries.get(newIndex) : null;
+      int compare;
+      if (oldEntry == null) {
+        compare = 1;
+      } else if (newEntry == null) {
+        compare = -1;
+      } else {
+        compare = compareEntries(oldEntry, newEntry);
+      }
+      if (compare < 0) {
+        addEntry("D", oldEntry, prefix, result);
+        oldIndex++;
+      } else if (compare > 0) {
+        addEntry("A", newEntry, prefix, result);
+        newIndex++;
+      } else {
+        if (oldEntry.isTree()) {
+          diffTrees(oldEntry.id, newEntry.id, prefix + oldEntry.name + "/", result);
+        } else if (!oldEntry.id.equals(newEntry.id) || oldEntry.mode != newEntry.mode) {
+          if (oldEntry.fileType() != newEntry.fileType()) {
+            // git reports type changes (e.g file to symlink) as "T", which we don't support.
+            throw new IOException("Type change of " + prefix + oldEntry.name);
+          }
+          result.add("M\t" + prefix + oldEntry.name);
+        }
+        oldIndex++;
+        newIndex++;
+      }
+    }
+  }
+
+  private void addEntry(String status, TreeEntry entry, String prefix, List<String> result)
+      throws IOException {
+    if (entry.isTree()) {
+      if (status.equals("D")) {
+        diffTrees(entry.id, null, prefix + entry.name + "/", result);
+      } else {
+        diffTrees(null, entry.id, prefix + entry.name + "/", result);
+      }
+    } else {
+      result.add(status + "\t" + prefix + entry.name);
+    }
+  }
+
+  // Compares entries in git's tree order, where trees are compared as if they end with "/".
+  private static int compareEntries(TreeEntry entry1, TreeEntry entry2) {
+    byte[] name1 = (entry1.name + (entry1.isTree() ? "/" : "\0")).getBytes(UTF_8);
+    byte[] name2 = (entry2.name + (entry2.isTree() ? "/" : "\0")).getBytes(UTF_8);
+    for (int i = 0; i < Math.min(name1.length, name2.length); i++) {
+      int compare = (name1[i] & 0xff) - (name2[i] & 0xff);
+      if (compare != 0) {
+        return compare;
+      }
+    }
+    return name1.length - name2.length;
+  }
+
+  private static class QueuedCommit {
+    private final CommitInfo commit;
+    private final long sequence;
+
+    QueuedCommit(CommitInfo commit, long sequence) {
+      this.commit = commit;
+      this.sequence = sequence;
+    }
+  }
+
+  // Newest commits first, and in insertion order for equal timestamps, as in git's walks.
+  private static PriorityQueue<QueuedCommit> newCommitQueue() {
+    return new PriorityQueue<>(
+        Comparator.<QueuedCommit>comparingLong(queued -> -queued.commit.commitTime)
+            .thenComparingLong(queued -> queued.sequence));
+  }
+
+  /** Returns commits reachable from `includeId` but not from `excludeId`, newest first. */
+  private List<String> log(String excludeId, String includeId) throws IOException {
+    Map<String, CommitInfo> parsed = new HashMap<>();
+    Set<String> uninteresting = new HashSet<>();
+    // Ids of commits in the queue, and how many of them are not uninteresting, so that the walk
+    // can tell when only uninteresting commits are left without scanning the queue.
+    Set<String> queued = new HashSet<>();
+    int interestingQueued = 0;
+    PriorityQueue<QueuedCommit> queue = newCommitQueue();
+    long sequence = 0;
+    CommitInfo excludeCommit = database.readCommit(excludeId);
+    CommitInfo includeCommit = database.readCommit(includeId);
+    uninteresting.add(excludeCommit.id);
+    for (CommitInfo commit : new CommitInfo[] {excludeCommit, includeCommit}) {
+      if (!parsed.containsKey(commit.id)) {
+        parsed.put(commit.id, commit);
+        queue.add(new QueuedCommit(commit, sequence++));
+        queued.add(commit.id);
+        if (!uninteresting.contains(commit.id)) {
+          interestingQueued++;
+        }
+      }
+    }
+    List<String> result = new ArrayList<>();
+    int slop = WALK_SLOP;
+    while (!queue.isEmpty()) {
+      CommitInfo commit = queue.poll().commit;
+      queued.remove(commit.id);
+      boolean isUninteresting = uninteresting.contains(commit.id);
+      if (!isUninteresting) {
+        result.add(commit.id);
+        interestingQueued--;
+      }
+      for (String parentId : commit.parents) {
+        if (isUninteresting) {
+          interestingQueued -= markUninteresting(parentId, parsed, uninteresting, queued);
+        }
+        if (!parsed.containsKey(parentId)) {
+          CommitInfo parent = database.readCommit(parentId);
+          parsed.put(parentId, parent);
+          queue.add(new QueuedCommit(parent, sequence++));
+          queued.add(parentId);
+          if (!uninteresting.contains(parentId)) {
+            interestingQueued++;
+          }
+        }
+      }
+      if (interestingQueued == 0) {
+        if (--slop == 0) {
+          break;
+        }
+      } else {
+        slop = WALK_SLOP;
+      }
+    }
+    // Commits may have been found to be uninteresting after they were added.
+    result.removeIf(uninteresting::contains);
+    return result;
+  }
+
+  // Marks a commit and its already parsed ancestors as uninteresting. Returns how many of the
+  // newly marked commits are in `queued`.
+  private int markUninteresting(
+      String id, Map<String, CommitInfo> parsed, Set<String> uninteresting, Set<String> queued) {
+    int markedQueued = 0;
+    Deque<String> stack = new ArrayDeque<>();
+    stack.push(id);
+    while (!stack.isEmpty()) {
+      String current = stack.pop();
+      if (uninteresting.add(current)) {
+        if (queued.contains(current)) {
+          markedQueued++;
+        }
+        if (parsed.containsKey(current)) {
+          for (String parentId : parsed.get(current).parents) {
+            stack.push(parentId);
+          }
+        }
+      }
+    }
+    return markedQueued;
+  }
+
+  private CommitInfo readCommit(String id, Map<String, CommitInfo> parsed) throws IOException {
+    CommitInfo commit = parsed.get(id);
+    if (commit == null) {
+      commit = database.readCommit(id);
+      parsed.put(id, commit);
+    }
+    return commit;
+  }
+
+  /** Returns the best common ancestor of two commits, or null if there is none. */
+  private String getMergeBase(String id1, String id2) throws IOException {
+    Map<String, CommitInfo> parsed = new HashMap<>();
+    CommitInfo commit1 = readCommit(id1, parsed);
+    CommitInfo commit2 = readCommit(id2, parsed);
+    if (commit1.id.equals(commit2.id)) {
+      return commit1.id;
+    }
+    Map<String, Integer> flags = new HashMap<>();
+    PriorityQueue<QueuedCommit> queue = newCommitQueue();
+    // How many times each commit is in the queue, and how many queue entries are of commits that
+    // aren't stale, so that the walk can tell when it's done without scanning the queue.
+    Map<String, Integer> queuedCounts = new HashMap<>();
+    int nonStaleQueued = 0;
+    long sequence = 0;
+    flags.put(commit1.id, FROM_FIRST);
+    flags.put(commit2.id, FROM_SECOND);
+    for (CommitInfo commit : new CommitInfo[] {commit1, commit2}) {
+      queue.add(new QueuedCommit(commit, sequence++));
+      queuedCounts.put(commit.id, 1);
+      nonStaleQueued++;
+    }
+    List<String> candidates = new ArrayList<>();
+    while (nonStaleQueued > 0) {
+      CommitInfo commit = queue.poll().commit;
+      queuedCounts.merge(commit.id, -1, Integer::sum);
+      int commitFlags = flags.get(commit.id) & (FROM_FIRST | FROM_SECOND | STALE);
+      if ((commitFlags & STALE) == 0) {
+        nonStaleQueued--;
+      }
+      if (commitFlags == (FROM_FIRST | FROM_SECOND)) {
+        if (!candidates.contains(commit.id)) {
+          candidates.add(commit.id);
+        }
+        // Ancestors of a common ancestor are not the best common ancestor.
+        commitFlags |= STALE;
+      }
+      for (String parentId : commit.parents) {
+        int parentFlags = flags.getOrDefault(parentId, 0);
+        if ((parentFlags & commitFlags) == commitFlags) {
+          continue;
+        }
+        int newFlags = parentFlags | commitFlags;
+        flags.put(parentId, newFlags);
+        int parentQueued = queuedCounts.getOrDefault(parentId, 0);
+        if ((parentFlags & STALE) == 0 && (newFlags & STALE) != 0) {
+          // Entries of the parent that are already queued became stale.
+          nonStaleQueued -= parentQueued;
+        }
+        queue.add(new QueuedCommit(readCommit(parentId, parsed), sequence++));
+        queuedCounts.put(parentId, parentQueued + 1);
+        if ((newFlags & STALE) == 0) {
+          nonStaleQueued++;
+        }
+      }
+    }
+    for (String candidate : candidates) {
+      if ((flags.get(candidate) & STALE) == 0) {
+        return candidate;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public ImmutableList<String> listBranches() {
+    if (supported) {
+      try {
+        // A detached HEAD is listed by git with a description, so we leave that to git.
+        if (database.readSymbolicRef("HEAD") != null) {
+          TreeMap<String, String> refs = database.listRefs("refs/heads/");
+          refs.putAll(database.listRefs("refs/remotes/"));
+          ImmutableList.Builder<String> result = ImmutableList.builder();
+          for (Map.Entry<String, String> ref : refs.entrySet()) {
+            // Same format as `git branch -a`, e.g "remotes/origin/HEAD -> origin/master".
+            String name = ref.getKey().replaceFirst("^refs/(heads/)?", "");
+            if (ref.getValue().startsWith("ref: ")) {
+              String target = ref.getValue().substring("ref: ".length());
+              name += " -> " + target.replaceFirst("^refs/(heads|remotes|tags)/", "");
+            }
+            result.add(name);
+          }
+          return result.build();
+        }
+      } catch (IOException e) {
+        // Fall back to git below
+      }
+    }
+    return super.listBranches();
+  }
+
+  @Override
+  public String getMostRecentCommitOfBranch(String branch) {
+    if (supported) {
+      try {
+        String id = database.resolve(branch);
+        if (id != null) {
+          return id;
+        }
+      } catch (IOException e) {
+        // Fall back to git below
+      }
+    }
+    return super.getMostRecentCommitOfBranch(branch);
+  }
+}
@@ -95,6 +95,12 @@ public interface Repo {
 
   String getFileContents(String commitId, String path);
 
+  /**
+   * Returns the object id of the file at `path` in `commitId`, or null if there is no such file.
+   * Files that aren't committed (empty `commitId`) have no object id, so null is returned.
+   */
+  String getBlobId(String commitId, String path);
+
   /** Get current branch name. */
   String currentBranch();
 
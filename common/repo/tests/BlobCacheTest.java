@@ -0,0 +1,106 @@
+/*
+ * Copyright 2018 The StartupOS Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.startupos.common.repo.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.common.base.Strings;
+import com.google.startupos.common.CommonModule;
+import com.google.startupos.common.FileUtils;
+import com.google.startupos.common.repo.BlobCache;
+import dagger.Component;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.inject.Singleton;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BlobCacheTest {
+  private static final String COMMIT_ID = "0123456789abcdef0123456789abcdef01234567";
+  private static final String TEST_FILE = "test_file.txt";
+  private static final String TEST_FILE_CONTENTS = "Some test file contents\n";
+
+  private FileUtils fileUtils;
+  private String spillFolder;
+  private AtomicInteger loads;
+
+  @Before
+  public void setup() throws IOException {
+    fileUtils = DaggerBlobCacheTest_TestComponent.create().getFileUtils();
+    spillFolder = Files.createTempDirectory("temp").toAbsolutePath().toString();
+    loads = new AtomicInteger();
+  }
+
+  @Singleton
+  @Component(modules = CommonModule.class)
+  interface TestComponent {
+    FileUtils getFileUtils();
+  }
+
+  private String load(String contents) {
+    loads.incrementAndGet();
+    return contents;
+  }
+
+  @Test
+  public void testSecondGetIsHit() {
+    BlobCache cache = new BlobCache(fileUtils, 1024 * 1024, "", 0);
+    assertEquals(
+        TEST_FILE_CONTENTS, cache.get(COMMIT_ID, TEST_FILE, () -> load(TEST_FILE_CONTENTS)));
+    assertEquals(TEST_FILE_CONTENTS, cache.get(COMMIT_ID, TEST_FILE, () -> load("Other contents")));
+    assertEquals(1, loads.get());
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  public void testBranchNameIsNotCached() {
+    BlobCache cache = new BlobCache(fileUtils, 1024 * 1024, "", 0);
+    cache.get("master", TEST_FILE, () -> load(TEST_FILE_CONTENTS));
+    assertEquals("Other contents", cache.get("master", TEST_FILE, () -> load("Other contents")));
+    assertEquals(2, loads.get());
+    assertEquals(0, cache.getHits());
+  }
+
+  @Test
+  public void testNullIsNotCached() {
+    BlobCache cache = new BlobCache(fileUtils, 1024 * 1024, "", 0);
+    assertNull(cache.get(COMMIT_ID, TEST_FILE, () -> load(null)));
+    assertEquals(
+        TEST_FILE_CONTENTS, cache.get(COMMIT_ID, TEST_FILE, () -> load(TEST_FILE_CONTENTS)));
+    assertEquals(2, loads.get());
+  }
+
+  @Test
+  public void testEvictedEntriesAreReadFromSpillFolder() {
+    // Each file is 2KB in memory, so most of them are evicted.
+    BlobCache cache = new BlobCache(fileUtils, 4 * 1024, spillFolder, 1024 * 1024);
+    for (int i = 0; i < 20; i++) {
+      String contents = Strings.repeat(String.valueOf(i % 10), 1024);
+      cache.get(COMMIT_ID, "file" + i, () -> load(contents));
+    }
+    for (int i = 0; i < 20; i++) {
+      assertEquals(
+          Strings.repeat(String.valueOf(i % 10), 1024),
+          cache.get(COMMIT_ID, "file" + i, () -> load("")));
+    }
+    assertEquals(20, loads.get());
+    assertEquals(20, cache.getHits() + cache.getDiskHits());
+  }
+}
@@ -168,6 +168,26 @@ public class GitRepoTest {
         repo.getCommits(TEST_BRANCH));
   }
 
+  @Test
+  public void testGetCommitsHasSameFilesAsGetFilesInCommit() {
+    repo.switchBranch(TEST_BRANCH);
+    fileUtils.writeStringUnchecked(
+        TEST_FILE_CONTENTS, fileUtils.joinToAbsolutePath(repoFolder, TEST_FILE));
+    fileUtils.writeStringUnchecked(
+        TEST_FILE_CONTENTS, fileUtils.joinToAbsolutePath(repoFolder, "folder/other_file.txt"));
+    repo.commit(repo.getUncommittedFiles(), COMMIT_MESSAGE);
+    fileUtils.deleteFileOrDirectoryIfExistsUnchecked(
+        fileUtils.joinToAbsolutePath(repoFolder, TEST_FILE));
+    fileUtils.writeStringUnchecked(
+        "More content", fileUtils.joinToAbsolutePath(repoFolder, "folder/other_file.txt"));
+    repo.commit(repo.getUncommittedFiles(), COMMIT_MESSAGE);
+    ImmutableList<Commit> commits = repo.getCommits(TEST_BRANCH);
+    assertEquals(3, commits.size());
+    for (Commit commit : commits.subList(1, commits.size())) {
+      assertEquals(repo.getFilesInCommit(commit.getId()), commit.getFileList());
+    }
+  }
+
   @Test
   public void testAddFile() {
     repo.switchBranch(TEST_BRANCH);
@@ -199,6 +219,21 @@ public class GitRepoTest {
     assertEquals(TEST_FILE_CONTENTS, repo.getFileContents(commitId, TEST_FILE));
   }
 
+  @Test
+  public void testGetFileContentsOfLaterCommit() {
+    assertFalse(repo.fileExists(initialCommit, TEST_FILE));
+    assertFalse(repo.branchExists(TEST_BRANCH));
+    repo.switchBranch(TEST_BRANCH);
+    fileUtils.writeStringUnchecked(
+        TEST_FILE_CONTENTS, fileUtils.joinToAbsolutePath(repoFolder, TEST_FILE));
+    repo.commit(repo.getUncommittedFiles(), COMMIT_MESSAGE);
+    String commitId = gitRepo.getHeadCommitId();
+    // Objects and branches created after the first lookups should be visible.
+    assertTrue(repo.branchExists(TEST_BRANCH));
+    assertTrue(repo.fileExists(commitId, TEST_FILE));
+    assertEquals(TEST_FILE_CONTENTS, repo.getFileContents(commitId, TEST_FILE));
+  }
+
   @Test
   public void testGetUncommittedFilesWhenAddedFile() {
     repo.switchBranch(TEST_BRANCH);
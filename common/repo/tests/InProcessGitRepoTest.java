@@ -0,0 +1,315 @@
+/*
+ * Copyright 2018 The StartupOS Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.startupos.common.repo.tests;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.io.BaseEncoding;
+import com.google.startupos.common.CommonModule;
+import com.google.startupos.common.FileUtils;
+import com.google.startupos.common.repo.GitRepo;
+import com.google.startupos.common.repo.GitRepoFactory;
+import com.google.startupos.common.repo.InProcessGitRepo;
+import dagger.Component;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import javax.inject.Singleton;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests that {@link InProcessGitRepo} returns the same results as {@link GitRepo}. */
+public class InProcessGitRepoTest {
+  private static final String TEST_BRANCH = "test_branch";
+  private static final String COMMIT_MESSAGE = "Some commit message";
+
+  private GitRepo gitRepo;
+  private GitRepo inProcessRepo;
+  private String repoFolder;
+  private FileUtils fileUtils;
+
+  @Before
+  public void setup() throws IOException {
+    TestComponent component = DaggerInProcessGitRepoTest_TestComponent.create();
+    GitRepoFactory gitRepoFactory = component.getFactory();
+    fileUtils = component.getFileUtils();
+    repoFolder = Files.createTempDirectory("temp").toAbsolutePath().toString();
+    gitRepo = gitRepoFactory.create(repoFolder);
+    gitRepo.init();
+    gitRepo.setUserDataForTesting();
+    inProcessRepo = gitRepoFactory.create(repoFolder, true);
+    writeFile("initial_commit.txt", "initial commit");
+    writeFile("folder/file.txt", "file in folder");
+    gitRepo.commit(gitRepo.getUncommittedFiles(), "Initial commit");
+  }
+
+  @Singleton
+  @Component(modules = CommonModule.class)
+  interface TestComponent {
+    GitRepoFactory getFactory();
+
+    FileUtils getFileUtils();
+  }
+
+  private void writeFile(String path, String contents) {
+    fileUtils.writeStringUnchecked(contents, fileUtils.joinToAbsolutePath(repoFolder, path));
+  }
+
+  private void commitChangesOnTestBranch() throws IOException {
+    gitRepo.switchBranch(TEST_BRANCH);
+    writeFile("folder/file.txt", "modified file in folder");
+    writeFile("folder/sub/new.txt", "new file");
+    writeFile("new.txt", "new file");
+    fileUtils.deleteFileOrDirectoryIfExists(
+        fileUtils.joinToAbsolutePath(repoFolder, "initial_commit.txt"));
+    gitRepo.commit(gitRepo.getUncommittedFiles(), COMMIT_MESSAGE);
+    writeFile("new.txt", "new file, modified");
+    gitRepo.commit(gitRepo.getUncommittedFiles(), COMMIT_MESSAGE);
+  }
+
+  // Commits versions of a file that differ in one line, so that git stores them as deltas when
+  // it packs them.
+  private void commitSimilarVersions() {
+    for (int version = 0; version < 5; version++) {
+      StringBuilder contents = new StringBuilder();
+      for (int line = 0; line < 200; line++) {
+        contents.append(line == version ? "changed line " : "line ").append(line).append('\n');
+      }
+      writeFile("similar.txt", contents.toString());
+      gitRepo.commit(gitRepo.getUncommittedFiles(), COMMIT_MESSAGE);
+    }
+  }
+
+  private void runGit(String... args) throws IOException, InterruptedException {
+    List<String> command = new ArrayList<>();
+    command.add("git");
+    command.addAll(Arrays.asList(args));
+    Process process =
+        new ProcessBuilder(command).directory(Paths.get(repoFolder).toFile()).inheritIO().start();
+    assertEquals(0, process.waitFor());
+  }
+
+  private static byte[] deflate(byte[] data) {
+    Deflater deflater = new Deflater();
+    deflater.setInput(data);
+    deflater.finish();
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    byte[] chunk = new byte[1024];
+    while (!deflater.finished()) {
+      result.write(chunk, 0, deflater.deflate(chunk));
+    }
+    deflater.end();
+    return result.toByteArray();
+  }
+
+  // Writes a pack object header: the type and size, 4 bits of the size in the first byte and 7 in
+  // each next one.
+  private static void writeObjectHeader(ByteArrayOutputStream out, int type, int size) {
+    int c = (type << 4) | (size & 15);
+    size >>= 4;
+    while (size > 0) {
+      out.write(c | 0x80);
+      c = size & 0x7f;
+      size >>= 7;
+    }
+    out.write(c);
+  }
+
+  // Writes a pack, and its index, in which the blob with `blobId` is a delta that copies past the
+  // end of its base. The loose blob is removed, so that the pack is the only copy of it.
+  private void writeCorruptDeltaPack(String blobId) throws Exception {
+    byte[] base = "delta base".getBytes(UTF_8);
+    // Base size, result size, then a copy of `base.length + 10` bytes from offset 0.
+    byte[] delta = {
+      (byte) base.length, (byte) (base.length + 10), (byte) 0x91, 0, (byte) (base.length + 10)
+    };
+    ByteArrayOutputStream pack = new ByteArrayOutputStream();
+    DataOutputStream packHeader = new DataOutputStream(pack);
+    packHeader.writeBytes("PACK");
+    packHeader.writeInt(2);
+    packHeader.writeInt(2);
+    int baseOffset = pack.size();
+    writeObjectHeader(pack, 3, base.length);
+    pack.write(deflate(base));
+    int deltaOffset = pack.size();
+    writeObjectHeader(pack, 6, delta.length);
+    // The distance back to the base, which fits in one byte.
+    pack.write(deltaOffset - baseOffset);
+    pack.write(deflate(delta));
+    byte[] packBytes = pack.toByteArray();
+    byte[] packChecksum = MessageDigest.getInstance("SHA-1").digest(packBytes);
+    pack.write(packChecksum);
+
+    // A v2 index of both objects, sorted by id.
+    MessageDigest digest = MessageDigest.getInstance("SHA-1");
+    digest.update(("blob " + base.length + "\0").getBytes(UTF_8));
+    String baseId = BaseEncoding.base16().lowerCase().encode(digest.digest(base));
+    TreeMap<String, int[]> entries = new TreeMap<>();
+    entries.put(baseId, new int[] {baseOffset, deltaOffset});
+    entries.put(blobId, new int[] {deltaOffset, packBytes.length});
+    ByteArrayOutputStream index = new ByteArrayOutputStream();
+    DataOutputStream indexData = new DataOutputStream(index);
+    indexData.writeInt(0xff744f63);
+    indexData.writeInt(2);
+    // Fanout: the number of ids whose first byte is at most i.
+    for (int i = 0; i < 256; i++) {
+      int count = 0;
+      for (String id : entries.keySet()) {
+        if (Integer.parseInt(id.substring(0, 2), 16) <= i) {
+          count++;
+        }
+      }
+      indexData.writeInt(count);
+    }
+    for (String id : entries.keySet()) {
+      indexData.write(BaseEncoding.base16().lowerCase().decode(id));
+    }
+    for (int[] range : entries.values()) {
+      CRC32 crc = new CRC32();
+      crc.update(packBytes, range[0], range[1] - range[0]);
+      indexData.writeInt((int) crc.getValue());
+    }
+    for (int[] range : entries.values()) {
+      indexData.writeInt(range[0]);
+    }
+    indexData.write(packChecksum);
+    indexData.write(MessageDigest.getInstance("SHA-1").digest(index.toByteArray()));
+
+    String objectsFolder = fileUtils.joinToAbsolutePath(repoFolder, ".git", "objects");
+    String packName = "pack-" + BaseEncoding.base16().lowerCase().encode(packChecksum);
+    Files.write(Paths.get(objectsFolder, "pack", packName + ".pack"), pack.toByteArray());
+    Files.write(Paths.get(objectsFolder, "pack", packName + ".idx"), index.toByteArray());
+    Files.delete(Paths.get(objectsFolder, blobId.substring(0, 2), blobId.substring(2)));
+  }
+
+  // Returns the exception that `read` throws, as a string.
+  private static String getFailure(Runnable read) {
+    try {
+      read.run();
+    } catch (RuntimeException e) {
+      return e.toString();
+    }
+    return "No failure";
+  }
+
+  private void assertSameResultsOnTestBranch() {
+    assertEquals(gitRepo.getCommits(TEST_BRANCH), inProcessRepo.getCommits(TEST_BRANCH));
+    for (String commitId : gitRepo.getCommitIds(TEST_BRANCH)) {
+      assertEquals(
+          gitRepo.getFilesInCommit(commitId), inProcessRepo.getFilesInCommit(commitId));
+      if (gitRepo.fileExists(commitId, "similar.txt")) {
+        assertEquals(
+            gitRepo.getFileContents(commitId, "similar.txt"),
+            inProcessRepo.getFileContents(commitId, "similar.txt"));
+      }
+    }
+  }
+
+  @Test
+  public void testFactoryCreatesInProcessRepo() {
+    assertTrue(inProcessRepo instanceof InProcessGitRepo);
+    assertFalse(gitRepo instanceof InProcessGitRepo);
+  }
+
+  @Test
+  public void testGetCommits() throws IOException {
+    commitChangesOnTestBranch();
+    assertEquals(gitRepo.getCommits(TEST_BRANCH), inProcessRepo.getCommits(TEST_BRANCH));
+  }
+
+  @Test
+  public void testGetFilesInCommit() throws IOException {
+    commitChangesOnTestBranch();
+    for (String commitId : gitRepo.getCommitIds(TEST_BRANCH)) {
+      assertEquals(
+          gitRepo.getFilesInCommit(commitId), inProcessRepo.getFilesInCommit(commitId));
+    }
+  }
+
+  @Test
+  public void testGetFileContents() throws IOException {
+    commitChangesOnTestBranch();
+    String commitId = gitRepo.getHeadCommitId();
+    assertEquals(
+        "modified file in folder", inProcessRepo.getFileContents(commitId, "folder/file.txt"));
+    assertEquals("new file, modified", inProcessRepo.getFileContents(commitId, "new.txt"));
+  }
+
+  @Test
+  public void testFileExists() throws IOException {
+    commitChangesOnTestBranch();
+    String commitId = gitRepo.getHeadCommitId();
+    for (String path :
+        new String[] {"new.txt", "folder", "folder/sub/new.txt", "initial_commit.txt", "nope"}) {
+      assertEquals(gitRepo.fileExists(commitId, path), inProcessRepo.fileExists(commitId, path));
+    }
+  }
+
+  @Test
+  public void testListBranches() throws IOException {
+    commitChangesOnTestBranch();
+    assertEquals(gitRepo.listBranches(), inProcessRepo.listBranches());
+  }
+
+  @Test
+  public void testGetMostRecentCommitOfBranch() throws IOException {
+    commitChangesOnTestBranch();
+    assertEquals(
+        gitRepo.getMostRecentCommitOfBranch(TEST_BRANCH),
+        inProcessRepo.getMostRecentCommitOfBranch(TEST_BRANCH));
+    assertEquals(
+        gitRepo.getMostRecentCommitOfBranch("master"),
+        inProcessRepo.getMostRecentCommitOfBranch("master"));
+  }
+
+  @Test
+  public void testPackedObjects() throws Exception {
+    commitChangesOnTestBranch();
+    commitSimilarVersions();
+    // Packs objects and removes the loose ones. Deltas refer to their base by offset.
+    runGit("gc", "--quiet");
+    assertSameResultsOnTestBranch();
+    // Deltas refer to their base by id.
+    runGit("-c", "repack.useDeltaBaseOffset=false", "repack", "-a", "-d", "-f", "-q");
+    assertSameResultsOnTestBranch();
+  }
+
+  @Test
+  public void testCorruptDeltaFallsBackToGit() throws Exception {
+    writeFile("corrupt.txt", "corrupt file");
+    gitRepo.commit(gitRepo.getUncommittedFiles(), COMMIT_MESSAGE);
+    String commitId = gitRepo.getHeadCommitId();
+    writeCorruptDeltaPack(gitRepo.getBlobId(commitId, "corrupt.txt"));
+    // Git can't read the blob either. The in-process read must fail with an IOException, rather
+    // than e.g an ArrayIndexOutOfBoundsException, so that it falls back to git and fails the same.
+    assertEquals(
+        getFailure(() -> gitRepo.getFileContents(commitId, "corrupt.txt")),
+        getFailure(() -> inProcessRepo.getFileContents(commitId, "corrupt.txt")));
+  }
+}
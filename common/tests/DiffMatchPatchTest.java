@@ -0,0 +1,164 @@
+/*
+ * Copyright 2018 The StartupOS Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.startupos.common.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.startupos.name.fraser.neil.plaintext.DiffMatchPatch;
+import java.util.LinkedList;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests that {@link DiffMatchPatch} diffs are the same with and without Diff_UseArrays. */
+@RunWith(JUnit4.class)
+public class DiffMatchPatchTest {
+  private static final String ALPHABET = "ab c\n";
+  // Timeouts that diffs are compared with. Without a deadline, there's no half-match, which
+  // TextDifferencer always uses. The positive one is never reached by these small inputs, so that
+  // diffs don't depend on timing.
+  private static final float[] TIMEOUTS = {0, 60};
+
+  /** Counts the half-matches found while bisecting, i.e by ArrayDiffer with Diff_UseArrays. */
+  private static class CountingDiffMatchPatch extends DiffMatchPatch {
+    private int bisectDepth;
+    private int halfMatchesInBisect;
+
+    @Override
+    protected LinkedList<Diff> diff_bisect(String text1, String text2, long deadline) {
+      bisectDepth++;
+      try {
+        return super.diff_bisect(text1, text2, deadline);
+      } finally {
+        bisectDepth--;
+      }
+    }
+
+    @Override
+    protected String[] diff_halfMatch(String text1, String text2) {
+      String[] result = super.diff_halfMatch(text1, text2);
+      if (result != null && bisectDepth > 0) {
+        halfMatchesInBisect++;
+      }
+      return result;
+    }
+  }
+
+  private CountingDiffMatchPatch stringDiffer;
+  private CountingDiffMatchPatch arrayDiffer;
+
+  @Before
+  public void setUp() {
+    stringDiffer = new CountingDiffMatchPatch();
+    arrayDiffer = new CountingDiffMatchPatch();
+    arrayDiffer.Diff_UseArrays = true;
+  }
+
+  private static String randomText(Random random, int maxLength) {
+    return randomTextOfLength(random, random.nextInt(maxLength + 1));
+  }
+
+  private static String randomTextOfLength(Random random, int length) {
+    StringBuilder result = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      result.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+    }
+    return result.toString();
+  }
+
+  // Returns `text` with a few random edits.
+  private static String edit(Random random, String text) {
+    StringBuilder result = new StringBuilder(text);
+    int edits = random.nextInt(5);
+    for (int i = 0; i < edits; i++) {
+      int position = random.nextInt(result.length() + 1);
+      if (random.nextBoolean() && position < result.length()) {
+        result.deleteCharAt(position);
+      } else {
+        result.insert(position, randomText(random, 5));
+      }
+    }
+    return result.toString();
+  }
+
+  private void assertSameDiffs(String text1, String text2) {
+    for (float timeout : TIMEOUTS) {
+      stringDiffer.Diff_Timeout = timeout;
+      arrayDiffer.Diff_Timeout = timeout;
+      String message = text1 + " -> " + text2 + " with timeout " + timeout;
+      for (boolean checklines : new boolean[] {false, true}) {
+        assertEquals(
+            message,
+            stringDiffer.diff_main(text1, text2, checklines),
+            arrayDiffer.diff_main(text1, text2, checklines));
+      }
+      assertEquals(
+          message,
+          stringDiffer.diff_mainTokens(text1, text2),
+          arrayDiffer.diff_mainTokens(text1, text2));
+    }
+  }
+
+  @Test
+  public void testEdgeCases() {
+    assertSameDiffs("", "");
+    assertSameDiffs("", "abc");
+    assertSameDiffs("abc", "");
+    assertSameDiffs("abc", "abc");
+    assertSameDiffs("abc", "xyz");
+    assertSameDiffs("a", "b");
+  }
+
+  @Test
+  public void testRandomUnrelatedTexts() {
+    Random random = new Random(1);
+    for (int i = 0; i < 2000; i++) {
+      assertSameDiffs(randomText(random, 60), randomText(random, 60));
+    }
+  }
+
+  @Test
+  public void testRandomEditedTexts() {
+    Random random = new Random(2);
+    for (int i = 0; i < 2000; i++) {
+      String text = randomText(random, 300);
+      assertSameDiffs(text, edit(random, text));
+    }
+  }
+
+  @Test
+  public void testHalfMatchWhileBisecting() {
+    Random random = new Random(3);
+    for (int i = 0; i < 500; i++) {
+      // Each half of the texts shares a long middle. Neither middle is half of the whole texts, so
+      // there's no half-match before bisecting, but there is in the halves that bisecting makes.
+      StringBuilder text1 = new StringBuilder();
+      StringBuilder text2 = new StringBuilder();
+      for (int half = 0; half < 2; half++) {
+        String middle = randomTextOfLength(random, 40);
+        text1.append(randomTextOfLength(random, 10) + middle + randomTextOfLength(random, 10));
+        text2.append(randomTextOfLength(random, 10) + middle + randomTextOfLength(random, 10));
+      }
+      assertSameDiffs(text1.toString(), text2.toString());
+    }
+    assertTrue(arrayDiffer.halfMatchesInBisect > 0);
+    assertEquals(stringDiffer.halfMatchesInBisect, arrayDiffer.halfMatchesInBisect);
+  }
+}
@@ -0,0 +1,776 @@
+/*
+ * Copyright 2018 The StartupOS Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.startupos.common.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.ListValue;
+import com.google.protobuf.Message;
+import com.google.protobuf.Struct;
+import com.google.protobuf.Value;
+import com.google.startupos.common.MessageDifferencer;
+import com.google.startupos.common.MessageDifferencer.DefaultFieldComparator;
+import com.google.startupos.common.MessageDifferencer.Delta;
+import com.google.startupos.common.MessageDifferencer.DeltaReporter;
+import com.google.startupos.common.MessageDifferencer.FieldComparator;
+import com.google.startupos.common.MessageDifferencer.FieldComparator.ComparisonResult;
+import com.google.startupos.common.MessageDifferencer.FloatComparison;
+import com.google.startupos.common.MessageDifferencer.MessageFieldComparison;
+import com.google.startupos.common.MessageDifferencer.RepeatedFieldComparison;
+import com.google.startupos.common.MessageDifferencer.ReportType;
+import com.google.startupos.common.MessageDifferencer.Scope;
+import com.google.startupos.common.MessageDifferencer.StreamReporter;
+import com.google.startupos.common.tests.MessageDifferencerExtensionsTestProtos.ExtendableRecord;
+import com.google.startupos.common.tests.MessageDifferencerTestProtos.TestItem;
+import com.google.startupos.common.tests.MessageDifferencerTestProtos.TestRecord;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link MessageDifferencer}, and the plans it compiles for comparing messages. */
+@RunWith(JUnit4.class)
+public class MessageDifferencerTest {
+  private static final FieldDescriptor ITEM = TestRecord.getDescriptor().findFieldByName("item");
+  private static final FieldDescriptor ITEMS = TestRecord.getDescriptor().findFieldByName("items");
+  private static final FieldDescriptor ITEM_NAME = TestItem.getDescriptor().findFieldByName("name");
+  private static final FieldDescriptor ITEM_VALUE =
+      TestItem.getDescriptor().findFieldByName("value");
+  private static final FieldDescriptor ITEM_WEIGHT =
+      TestItem.getDescriptor().findFieldByName("weight");
+  private static final FieldDescriptor ITEM_VERSION =
+      TestItem.getDescriptor().findFieldByName("version");
+  private static final FieldDescriptor NUMBERS =
+      TestRecord.getDescriptor().findFieldByName("numbers");
+  private static final FieldDescriptor STRINGS =
+      TestRecord.getDescriptor().findFieldByName("strings");
+  private static final FieldDescriptor FLOATS =
+      TestRecord.getDescriptor().findFieldByName("floats");
+  private static final String[] WORDS = {"a", "b", "c"};
+  // Including values that are only equal with FloatComparison.APPROXIMATE.
+  private static final float[] FLOAT_VALUES = {0.0f, -0.0f, 1.0f, Math.nextUp(1.0f), Float.NaN};
+
+  // Returns whether the messages are the same, followed by the differences that were reported.
+  private static String diff(MessageDifferencer differencer, Message message1, Message message2) {
+    StringBuilder output = new StringBuilder();
+    boolean same = differencer.compare(message1, message2, new StreamReporter(output));
+    assertEquals(same, differencer.compare(message1, message2));
+    return (same ? "same\n" : "different\n") + output;
+  }
+
+  // Same as diff(), but compares the fields returned by getAllFields() at the top level.
+  private static String diffAllFields(
+      MessageDifferencer differencer, Message message1, Message message2) {
+    StringBuilder output = new StringBuilder();
+    boolean same =
+        differencer.compareWithFields(
+            message1,
+            message2,
+            message1.getAllFields().keySet(),
+            message2.getAllFields().keySet(),
+            new StreamReporter(output));
+    return (same ? "same\n" : "different\n") + output;
+  }
+
+  // Differencers with all combinations of the settings that decide which fields are compared.
+  private static List<MessageDifferencer> createFieldSetDifferencers() {
+    List<MessageDifferencer> result = new ArrayList<>();
+    for (MessageFieldComparison comparison : MessageFieldComparison.values()) {
+      for (Scope scope : Scope.values()) {
+        result.add(
+            MessageDifferencer.newBuilder()
+                .setMessageFieldComparison(comparison)
+                .setScope(scope)
+                .setReportMatches(true)
+                .build());
+      }
+    }
+    return result;
+  }
+
+  private static TestItem createItem(Random random) {
+    TestItem.Builder result =
+        TestItem.newBuilder()
+            .setName(WORDS[random.nextInt(WORDS.length)])
+            .setVersion(random.nextInt(2))
+            .setValue(WORDS[random.nextInt(WORDS.length)])
+            .setWeight(FLOAT_VALUES[random.nextInt(FLOAT_VALUES.length)]);
+    if (random.nextBoolean()) {
+      result.addTags(WORDS[random.nextInt(WORDS.length)]);
+    }
+    return result.build();
+  }
+
+  // Returns a record with few possible values, so that random records often have equal fields.
+  private static TestRecord createRecord(Random random, int depth) {
+    TestRecord.Builder result = TestRecord.newBuilder().setInt32Field(random.nextInt(2));
+    for (int i = random.nextInt(5); i > 0; i--) {
+      result.addItems(createItem(random));
+      result.addNumbers(random.nextInt(3));
+      result.addStrings(WORDS[random.nextInt(WORDS.length)]);
+      result.addFloats(FLOAT_VALUES[random.nextInt(FLOAT_VALUES.length)]);
+      result.putItemMap(WORDS[random.nextInt(WORDS.length)], createItem(random));
+      result.putStringMap(random.nextInt(3), WORDS[random.nextInt(WORDS.length)]);
+    }
+    if (random.nextBoolean()) {
+      result.setItem(createItem(random));
+    }
+    if ((depth > 0) && random.nextBoolean()) {
+      result.setChild(createRecord(random, depth - 1));
+      result.addChildren(createRecord(random, depth - 1));
+    }
+    return result.build();
+  }
+
+  // Returns `record` with its repeated fields shuffled, and sometimes other changes, so that
+  // elements are moved or modified.
+  private static TestRecord shuffle(Random random, TestRecord record) {
+    List<TestItem> items = new ArrayList<>(record.getItemsList());
+    List<Integer> numbers = new ArrayList<>(record.getNumbersList());
+    List<String> strings = new ArrayList<>(record.getStringsList());
+    List<Float> floats = new ArrayList<>(record.getFloatsList());
+    Collections.shuffle(items, random);
+    Collections.shuffle(numbers, random);
+    Collections.shuffle(strings, random);
+    Collections.shuffle(floats, random);
+    TestRecord.Builder result =
+        record
+            .toBuilder()
+            .clearItems()
+            .addAllItems(items)
+            .clearNumbers()
+            .addAllNumbers(numbers)
+            .clearStrings()
+            .addAllStrings(strings)
+            .clearFloats()
+            .addAllFloats(floats);
+    if (random.nextInt(3) == 0) {
+      result.addItems(createItem(random));
+    }
+    if ((random.nextInt(3) == 0) && !items.isEmpty()) {
+      result.setItems(0, items.get(0).toBuilder().setValue("changed"));
+    }
+    return result.build();
+  }
+
+  @Test
+  public void testSetFieldsAreInFieldNumberOrder() {
+    TestRecord record = TestRecord.newBuilder().setStringField("a").setInt32Field(1).build();
+    assertEquals(
+        "different\ndeleted: int32_field: 1\n\ndeleted: string_field: \"a\"\n\n",
+        diff(MessageDifferencer.newBuilder().build(), record, TestRecord.getDefaultInstance()));
+  }
+
+  @Test
+  public void testSetFieldsAreAllFieldsForProto3() {
+    TestItem item = TestItem.newBuilder().setName("a").build();
+    List<TestRecord> records =
+        ImmutableList.of(
+            TestRecord.getDefaultInstance(),
+            // Scalars with default values are not set in proto3.
+            TestRecord.newBuilder().setInt32Field(0).setStringField("").build(),
+            TestRecord.newBuilder().setInt32Field(1).setStringField("a").build(),
+            // -0.0 isn't the default value.
+            TestRecord.newBuilder().setFloatField(-0.0f).setDoubleField(-0.0).build(),
+            TestRecord.newBuilder().setFloatField(Float.NaN).build(),
+            // Message fields are set even if they're empty.
+            TestRecord.newBuilder().setItem(TestItem.getDefaultInstance()).build(),
+            TestRecord.newBuilder().setItem(item).addItems(item).addNumbers(0).build(),
+            TestRecord.newBuilder().putItemMap("", item).putStringMap(0, "").build(),
+            // Oneof fields are set even if they have default values.
+            TestRecord.newBuilder().setChoiceInt32(0).build(),
+            TestRecord.newBuilder().setChoiceString("").build(),
+            TestRecord.newBuilder().setChoiceString("a").build(),
+            TestRecord.newBuilder().setChoiceItem(TestItem.getDefaultInstance()).build(),
+            TestRecord.newBuilder().setChild(TestRecord.newBuilder().setChoiceInt32(0)).build());
+    for (MessageDifferencer differencer : createFieldSetDifferencers()) {
+      for (TestRecord record1 : records) {
+        for (TestRecord record2 : records) {
+          assertEquals(
+              diffAllFields(differencer, record1, record2), diff(differencer, record1, record2));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testSetFieldsAreAllFieldsForExtensions() {
+    List<ExtendableRecord> records =
+        ImmutableList.of(
+            ExtendableRecord.getDefaultInstance(),
+            // Optional fields are set when they have default values in proto2.
+            ExtendableRecord.newBuilder().setInt32Field(7).build(),
+            ExtendableRecord.newBuilder().setInt32Field(0).setStringField("").build(),
+            ExtendableRecord.newBuilder()
+                .setExtension(MessageDifferencerExtensionsTestProtos.int32Extension, 0)
+                .build(),
+            ExtendableRecord.newBuilder()
+                .setInt32Field(1)
+                .addExtension(MessageDifferencerExtensionsTestProtos.stringsExtension, "a")
+                .setExtension(MessageDifferencerExtensionsTestProtos.int32Extension, 1)
+                .build(),
+            ExtendableRecord.newBuilder()
+                .addNumbers(1)
+                .setExtension(
+                    MessageDifferencerExtensionsTestProtos.recordExtension,
+                    ExtendableRecord.newBuilder()
+                        .setExtension(MessageDifferencerExtensionsTestProtos.int32Extension, 2)
+                        .build())
+                .build());
+    for (MessageDifferencer differencer : createFieldSetDifferencers()) {
+      for (ExtendableRecord record1 : records) {
+        for (ExtendableRecord record2 : records) {
+          assertEquals(
+              diffAllFields(differencer, record1, record2), diff(differencer, record1, record2));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testEquivalentIgnoresDefaultValues() {
+    assertTrue(
+        MessageDifferencer.equivalent(
+            ExtendableRecord.newBuilder().setInt32Field(7).build(),
+            ExtendableRecord.getDefaultInstance()));
+    assertFalse(
+        MessageDifferencer.equals(
+            ExtendableRecord.newBuilder().setInt32Field(7).build(),
+            ExtendableRecord.getDefaultInstance()));
+  }
+
+  // Returns builders with the settings that change how ignored fields are handled.
+  private static List<MessageDifferencer.Builder> createIgnoringBuilders() {
+    return ImmutableList.of(
+        MessageDifferencer.newBuilder(),
+        MessageDifferencer.newBuilder().setReportMatches(true),
+        MessageDifferencer.newBuilder().treatAsSet(ITEMS),
+        // Ignored fields are still compared when they're keys.
+        MessageDifferencer.newBuilder().treatAsMap(ITEMS, ITEM_VALUE),
+        MessageDifferencer.newBuilder().treatAsMap(ITEMS, ITEM_NAME),
+        MessageDifferencer.newBuilder()
+            .setRepeatedFieldComparison(RepeatedFieldComparison.AS_SET)
+            .setScope(Scope.PARTIAL));
+  }
+
+  @Test
+  public void testIgnoreFieldIsSameAsIgnoreCriteria() {
+    Random random = new Random(1);
+    List<MessageDifferencer.Builder> ignoringFieldBuilders = createIgnoringBuilders();
+    List<MessageDifferencer.Builder> ignoringCriteriaBuilders = createIgnoringBuilders();
+    for (int i = 0; i < ignoringFieldBuilders.size(); i++) {
+      MessageDifferencer ignoringField =
+          ignoringFieldBuilders.get(i).ignoreField(ITEM_VALUE).build();
+      MessageDifferencer ignoringCriteria =
+          ignoringCriteriaBuilders
+              .get(i)
+              .addIgnoreCriteria(
+                  (message1, message2, field, fieldPath) -> ITEM_VALUE.equals(field))
+              .build();
+      for (int j = 0; j < 300; j++) {
+        TestRecord record1 = createRecord(random, 2);
+        TestRecord record2 =
+            random.nextBoolean() ? shuffle(random, record1) : createRecord(random, 2);
+        assertEquals(
+            diff(ignoringField, record1, record2), diff(ignoringCriteria, record1, record2));
+      }
+    }
+  }
+
+  @Test
+  public void testIgnoredFieldIsReported() {
+    TestRecord record1 =
+        TestRecord.newBuilder().setItem(TestItem.newBuilder().setValue("a")).build();
+    TestRecord record2 =
+        TestRecord.newBuilder().setItem(TestItem.newBuilder().setValue("b")).build();
+    assertEquals(
+        "same\nignored: item.value\n",
+        diff(MessageDifferencer.newBuilder().ignoreField(ITEM_VALUE).build(), record1, record2));
+  }
+
+  @Test
+  public void testTreatAsSet() {
+    TestItem item1 = TestItem.newBuilder().setName("a").build();
+    TestItem item2 = TestItem.newBuilder().setName("b").build();
+    TestItem item3 = TestItem.newBuilder().setName("c").build();
+    TestRecord record1 = TestRecord.newBuilder().addItems(item1).addItems(item2).build();
+    TestRecord record2 = TestRecord.newBuilder().addItems(item3).addItems(item1).build();
+    assertEquals(
+        "different\n"
+            + "moved: items[0] -> items[1] : { name: \"a\" }\n\n"
+            + "added: items[0]: { name: \"c\" }\n\n"
+            + "deleted: items[1]: { name: \"b\" }\n\n",
+        diff(MessageDifferencer.newBuilder().treatAsSet(ITEMS).build(), record1, record2));
+    // Moved elements are the same.
+    assertEquals(
+        "same\nmoved: items[0] -> items[1] : { name: \"a\" }\n\n"
+            + "moved: items[1] -> items[0] : { name: \"b\" }\n\n",
+        diff(
+            MessageDifferencer.newBuilder().treatAsSet(ITEMS).build(),
+            record1,
+            TestRecord.newBuilder().addItems(item2).addItems(item1).build()));
+  }
+
+  @Test
+  public void testTreatAsMap() {
+    TestItem item1 = TestItem.newBuilder().setName("a").setValue("1").build();
+    TestItem item2 = TestItem.newBuilder().setName("b").setValue("2").build();
+    TestRecord record1 = TestRecord.newBuilder().addItems(item1).addItems(item2).build();
+    TestRecord record2 =
+        TestRecord.newBuilder()
+            .addItems(item2)
+            .addItems(item1.toBuilder().setValue("changed"))
+            .build();
+    // Elements with the same key are compared, and reported as modified if they're different.
+    assertEquals(
+        "different\n"
+            + "modified: items[0].value -> items[1].value:\"1\" -> \"changed\"\n"
+            + "moved: items[1] -> items[0] : { name: \"b\" value: \"2\" }\n\n",
+        diff(
+            MessageDifferencer.newBuilder().treatAsMap(ITEMS, ITEM_NAME).build(),
+            record1,
+            record2));
+  }
+
+  @Test(timeout = 10000)
+  public void testCompileRecursiveTypes() {
+    MessageDifferencer differencer = MessageDifferencer.newBuilder().treatAsSet(ITEMS).build();
+    // TestRecord contains itself, and Struct, Value and ListValue contain each other.
+    differencer.compile(TestRecord.getDescriptor());
+    differencer.compile(Struct.getDescriptor());
+    differencer.compile(TestRecord.getDescriptor());
+
+    MessageDifferencer uncompiled = MessageDifferencer.newBuilder().treatAsSet(ITEMS).build();
+    Random random = new Random(2);
+    for (int i = 0; i < 300; i++) {
+      TestRecord record1 = createRecord(random, 3);
+      TestRecord record2 =
+          random.nextBoolean() ? shuffle(random, record1) : createRecord(random, 3);
+      assertEquals(diff(uncompiled, record1, record2), diff(differencer, record1, record2));
+    }
+
+    Value number = Value.newBuilder().setNumberValue(1).build();
+    Value string = Value.newBuilder().setStringValue("a").build();
+    Value nestedStruct =
+        Value.newBuilder()
+            .setStructValue(Struct.newBuilder().putFields("number", number))
+            .build();
+    Struct struct1 =
+        Struct.newBuilder()
+            .putFields(
+                "list",
+                Value.newBuilder()
+                    .setListValue(ListValue.newBuilder().addValues(string).addValues(nestedStruct))
+                    .build())
+            .build();
+    Struct struct2 =
+        Struct.newBuilder()
+            .putFields(
+                "list",
+                Value.newBuilder().setListValue(ListValue.newBuilder().addValues(string)).build())
+            .build();
+    assertTrue(differencer.compare(struct1, struct1.toBuilder().build()));
+    assertFalse(differencer.compare(struct1, struct2));
+    assertEquals(diff(uncompiled, struct1, struct2), diff(differencer, struct1, struct2));
+  }
+
+  // Asserts that a differencer with `settings`, which matches elements of repeated fields that
+  // have the same match hash, reports the same as one that compares all pairs of elements. The
+  // latter uses a custom FieldComparator, which can't be hashed.
+  private static void assertBucketedSameAsPairwise(
+      UnaryOperator<MessageDifferencer.Builder> settings) {
+    for (FloatComparison floatComparison : FloatComparison.values()) {
+      MessageDifferencer bucketed =
+          settings
+              .apply(MessageDifferencer.newBuilder())
+              .setFloatComparison(floatComparison)
+              .build();
+      FieldComparator comparator = new DefaultFieldComparator(floatComparison)::compare;
+      MessageDifferencer pairwise =
+          settings.apply(MessageDifferencer.newBuilder()).setFieldComparator(comparator).build();
+      Random random = new Random(3);
+      for (int i = 0; i < 500; i++) {
+        TestRecord record1 = createRecord(random, 1);
+        TestRecord record2 =
+            random.nextBoolean() ? shuffle(random, record1) : createRecord(random, 1);
+        assertEquals(diff(pairwise, record1, record2), diff(bucketed, record1, record2));
+      }
+    }
+  }
+
+  @Test
+  public void testBucketedMatchingWithMultipleKeyFields() {
+    assertBucketedSameAsPairwise(
+        builder ->
+            builder.treatAsMapWithMultipleFieldsAsKey(
+                ITEMS, ImmutableList.of(ITEM_NAME, ITEM_VERSION)));
+    // Floats are only hashed when they're compared exactly.
+    assertBucketedSameAsPairwise(
+        builder ->
+            builder.treatAsMapWithMultipleFieldsAsKey(
+                ITEMS, ImmutableList.of(ITEM_NAME, ITEM_WEIGHT)));
+  }
+
+  @Test
+  public void testBucketedMatchingOfProtoMaps() {
+    // Proto maps are matched by key without any settings.
+    assertBucketedSameAsPairwise(builder -> builder);
+    assertBucketedSameAsPairwise(builder -> builder.setScope(Scope.PARTIAL));
+  }
+
+  @Test
+  public void testBucketedMatchingOfScalarSets() {
+    assertBucketedSameAsPairwise(
+        builder -> builder.treatAsSet(NUMBERS).treatAsSet(STRINGS).treatAsSet(FLOATS));
+    assertBucketedSameAsPairwise(
+        builder -> builder.treatAsSet(NUMBERS).treatAsSet(FLOATS).setScope(Scope.PARTIAL));
+  }
+
+  @Test
+  public void testBucketedMatchingOfMessageSets() {
+    assertBucketedSameAsPairwise(builder -> builder.treatAsSet(ITEMS));
+    // Ignored fields aren't hashed, so elements that only differ in them are in the same bucket.
+    assertBucketedSameAsPairwise(builder -> builder.treatAsSet(ITEMS).ignoreField(ITEM_VALUE));
+    assertBucketedSameAsPairwise(
+        builder -> builder.setRepeatedFieldComparison(RepeatedFieldComparison.AS_SET));
+  }
+
+  @Test
+  public void testParallelComparisonIsSameAsSequential() {
+    List<UnaryOperator<MessageDifferencer.Builder>> settings =
+        ImmutableList.of(
+            builder -> builder,
+            builder -> builder.setReportMatches(true),
+            builder -> builder.treatAsSet(ITEMS).treatAsSet(NUMBERS),
+            builder -> builder.treatAsMap(ITEMS, ITEM_NAME),
+            builder -> builder.ignoreField(ITEM_VALUE).setScope(Scope.PARTIAL),
+            builder ->
+                builder.addIgnoreCriteria(
+                    (message1, message2, field, fieldPath) -> ITEMS.equals(field)));
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      Random random = new Random(4);
+      for (UnaryOperator<MessageDifferencer.Builder> setting : settings) {
+        MessageDifferencer sequential = setting.apply(MessageDifferencer.newBuilder()).build();
+        MessageDifferencer parallel =
+            setting
+                .apply(MessageDifferencer.newBuilder())
+                .setFieldComparisonPool(pool)
+                .setParallelFieldThreshold(0)
+                .build();
+        for (int i = 0; i < 300; i++) {
+          TestRecord record1 = createRecord(random, 2);
+          TestRecord record2 =
+              random.nextBoolean() ? shuffle(random, record1) : createRecord(random, 2);
+          assertEquals(diff(sequential, record1, record2), diff(parallel, record1, record2));
+        }
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testParallelComparisonsAreCancelledOnDifference() throws Exception {
+    Set<FieldDescriptor> comparedFields = ConcurrentHashMap.newKeySet();
+    CountDownLatch release = new CountDownLatch(1);
+    FieldComparator defaultComparator = new DefaultFieldComparator(FloatComparison.EXACT);
+    FieldComparator comparator =
+        (message1, message2, field, index1, index2, parentFields) -> {
+          comparedFields.add(field);
+          if (ITEM.equals(field)) {
+            return ComparisonResult.DIFFERENT;
+          }
+          if (NUMBERS.equals(field)) {
+            // Keeps the only thread of the pool busy, so that later fields are still queued.
+            try {
+              release.await();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+          return defaultComparator.compare(message1, message2, field, index1, index2, parentFields);
+        };
+    ForkJoinPool pool = new ForkJoinPool(1);
+    try {
+      MessageDifferencer differencer =
+          MessageDifferencer.newBuilder()
+              .setFieldComparator(comparator)
+              .setFieldComparisonPool(pool)
+              .setParallelFieldThreshold(0)
+              .build();
+      TestRecord.Builder record =
+          TestRecord.newBuilder().addNumbers(1).addItems(TestItem.newBuilder().setName("c"));
+      // Fields are compared in field number order: item, numbers, items.
+      assertFalse(
+          differencer.compare(
+              record.setItem(TestItem.newBuilder().setName("a")).build(),
+              record.setItem(TestItem.newBuilder().setName("b")).build()));
+      release.countDown();
+      pool.shutdown();
+      assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+      assertFalse(comparedFields.contains(ITEMS));
+    } finally {
+      release.countDown();
+      pool.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testParallelComparisonSkipsIgnoredFields() {
+    Set<FieldDescriptor> comparedFields = ConcurrentHashMap.newKeySet();
+    FieldComparator defaultComparator = new DefaultFieldComparator(FloatComparison.EXACT);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      MessageDifferencer differencer =
+          MessageDifferencer.newBuilder()
+              .setFieldComparator(
+                  (message1, message2, field, index1, index2, parentFields) -> {
+                    comparedFields.add(field);
+                    return defaultComparator.compare(
+                        message1, message2, field, index1, index2, parentFields);
+                  })
+              .addIgnoreCriteria((message1, message2, field, fieldPath) -> ITEMS.equals(field))
+              .setFieldComparisonPool(pool)
+              .setParallelFieldThreshold(0)
+              .build();
+      Random random = new Random(5);
+      for (int i = 0; i < 100; i++) {
+        differencer.compare(createRecord(random, 2), createRecord(random, 2));
+      }
+      assertTrue(comparedFields.contains(NUMBERS));
+      assertFalse(comparedFields.contains(ITEMS));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testSameInstanceIsNotCompared() {
+    AtomicInteger ignoreCriteriaCalls = new AtomicInteger();
+    List<MessageDifferencer.Builder> builders =
+        ImmutableList.of(
+            MessageDifferencer.newBuilder(),
+            MessageDifferencer.newBuilder()
+                .setMessageFieldComparison(MessageFieldComparison.EQUIVALENT),
+            MessageDifferencer.newBuilder()
+                .setRepeatedFieldComparison(RepeatedFieldComparison.AS_SET));
+    TestRecord record = createRecord(new Random(6), 2);
+    for (MessageDifferencer.Builder builder : builders) {
+      MessageDifferencer differencer =
+          builder
+              .addIgnoreCriteria(
+                  (message1, message2, field, fieldPath) -> {
+                    ignoreCriteriaCalls.incrementAndGet();
+                    return false;
+                  })
+              .build();
+      assertEquals("same\n", diff(differencer, record, record));
+    }
+    assertEquals(0, ignoreCriteriaCalls.get());
+  }
+
+  @Test
+  public void testSameBytesAreSame() {
+    TestItem item = TestItem.newBuilder().setName("a").build();
+    // Map entries in a different order, which are serialized the same.
+    TestRecord record1 =
+        TestRecord.newBuilder().putItemMap("a", item).putItemMap("b", item).addNumbers(1).build();
+    TestRecord record2 =
+        TestRecord.newBuilder().putItemMap("b", item).putItemMap("a", item).addNumbers(1).build();
+    assertTrue(MessageDifferencer.equals(record1, record2));
+    assertTrue(MessageDifferencer.equivalent(record1, record2));
+    assertTrue(MessageDifferencer.newBuilder().treatAsSet(ITEMS).build().compare(record1, record2));
+  }
+
+  @Test
+  public void testDifferentSizeOrHashIsDifferent() {
+    TestRecord record = TestRecord.newBuilder().setItem(TestItem.newBuilder().setName("a")).build();
+    // The same size, but a different hash code.
+    TestRecord sameSize =
+        TestRecord.newBuilder().setItem(TestItem.newBuilder().setName("b")).build();
+    TestRecord differentSize =
+        TestRecord.newBuilder().setItem(TestItem.newBuilder().setName("ab")).build();
+    assertFalse(MessageDifferencer.equals(record, sameSize));
+    assertFalse(MessageDifferencer.equals(record, differentSize));
+
+    Random random = new Random(7);
+    for (int i = 0; i < 500; i++) {
+      TestRecord record1 = createRecord(random, 2);
+      TestRecord record2 =
+          random.nextBoolean() ? shuffle(random, record1) : createRecord(random, 2);
+      assertEquals(record1.equals(record2), MessageDifferencer.equals(record1, record2));
+    }
+  }
+
+  @Test
+  public void testDifferentBytesCanBeSame() {
+    // An explicitly set default value is serialized, but is the same as an unset one when
+    // comparing EQUIVALENT.
+    ExtendableRecord record1 = ExtendableRecord.newBuilder().setStringField("a").build();
+    ExtendableRecord record2 = record1.toBuilder().setInt32Field(7).build();
+    assertFalse(MessageDifferencer.equals(record1, record2));
+    assertTrue(MessageDifferencer.equivalent(record1, record2));
+
+    // NaNs are serialized with their payload, which equals() ignores.
+    TestRecord nan1 = TestRecord.newBuilder().addFloats(Float.NaN).build();
+    TestRecord nan2 = TestRecord.newBuilder().addFloats(Float.intBitsToFloat(0x7fc00001)).build();
+    assertTrue(MessageDifferencer.equals(nan1, nan2));
+
+    TestRecord record3 = TestRecord.newBuilder().addNumbers(1).addNumbers(2).build();
+    TestRecord record4 = TestRecord.newBuilder().addNumbers(2).addNumbers(1).build();
+    assertFalse(MessageDifferencer.equals(record3, record4));
+    assertTrue(
+        MessageDifferencer.newBuilder()
+            .setRepeatedFieldComparison(RepeatedFieldComparison.AS_SET)
+            .build()
+            .compare(record3, record4));
+  }
+
+  // Returns the field mask paths of the changes from `message1` to `message2`.
+  private static List<String> getChangedPaths(
+      MessageDifferencer differencer, Message message1, Message message2) {
+    DeltaReporter reporter = new DeltaReporter();
+    differencer.compare(message1, message2, reporter);
+    return reporter.toFieldMask().getPathsList();
+  }
+
+  @Test
+  public void testDeltaReporterCollectsChanges() {
+    TestRecord record1 = TestRecord.newBuilder().setStringField("a").setInt32Field(1).build();
+    TestRecord record2 =
+        TestRecord.newBuilder().setStringField("b").setItem(TestItem.newBuilder()).build();
+    DeltaReporter reporter = new DeltaReporter();
+    assertFalse(MessageDifferencer.newBuilder().build().compare(record1, record2, reporter));
+    List<Delta> deltas = reporter.getDeltas();
+    assertEquals(3, deltas.size());
+    // Fields are compared in field number order.
+    assertEquals(ReportType.DELETED, deltas.get(0).getType());
+    assertEquals(1, deltas.get(0).getValue1());
+    assertEquals(null, deltas.get(0).getValue2());
+    assertEquals(ReportType.MODIFIED, deltas.get(1).getType());
+    assertEquals("a", deltas.get(1).getValue1());
+    assertEquals("b", deltas.get(1).getValue2());
+    assertEquals(ReportType.ADDED, deltas.get(2).getType());
+    assertEquals(null, deltas.get(2).getValue1());
+    assertEquals(TestItem.getDefaultInstance(), deltas.get(2).getValue2());
+
+    DeltaReporter sameReporter = new DeltaReporter();
+    assertTrue(MessageDifferencer.newBuilder().build().compare(record1, record1, sameReporter));
+    assertTrue(sameReporter.isEmpty());
+    assertEquals(ImmutableList.of(), sameReporter.toFieldMask().getPathsList());
+  }
+
+  @Test
+  public void testFieldMaskCoversChangedSubfields() {
+    MessageDifferencer differencer = MessageDifferencer.newBuilder().build();
+    TestItem item = TestItem.newBuilder().setName("a").setValue("1").build();
+    TestRecord record = TestRecord.newBuilder().setStringField("a").setItem(item).build();
+    // The modified item is covered by its changed subfield.
+    assertEquals(
+        ImmutableList.of("item.value", "string_field"),
+        getChangedPaths(
+            differencer,
+            record,
+            record
+                .toBuilder()
+                .setStringField("b")
+                .setItem(item.toBuilder().setValue("2"))
+                .build()));
+    assertEquals(
+        ImmutableList.of("child.item"),
+        getChangedPaths(
+            differencer,
+            TestRecord.newBuilder().setChild(TestRecord.newBuilder().setInt32Field(1)).build(),
+            TestRecord.newBuilder()
+                .setChild(TestRecord.newBuilder().setInt32Field(1).setItem(item))
+                .build()));
+  }
+
+  @Test
+  public void testFieldMaskCoversRepeatedFields() {
+    TestItem item1 = TestItem.newBuilder().setName("a").setValue("1").build();
+    TestItem item2 = TestItem.newBuilder().setName("b").setValue("2").build();
+    TestRecord record1 =
+        TestRecord.newBuilder()
+            .addItems(item1)
+            .addItems(item2)
+            .addNumbers(1)
+            .addNumbers(2)
+            .putItemMap("a", item1)
+            .build();
+    TestRecord record2 =
+        TestRecord.newBuilder()
+            .addItems(item2)
+            .addItems(item1.toBuilder().setValue("changed"))
+            .addNumbers(2)
+            .addNumbers(1)
+            .putItemMap("a", item2)
+            .build();
+    // Elements of repeated fields can't be in a field mask, so the whole field is.
+    assertEquals(
+        ImmutableList.of("item_map", "items", "numbers"),
+        getChangedPaths(MessageDifferencer.newBuilder().build(), record1, record2));
+    // Moved elements are changes too.
+    assertEquals(
+        ImmutableList.of("item_map", "items", "numbers"),
+        getChangedPaths(
+            MessageDifferencer.newBuilder()
+                .treatAsMap(ITEMS, ITEM_NAME)
+                .treatAsSet(NUMBERS)
+                .build(),
+            record1,
+            record2));
+  }
+
+  @Test
+  public void testFieldMaskCoversMessagesFoundDifferentByComparator() {
+    FieldComparator defaultComparator = new DefaultFieldComparator(FloatComparison.EXACT);
+    // Finds items different without comparing their subfields.
+    MessageDifferencer differencer =
+        MessageDifferencer.newBuilder()
+            .setFieldComparator(
+                (message1, message2, field, index1, index2, parentFields) ->
+                    ITEM.equals(field)
+                        ? ComparisonResult.DIFFERENT
+                        : defaultComparator.compare(
+                            message1, message2, field, index1, index2, parentFields))
+            .build();
+    TestRecord record =
+        TestRecord.newBuilder()
+            .setStringField("a")
+            .setItem(TestItem.newBuilder().setName("a"))
+            .build();
+    assertEquals(
+        ImmutableList.of("item", "string_field"),
+        getChangedPaths(differencer, record, record.toBuilder().setStringField("b").build()));
+  }
+}
@@ -24,10 +24,14 @@ import com.google.startupos.common.FileUtils;
 import com.google.startupos.common.Protos.ChangeType;
 import com.google.startupos.common.Protos.DiffLine;
 import com.google.startupos.common.Protos.TextDiff;
+import com.google.startupos.common.Protos.WordChange;
 import com.google.startupos.common.TextDifferencer;
 import dagger.Component;
+import java.util.concurrent.ForkJoinPool;
 import javax.inject.Singleton;
+import org.junit.AfterClass;
 import org.junit.Before;
+import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -35,10 +39,21 @@ import org.junit.runners.JUnit4;
 /** Tests for {@link com.google.startupos.common.TextDifferencer}. */
 @RunWith(JUnit4.class)
 public class TextDifferencerTest {
+  private static ForkJoinPool wordDiffPool;
 
   private TextDifferencer differencer;
   private FileUtils fileUtils;
 
+  @BeforeClass
+  public static void setUpClass() {
+    wordDiffPool = new ForkJoinPool(4);
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+    wordDiffPool.shutdown();
+  }
+
   @Before
   public void setUp() {
     differencer = new TextDifferencer();
@@ -174,6 +189,141 @@ public class TextDifferencerTest {
         expectedTextDiff, differencer.getTextDiff(leftContents, rightContents, diffString));
   }
 
+  @Test
+  public void testInProcessDiffIsSameAsGitDiff_mixedChanges() {
+    assertEquals(
+        differencer.getTextDiff(
+            "No Change.", "With Change.", "@@ -1 +1 @@\n-No Change.\n+With Change."),
+        differencer.getTextDiff("No Change.", "With Change."));
+  }
+
+  @Test
+  public void testInProcessDiffIsSameAsGitDiff_onlyAdditions() {
+    assertEquals(
+        differencer.getTextDiff("", "Addition.", "@@ -0,0 +1 @@\n+Addition."),
+        differencer.getTextDiff("", "Addition."));
+  }
+
+  @Test
+  public void testInProcessDiffIsSameAsGitDiff_noChanges() {
+    assertEquals(
+        differencer.getTextDiff("No Change.\n", "No Change.\n", ""),
+        differencer.getTextDiff("No Change.\n", "No Change.\n"));
+  }
+
+  @Test
+  public void testInProcessDiffIsSameAsGitDiff_newlineAtEndOfFile() {
+    String diffString = "@@ -1,2 +1,2 @@\n a\n-b\n\\ No newline at end of file\n+b";
+    assertEquals(
+        differencer.getTextDiff("a\nb", "a\nb\n", diffString),
+        differencer.getTextDiff("a\nb", "a\nb\n"));
+  }
+
+  @Test
+  public void testInProcessDiffIsSameAsGitDiff_buildFileChange() {
+    String leftContents = readFile("BUILD_before.txt");
+    String rightContents = readFile("BUILD_after.txt");
+    assertEquals(
+        readTextDiff("BUILD_diff_prototxt.txt"),
+        differencer.getTextDiff(leftContents, rightContents));
+  }
+
+  @Test
+  public void testInProcessDiffIsSameAsGitDiff_licenseFileChange() {
+    String leftContents = readFile("License_before.txt");
+    String rightContents = readFile("License_after.txt");
+    assertEquals(
+        readTextDiff("License_diff_prototxt.txt"),
+        differencer.getTextDiff(leftContents, rightContents));
+  }
+
+  @Test(timeout = 30000)
+  public void testInProcessDiffOfRewrittenFile() {
+    StringBuilder leftContents = new StringBuilder();
+    StringBuilder rightContents = new StringBuilder();
+    int rewrittenLines = 0;
+    for (int i = 0; i < 50000; i++) {
+      if (i % 3 == 0) {
+        leftContents.append("}\n");
+        rightContents.append("}\n");
+      } else {
+        leftContents.append("left line ").append(i).append('\n');
+        rightContents.append("right line ").append(i).append('\n');
+        rewrittenLines++;
+      }
+    }
+    TextDiff textDiff =
+        differencer.getTextDiff(leftContents.toString(), rightContents.toString());
+    int deletedLines = 0;
+    for (DiffLine line : textDiff.getLeftDiffLineList()) {
+      if (line.getType() == ChangeType.DELETE && line.getText().startsWith("left line")) {
+        deletedLines++;
+      }
+    }
+    int addedLines = 0;
+    for (DiffLine line : textDiff.getRightDiffLineList()) {
+      if (line.getType() == ChangeType.ADD && line.getText().startsWith("right line")) {
+        addedLines++;
+      }
+    }
+    assertEquals(rewrittenLines, deletedLines);
+    assertEquals(rewrittenLines, addedLines);
+  }
+
+  @Test
+  public void testParallelWordChangesAreSameAsSequential() {
+    TextDifferencer parallelDifferencer =
+        TextDifferencer.newBuilder()
+            .setWordDiffPool(wordDiffPool)
+            .setParallelWordDiffThreshold(0)
+            .build();
+    for (String name : new String[] {"BUILD", "License"}) {
+      String leftContents = readFile(name + "_before.txt");
+      String rightContents = readFile(name + "_after.txt");
+      assertEquals(
+          readTextDiff(name + "_diff_prototxt.txt"),
+          parallelDifferencer.getTextDiff(leftContents, rightContents));
+    }
+  }
+
+  @Test
+  public void testOversizedSegmentsHaveNoWordChanges() {
+    TextDifferencer limitedDifferencer =
+        TextDifferencer.newBuilder().setMaxWordDiffSegmentChars(10).build();
+    TextDiff textDiff =
+        limitedDifferencer.getTextDiff("Some text\nline\n", "Some other text\nline\n");
+    assertEquals(1, limitedDifferencer.getOversizedSegments());
+    assertEquals(0, textDiff.getLeftDiffLine(0).getWordChangeCount());
+    assertEquals(0, textDiff.getRightDiffLine(0).getWordChangeCount());
+    // Lines are still changed:
+    assertEquals(ChangeType.DELETE, textDiff.getLeftDiffLine(0).getType());
+    assertEquals(ChangeType.ADD, textDiff.getRightDiffLine(0).getType());
+  }
+
+  @Test
+  public void testTokenWordChangesAreWholeTokens() {
+    TextDifferencer tokenDifferencer = TextDifferencer.newBuilder().setTokenWordDiffs(true).build();
+    TextDiff textDiff =
+        tokenDifferencer.getTextDiff(
+            "int fooBar = compute(x, y);\n", "int fooBaz = compute(x,  z);\n");
+    assertEquals(
+        WordChange.newBuilder()
+            .setText("fooBar")
+            .setStartIndex(4)
+            .setEndIndex(10)
+            .setType(ChangeType.DELETE)
+            .build(),
+        textDiff.getLeftDiffLine(0).getWordChange(0));
+    assertEquals(
+        WordChange.newBuilder()
+            .setText("fooBaz")
+            .setStartIndex(4)
+            .setEndIndex(10)
+            .setType(ChangeType.ADD)
+            .build(),
+        textDiff.getRightDiffLine(0).getWordChange(0));
+  }
+
   @Singleton
   @Component(modules = CommonModule.class)
   interface TestComponent {
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018 The StartupOS Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.startupos.common.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.startupos.common.TextMerger;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link com.google.startupos.common.TextMerger}. */
+@RunWith(JUnit4.class)
+public class TextMergerTest {
+  private static final String BASE = "line1\nline2\nline3\nline4\nline5\n";
+
+  private TextMerger merger;
+
+  @Before
+  public void setUp() {
+    merger = new TextMerger();
+  }
+
+  @Test
+  public void testOnlyOneSideChanged() {
+    String ours = "line1\nchanged\nline3\nline4\nline5\n";
+    assertEquals(ours, merger.merge(BASE, ours, BASE));
+    assertEquals(ours, merger.merge(BASE, BASE, ours));
+  }
+
+  @Test
+  public void testSeparateChangesAreMerged() {
+    assertEquals(
+        "added\nline1\nours\nline3\nline4\ntheirs\n",
+        merger.merge(
+            BASE,
+            "added\nline1\nours\nline3\nline4\nline5\n",
+            "line1\nline2\nline3\nline4\ntheirs\n"));
+  }
+
+  @Test
+  public void testOverlappingChangesConflict() {
+    assertNull(
+        merger.merge(
+            BASE, "line1\nours\nline3\nline4\nline5\n", "line1\ntheirs\nline3\nline4\nline5\n"));
+  }
+
+  @Test
+  public void testAdjacentChangesConflict() {
+    assertNull(
+        merger.merge(
+            BASE, "line1\nours\nline3\nline4\nline5\n", "line1\nline2\ntheirs\nline4\nline5\n"));
+  }
+
+  @Test
+  public void testSameChangesAreMerged() {
+    assertEquals(
+        "line1\nsame\nline3\nline4\ntheirs\n",
+        merger.merge(
+            BASE, "line1\nsame\nline3\nline4\nline5\n", "line1\nsame\nline3\nline4\ntheirs\n"));
+  }
+
+  @Test
+  public void testMissingNewlineAtEndIsKept() {
+    assertEquals(
+        "ours\nline2\nline3\nline4\nline5",
+        merger.merge(
+            BASE, "ours\nline2\nline3\nline4\nline5\n", "line1\nline2\nline3\nline4\nline5"));
+  }
+}
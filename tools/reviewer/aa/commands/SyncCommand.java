@@ -16,20 +16,70 @@
 
 package com.google.startupos.tools.reviewer.aa.commands;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import com.google.startupos.common.FileUtils;
+import com.google.startupos.common.TextMerger;
+import com.google.startupos.common.flags.Flag;
+import com.google.startupos.common.flags.FlagDesc;
+import com.google.startupos.common.flags.Flags;
 import com.google.startupos.common.repo.GitRepo;
 import com.google.startupos.common.repo.GitRepoFactory;
+import com.google.startupos.common.repo.Protos.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import javax.inject.Inject;
 import javax.inject.Named;
 
+/**
+ * Syncs head and all repos in the workspace with their remote.
+ *
+ * <p>By default, uncommitted changes in the workspace are put aside, master is pulled, and each
+ * changed file is then merged in-process with {@link TextMerger}. git is only used for files with
+ * conflicting changes, and for merging the workspace's branch if it isn't master. Uncommitted
+ * changes stay uncommitted.
+ *
+ * <p>While syncing, uncommitted changes are kept in a git stash. If the sync fails, the repo is put
+ * back on its branch and the stash is popped. If that fails too, or the sync is interrupted, the
+ * stash is kept, and the next sync doesn't start until it's restored.
+ */
 public class SyncCommand implements AaCommand {
+  @FlagDesc(
+      name = "in_process_merge",
+      description = "Merge uncommitted changes in-process, instead of with a temporary commit")
+  public static Flag<Boolean> inProcessMerge = Flag.create(true);
+
   private static final String TEMP_BRANCH_FOR_SYNC = "temp_branch_for_sync";
+  private static final String SYNC_STASH_MESSAGE = "aa sync: uncommitted changes";
+
+  // An uncommitted change to a file, put aside while syncing.
+  private static class LocalChange {
+    private final File file;
+    // Path of the file in HEAD. Differs from the filename for renames and copies.
+    private final String basePath;
+    // Contents in HEAD before syncing, or null if the file is new.
+    private final String base;
+    // Uncommitted contents, or null if the file is deleted.
+    private final byte[] ours;
+
+    LocalChange(File file, String basePath, String base, byte[] ours) {
+      this.file = file;
+      this.basePath = basePath;
+      this.base = base;
+      this.ours = ours;
+    }
+  }
 
   private final FileUtils fileUtils;
+  private final TextMerger textMerger;
   private GitRepoFactory repoFactory;
   private String headPath;
   private String workspaceName;
@@ -39,11 +89,13 @@ public class SyncCommand implements AaCommand {
   @Inject
   public SyncCommand(
       FileUtils utils,
+      TextMerger textMerger,
       GitRepoFactory repoFactory,
       @Named("Head path") String headPath,
       @Named("Workspace name") String workspaceName,
       @Named("Workspace path") String workspacePath) {
     this.fileUtils = utils;
+    this.textMerger = textMerger;
     this.repoFactory = repoFactory;
     this.headPath = headPath;
     this.workspaceName = workspaceName;
@@ -52,6 +104,7 @@ public class SyncCommand implements AaCommand {
 
   @Override
   public boolean run(String[] args) {
+    Flags.parseCurrentPackage(args);
     // Pull all repos in head
     try {
       fileUtils
@@ -86,6 +139,10 @@ public class SyncCommand implements AaCommand {
                 String repoName = Paths.get(path).getFileName().toString();
                 System.out.println(
                     String.format("[%s/%s]: Performing sync", workspaceName, repoName));
+                if (inProcessMerge.get()) {
+                  syncInProcess(path, repoName);
+                  return;
+                }
                 GitRepo repo = repoFactory.create(path);
                 repoToInitialBranch.put(repoName, repo.currentBranch());
                 if (repo.branchExists(TEMP_BRANCH_FOR_SYNC)) {
@@ -122,6 +179,235 @@ public class SyncCommand implements AaCommand {
     return true;
   }
 
+  private void syncInProcess(String path, String repoName) {
+    GitRepo repo = repoFactory.create(path, true);
+    String initialBranch = repo.currentBranch();
+    repoToInitialBranch.put(repoName, initialBranch);
+    if (repo.hasStash(SYNC_STASH_MESSAGE)) {
+      // A previous sync didn't finish, and the changes it put aside weren't restored.
+      System.err.println(
+          String.format(
+              "[%s/%s]: not syncing, uncommitted changes of a previous sync are still stashed."
+                  + " Restore them with `git stash pop`",
+              workspaceName, repoName));
+      return;
+    }
+    List<LocalChange> changes = getLocalChanges(repo, path);
+    System.out.println(
+        String.format(
+            "[%s/%s]: putting aside %d uncommitted files",
+            workspaceName, repoName, changes.size()));
+    if (!changes.isEmpty()) {
+      // The changes are kept in memory for merging, but also stashed, so they aren't lost if the
+      // sync fails or is interrupted.
+      repo.stash(SYNC_STASH_MESSAGE);
+    }
+    List<String> conflicts = new ArrayList<>();
+    boolean synced = false;
+    try {
+      System.out.println(String.format("[%s/%s]: switching to master", workspaceName, repoName));
+      repo.switchBranch("master");
+      System.out.println(String.format("[%s/%s]: pulling", workspaceName, repoName));
+      repo.pull();
+      if (!initialBranch.equals("master")) {
+        System.out.println(
+            String.format("[%s/%s]: merging %s", workspaceName, repoName, initialBranch));
+        if (!repo.merge(initialBranch) || repo.isMerging()) {
+          // The committed changes need a manual merge first. The merge is undone, and local
+          // changes are put back as they were.
+          System.out.println(
+              String.format(
+                  "[%s/%s]: manual merge required, %s conflicts with master",
+                  workspaceName, repoName, initialBranch));
+          return;
+        }
+      }
+
+      String headCommitId = repo.getHeadCommitId();
+      for (LocalChange change : changes) {
+        long start = System.currentTimeMillis();
+        String theirs =
+            repo.fileExists(headCommitId, change.basePath)
+                ? repo.getFileContents(headCommitId, change.basePath)
+                : null;
+        if (!mergeLocalChange(repo, path, change, theirs)) {
+          conflicts.add(change.file.getFilename());
+        }
+        System.out.println(
+            String.format(
+                "[%s/%s]: merged %s in %d ms",
+                workspaceName,
+                repoName,
+                change.file.getFilename(),
+                System.currentTimeMillis() - start));
+      }
+      synced = true;
+    } finally {
+      if (synced) {
+        if (!changes.isEmpty()) {
+          repo.dropStash();
+        }
+      } else {
+        restoreLocalChanges(repo, repoName, initialBranch, !changes.isEmpty());
+      }
+    }
+    if (!conflicts.isEmpty()) {
+      System.out.println(
+          String.format(
+              "[%s/%s]: manual merge required, check files for conflicts: %s",
+              workspaceName, repoName, String.join(", ", conflicts)));
+    }
+  }
+
+  /**
+   * Puts the repo back as it was before a sync that failed: undoes what the sync did, switches back
+   * to `initialBranch`, and restores the stashed local changes. The stash is only dropped once
+   * it's restored without conflicts, so if any step fails, the changes can still be restored by
+   * hand.
+   */
+  private void restoreLocalChanges(
+      GitRepo repo, String repoName, String initialBranch, boolean stashed) {
+    try {
+      // The working tree only has changes made by the sync, e.g an unfinished merge.
+      repo.resetHard("HEAD");
+      if (!repo.currentBranch().equals(initialBranch)) {
+        repo.switchBranch(initialBranch);
+      }
+      if (stashed) {
+        repo.popStash();
+      }
+    } catch (RuntimeException e) {
+      e.printStackTrace();
+    }
+    if (stashed && repo.hasStash(SYNC_STASH_MESSAGE)) {
+      System.err.println(
+          String.format(
+              "[%s/%s]: could not restore uncommitted changes, they are kept in the stash."
+                  + " Restore them with `git stash pop`",
+              workspaceName, repoName));
+    }
+  }
+
+  private List<LocalChange> getLocalChanges(GitRepo repo, String path) {
+    List<LocalChange> result = new ArrayList<>();
+    for (File file : repo.getUncommittedFiles()) {
+      if (file.getFilename().endsWith("/")) {
+        // An untracked folder. It's stashed too, so each of its files is a new file.
+        result.addAll(getUntrackedFolderChanges(path, file.getFilename()));
+        continue;
+      }
+      String basePath =
+          file.getAction() == File.Action.RENAME || file.getAction() == File.Action.COPY
+              ? file.getOriginalFilename()
+              : file.getFilename();
+      String base =
+          repo.fileExists("HEAD", basePath) ? repo.getFileContents("HEAD", basePath) : null;
+      byte[] ours = null;
+      if (file.getAction() != File.Action.DELETE) {
+        try {
+          ours = Files.readAllBytes(Paths.get(path, file.getFilename()));
+        } catch (IOException e) {
+          throw new IllegalStateException("Cannot read " + file.getFilename(), e);
+        }
+      }
+      result.add(new LocalChange(file, basePath, base, ours));
+    }
+    return result;
+  }
+
+  private List<LocalChange> getUntrackedFolderChanges(String path, String folder) {
+    List<LocalChange> result = new ArrayList<>();
+    try (Stream<Path> files = Files.walk(Paths.get(path, folder))) {
+      for (Path file : files.filter(Files::isRegularFile).collect(Collectors.toList())) {
+        String filename = Paths.get(path).relativize(file).toString();
+        result.add(
+            new LocalChange(
+                File.newBuilder().setAction(File.Action.ADD).setFilename(filename).build(),
+                filename,
+                null,
+                Files.readAllBytes(file)));
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot read " + folder, e);
+    }
+    return result;
+  }
+
+  /**
+   * Merges a local change into the synced file, whose contents are `theirs` (null if it doesn't
+   * exist). Returns whether the change was merged without conflicts.
+   */
+  private boolean mergeLocalChange(GitRepo repo, String path, LocalChange change, String theirs) {
+    String filename = change.file.getFilename();
+    if (change.file.getAction() == File.Action.RENAME) {
+      deleteFile(path, change.basePath);
+    }
+    if (change.ours == null) {
+      // Deleted locally. If it was also changed remotely, the remote version is kept.
+      if (theirs != null && !theirs.equals(change.base)) {
+        return false;
+      }
+      deleteFile(path, filename);
+      return true;
+    }
+    String ours = new String(change.ours, UTF_8);
+    if (theirs == null || theirs.equals(change.base)) {
+      // Only changed locally. If it was deleted remotely, the local version is kept, which is a
+      // conflict if it has changes.
+      writeFile(path, filename, change.ours);
+      return theirs != null || change.base == null || change.base.equals(ours);
+    }
+    if (isBinary(change.ours)) {
+      // Changed on both sides, and can't be merged. The local version is kept.
+      writeFile(path, filename, change.ours);
+      return false;
+    }
+    String merged = textMerger.merge(change.base == null ? "" : change.base, ours, theirs);
+    if (merged != null) {
+      writeFile(path, filename, merged.getBytes(UTF_8));
+      return true;
+    }
+    // Conflicting changes, which git writes with conflict markers.
+    writeFile(path, filename, change.ours);
+    try {
+      String basePath = Files.createTempFile("sync_base", "").toString();
+      String theirsPath = Files.createTempFile("sync_theirs", "").toString();
+      try {
+        fileUtils.writeString(change.base == null ? "" : change.base, basePath);
+        fileUtils.writeString(theirs, theirsPath);
+        return repo.mergeFile(fileUtils.joinToAbsolutePath(path, filename), basePath, theirsPath);
+      } finally {
+        fileUtils.deleteFileOrDirectoryIfExists(basePath);
+        fileUtils.deleteFileOrDirectoryIfExists(theirsPath);
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot merge " + filename, e);
+    }
+  }
+
+  private static boolean isBinary(byte[] contents) {
+    for (byte b : contents) {
+      if (b == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void writeFile(String path, String filename, byte[] contents) {
+    try {
+      String filePath = fileUtils.joinToAbsolutePath(path, filename);
+      fileUtils.mkdirs(Paths.get(filePath).getParent().toString());
+      Files.write(Paths.get(filePath), contents);
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot write " + filename, e);
+    }
+  }
+
+  private void deleteFile(String path, String filename) {
+    fileUtils.deleteFileOrDirectoryIfExistsUnchecked(fileUtils.joinToAbsolutePath(path, filename));
+  }
+
   private void revertChanges(Map<String, String> repoToInitialBranch) {
     if (!repoToInitialBranch.isEmpty()) {
       repoToInitialBranch.forEach(
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2018 The StartupOS Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.startupos.tools.reviewer.aa.commands.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.google.startupos.common.CommonModule;
+import com.google.startupos.common.FileUtils;
+import com.google.startupos.common.TextMerger;
+import com.google.startupos.common.flags.Flags;
+import com.google.startupos.common.repo.GitRepo;
+import com.google.startupos.common.repo.GitRepoFactory;
+import com.google.startupos.tools.reviewer.aa.commands.SyncCommand;
+import dagger.Component;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.inject.Singleton;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests that {@link SyncCommand} keeps uncommitted changes when syncing fails. */
+public class SyncCommandTest {
+  @Singleton
+  @Component(modules = CommonModule.class)
+  interface TestComponent {
+    GitRepoFactory getFactory();
+
+    FileUtils getFileUtils();
+
+    TextMerger getTextMerger();
+  }
+
+  private FileUtils fileUtils;
+  private GitRepo repo;
+  private String remoteFolder;
+  private String repoFolder;
+  private SyncCommand syncCommand;
+
+  @Before
+  public void setup() throws Exception {
+    Flags.resetForTesting();
+    TestComponent component = DaggerSyncCommandTest_TestComponent.create();
+    fileUtils = component.getFileUtils();
+    String baseFolder = Files.createTempDirectory("sync").toAbsolutePath().toString();
+    String headFolder = fileUtils.joinToAbsolutePath(baseFolder, "head");
+    String workspaceFolder = fileUtils.joinToAbsolutePath(baseFolder, "ws");
+    remoteFolder = fileUtils.joinToAbsolutePath(baseFolder, "remote");
+    repoFolder = fileUtils.joinToAbsolutePath(workspaceFolder, "repo");
+    fileUtils.mkdirs(headFolder);
+    fileUtils.mkdirs(remoteFolder);
+    fileUtils.mkdirs(repoFolder);
+
+    runGit(remoteFolder, "init", "-q", "--bare");
+    repo = component.getFactory().create(repoFolder);
+    repo.init();
+    runGit(repoFolder, "symbolic-ref", "HEAD", "refs/heads/master");
+    repo.setUserDataForTesting();
+    writeFile("a.txt", "line 1\nline 2\nline 3\n");
+    writeFile("b.txt", "file b\n");
+    writeFile("deleted.txt", "to be deleted\n");
+    repo.commit(repo.getUncommittedFiles(), "Initial commit");
+    runGit(repoFolder, "remote", "add", "origin", remoteFolder);
+    runGit(repoFolder, "push", "-q", "-u", "origin", "master");
+
+    syncCommand =
+        new SyncCommand(
+            fileUtils,
+            component.getTextMerger(),
+            component.getFactory(),
+            headFolder,
+            "ws",
+            workspaceFolder);
+  }
+
+  private String runGit(String folder, String... args) throws IOException, InterruptedException {
+    List<String> command = new ArrayList<>();
+    command.add("git");
+    command.addAll(Arrays.asList(args));
+    Process process = new ProcessBuilder(command).directory(Paths.get(folder).toFile()).start();
+    String stdout = FileUtils.streamToString(process.getInputStream());
+    String stderr = FileUtils.streamToString(process.getErrorStream());
+    assertEquals(stderr, 0, process.waitFor());
+    return stdout;
+  }
+
+  private void writeFile(String path, String contents) {
+    fileUtils.writeStringUnchecked(contents, fileUtils.joinToAbsolutePath(repoFolder, path));
+  }
+
+  private String readFile(String path) {
+    return fileUtils.readFileUnchecked(fileUtils.joinToAbsolutePath(repoFolder, path));
+  }
+
+  private boolean fileExists(String path) {
+    return fileUtils.fileExists(fileUtils.joinToAbsolutePath(repoFolder, path));
+  }
+
+  // Makes uncommitted changes of every kind: modified, deleted, new and in a new folder.
+  private void makeLocalChanges() {
+    writeFile("a.txt", "line 1\nline 2\nline 3, changed locally\n");
+    fileUtils.deleteFileOrDirectoryIfExistsUnchecked(
+        fileUtils.joinToAbsolutePath(repoFolder, "deleted.txt"));
+    writeFile("new.txt", "new file\n");
+    writeFile("new_folder/new.txt", "new file in new folder\n");
+  }
+
+  private void assertLocalChangesKept() throws Exception {
+    assertEquals("line 1\nline 2\nline 3, changed locally\n", readFile("a.txt"));
+    assertFalse(fileExists("deleted.txt"));
+    assertEquals("new file\n", readFile("new.txt"));
+    assertEquals("new file in new folder\n", readFile("new_folder/new.txt"));
+    // The stash that the changes were put aside in is dropped once they're restored.
+    assertEquals("", runGit(repoFolder, "stash", "list"));
+  }
+
+  @Test
+  public void testLocalChangesAreMerged() throws Exception {
+    // Commits a remote change, and moves local master back to before it.
+    writeFile("b.txt", "file b, changed remotely\n");
+    repo.commit(repo.getUncommittedFiles(), "Remote change");
+    runGit(repoFolder, "push", "-q", "origin", "master");
+    runGit(repoFolder, "reset", "-q", "--hard", "HEAD~1");
+    makeLocalChanges();
+
+    syncCommand.run(new String[] {"sync"});
+
+    assertEquals("file b, changed remotely\n", readFile("b.txt"));
+    assertLocalChangesKept();
+  }
+
+  @Test
+  public void testLocalChangesAreKeptWhenPullFails() throws Exception {
+    repo.switchBranch("feature");
+    writeFile("b.txt", "file b, changed on feature\n");
+    repo.commit(repo.getUncommittedFiles(), "Feature change");
+    makeLocalChanges();
+    runGit(repoFolder, "remote", "set-url", "origin", remoteFolder + "_missing");
+
+    syncCommand.run(new String[] {"sync"});
+
+    assertEquals("feature", repo.currentBranch());
+    assertEquals("file b, changed on feature\n", readFile("b.txt"));
+    assertLocalChangesKept();
+  }
+
+  @Test
+  public void testLocalChangesAreKeptWhenMergeFails() throws Exception {
+    writeFile("b.txt", "file b, changed remotely\n");
+    repo.commit(repo.getUncommittedFiles(), "Remote change");
+    runGit(repoFolder, "push", "-q", "origin", "master");
+    runGit(repoFolder, "reset", "-q", "--hard", "HEAD~1");
+    repo.switchBranch("feature");
+    writeFile("b.txt", "file b, changed on feature\n");
+    repo.commit(repo.getUncommittedFiles(), "Conflicting feature change");
+    makeLocalChanges();
+
+    syncCommand.run(new String[] {"sync"});
+
+    assertEquals("feature", repo.currentBranch());
+    // The conflicting merge is undone, so there are no conflict markers.
+    assertEquals("file b, changed on feature\n", readFile("b.txt"));
+    assertFalse(repo.isMerging());
+    assertLocalChangesKept();
+  }
+}
@@ -22,6 +22,8 @@ import com.google.startupos.common.firestore.FirestoreProtoClient;
 import com.google.startupos.common.flags.Flag;
 import com.google.startupos.common.flags.FlagDesc;
 import com.google.startupos.common.flags.Flags;
+import com.google.startupos.common.repo.GitRepoFactory;
+import com.google.startupos.tools.reviewer.ReviewerConstants;
 import com.google.startupos.tools.reviewer.aa.AaModule;
 import com.google.startupos.tools.reviewer.aa.commands.InitCommand;
 import com.google.startupos.tools.reviewer.job.tasks.CiTask;
@@ -64,6 +66,14 @@ public class ReviewerJob {
   @FlagDesc(name = "service_account_json", description = "", required = true)
   public static Flag<String> serviceAccountJson = Flag.create("");
 
+  @FlagDesc(
+      name = "proto_encoding",
+      description =
+          "How Diffs are written to Firestore: BASE64, BLOB or COMPRESSED_BLOB. Other documents,"
+              + " e.g the registry that the web app reads with the REST API, are always BASE64."
+              + " The web app can read BASE64 and BLOB Diffs, but not COMPRESSED_BLOB ones")
+  public static Flag<String> protoEncoding = Flag.create("BASE64");
+
   private TaskExecutor taskExecutor;
   private InitCommand initCommand;
   // These are lazy because constructing them requires us to be in a base folder.
@@ -123,8 +133,12 @@ public class ReviewerJob {
         ReviewerMetadataUpdaterTask.class.getPackage(),
         InitCommand.class.getPackage(),
         LocalServer.class.getPackage(),
-        CodeReviewService.class.getPackage());
+        CodeReviewService.class.getPackage(),
+        GitRepoFactory.class.getPackage());
     FirestoreProtoClient client = new FirestoreProtoClient(serviceAccountJson.get());
+    client.setProtoEncoding(
+        ReviewerConstants.DIFF_COLLECTION,
+        FirestoreProtoClient.ProtoEncoding.valueOf(protoEncoding.get()));
     DaggerReviewerJob_JobComponent.builder().setFirestoreProtoClient(client).build().getJob().run();
   }
 }
@@ -62,7 +62,7 @@ public class GithubSyncTool {
   }
 
   public static void main(String[] args) throws IOException {
-    Flags.parseCurrentPackage(args);
+    Flags.parse(args, GithubSyncTool.class.getPackage(), GitRepoFactory.class.getPackage());
     GitRepoFactory gitRepoFactory =
         DaggerGithubSyncTool_GitubSyncToolComponent.builder().build().getGitRepoFactory();
     ImmutableMap<String, GitRepo> repoNameToGitRepos =
@@ -79,7 +79,9 @@ public class GithubSyncTool {
     ImmutableMap.Builder<String, GitRepo> result = ImmutableMap.builder();
     for (String repoPath : repoPaths) {
       String repoFolderName = repoPath.substring(repoPath.lastIndexOf('/') + 1);
-      result.put(repoFolderName, gitRepoFactory.create(repoPath));
+      result.put(
+          repoFolderName,
+          gitRepoFactory.create(repoPath, GitRepoFactory.inProcessGitReads.get()));
     }
     return result.build();
   }
@@ -17,6 +17,7 @@
 package com.google.startupos.tools.reviewer.job.sync;
 
 import com.google.common.flogger.FluentLogger;
+import com.google.startupos.common.MessageDifferencer;
 import com.google.startupos.tools.reviewer.job.sync.GithubPullRequestProtos.IssueComment;
 import com.google.startupos.tools.reviewer.job.sync.GithubPullRequestProtos.ReviewComment;
 import com.google.startupos.tools.reviewer.local_server.service.CodeReviewServiceGrpc;
@@ -32,6 +33,9 @@ import io.grpc.ManagedChannelBuilder;
 import java.util.List;
 
 public class ReviewerClient {
+  private static final MessageDifferencer DIFF_DIFFERENCER =
+      MessageDifferencer.newBuilder().build();
+
   private final CodeReviewServiceGrpc.CodeReviewServiceBlockingStub codeReviewBlockingStub;
 
   public ReviewerClient() {
@@ -49,7 +53,8 @@ public class ReviewerClient {
 
   public void addGithubPrNumber(
       long diffId, String owner, String repo, long githubPullRequestNumber) {
-    Diff.Builder diffBuilder = getDiff(diffId).toBuilder();
+    Diff diff = getDiff(diffId);
+    Diff.Builder diffBuilder = diff.toBuilder();
 
     List<GithubPr.Builder> githubPrs = diffBuilder.getGithubPrBuilderList();
     for (GithubPr.Builder githubPr : githubPrs) {
@@ -59,43 +64,45 @@ public class ReviewerClient {
       }
     }
 
-    updateDiff(diffBuilder.build());
-
-    log.atInfo().log(
-        "Diff with id *%s* is updated. "
-            + "Added the number *%s* of GitHub Pull Request "
-            + "to Reviewer GithubPr(owner: %s, repo: %s)",
-        diffId, githubPullRequestNumber, owner, repo);
+    if (updateDiff(diff, diffBuilder.build())) {
+      log.atInfo().log(
+          "Diff with id *%s* is updated. "
+              + "Added the number *%s* of GitHub Pull Request "
+              + "to Reviewer GithubPr(owner: %s, repo: %s)",
+          diffId, githubPullRequestNumber, owner, repo);
+    }
   }
 
   public void addGithubReviewCommentId(
       long diffId, String reviewerThreadId, long githubCommentId, String reviewerCommentId) {
-    Diff.Builder diffBuilder = getDiff(diffId).toBuilder();
+    Diff diff = getDiff(diffId);
+    Diff.Builder diffBuilder = diff.toBuilder();
     Comment.Builder comment =
         getCommentBuilder(
             diffBuilder.getCodeThreadBuilderList(), reviewerThreadId, reviewerCommentId);
     comment.setGithubCommentId(githubCommentId);
-    updateDiff(diffBuilder.build());
-
-    log.atInfo().log(
-        "Diff with id *%s* is updated. "
-            + "Added the id *%s* of GitHub review comment to the Reviewer "
-            + "code comment(thread_id: %s, comment_id: %s)",
-        diffId, githubCommentId, reviewerThreadId, reviewerCommentId);
+    if (updateDiff(diff, diffBuilder.build())) {
+      log.atInfo().log(
+          "Diff with id *%s* is updated. "
+              + "Added the id *%s* of GitHub review comment to the Reviewer "
+              + "code comment(thread_id: %s, comment_id: %s)",
+          diffId, githubCommentId, reviewerThreadId, reviewerCommentId);
+    }
   }
 
   public void addGithubReviewCommentPosition(
       long diffId, String reviewerThreadId, int githubCommentPosition, String reviewerCommentId) {
-    Diff.Builder diffBuilder = getDiff(diffId).toBuilder();
+    Diff diff = getDiff(diffId);
+    Diff.Builder diffBuilder = diff.toBuilder();
     int threadIndex = getThreadIndex(diffBuilder.getCodeThreadList(), reviewerThreadId);
     diffBuilder.getCodeThreadBuilder(threadIndex).setGithubCommentPosition(githubCommentPosition);
-    updateDiff(diffBuilder.build());
-
-    log.atInfo().log(
-        "Diff with id *%s* is updated. "
-            + "Added the comment position *%s* of GitHub review comment to the Reviewer "
-            + "code comment(thread_id: %s, comment_id: %s)",
-        diffId, githubCommentPosition, reviewerThreadId, reviewerCommentId);
+    if (updateDiff(diff, diffBuilder.build())) {
+      log.atInfo().log(
+          "Diff with id *%s* is updated. "
+              + "Added the comment position *%s* of GitHub review comment to the Reviewer "
+              + "code comment(thread_id: %s, comment_id: %s)",
+          diffId, githubCommentPosition, reviewerThreadId, reviewerCommentId);
+    }
   }
 
   public void updateCodeComment(
@@ -104,65 +111,70 @@ public class ReviewerClient {
       String reviewerCommentId,
       long githubReviewCommentId,
       String content) {
-    Diff.Builder diffBuilder = getDiff(diffId).toBuilder();
+    Diff diff = getDiff(diffId);
+    Diff.Builder diffBuilder = diff.toBuilder();
     Comment.Builder comment =
         getCommentBuilder(
             diffBuilder.getCodeThreadBuilderList(), reviewerThreadId, reviewerCommentId);
     comment.setContent(content);
-    updateDiff(diffBuilder.build());
-
-    log.atInfo().log(
-        "Diff with id *%s* is updated. "
-            + "Updated Reviewer code comment"
-            + "(thread_id: %s, comment_id: %s, github_comment_id: %s). New content: %s",
-        diffId, reviewerThreadId, reviewerCommentId, githubReviewCommentId, content);
+    if (updateDiff(diff, diffBuilder.build())) {
+      log.atInfo().log(
+          "Diff with id *%s* is updated. "
+              + "Updated Reviewer code comment"
+              + "(thread_id: %s, comment_id: %s, github_comment_id: %s). New content: %s",
+          diffId, reviewerThreadId, reviewerCommentId, githubReviewCommentId, content);
+    }
   }
 
   public void deleteCodeComment(
       long diffId, String reviewerThreadId, String reviewerCommentId, long githubReviewCommentId) {
-    Diff.Builder diffBuilder = getDiff(diffId).toBuilder();
+    Diff diff = getDiff(diffId);
+    Diff.Builder diffBuilder = diff.toBuilder();
     int threadIndex = getThreadIndex(diffBuilder.getCodeThreadList(), reviewerThreadId);
     Thread.Builder threadBuilder = diffBuilder.getCodeThreadBuilder(threadIndex);
     int commentIndex = getCommentIndex(threadBuilder.getCommentList(), reviewerCommentId);
     threadBuilder.removeComment(commentIndex);
-    updateDiff(diffBuilder.build());
-
-    log.atInfo().log(
-        "Diff with id *%s* is updated. "
-            + "Deleted Reviewer code comment(thread_id: %s, comment_id: %s, github_comment_id: %s)",
-        diffId, reviewerThreadId, reviewerCommentId, githubReviewCommentId);
+    if (updateDiff(diff, diffBuilder.build())) {
+      log.atInfo().log(
+          "Diff with id *%s* is updated. "
+              + "Deleted Reviewer code comment"
+              + "(thread_id: %s, comment_id: %s, github_comment_id: %s)",
+          diffId, reviewerThreadId, reviewerCommentId, githubReviewCommentId);
+    }
   }
 
   public void deleteThreadComment(
       long diffId, String reviewerThreadId, String reviewerCommentId, long githubReviewCommentId) {
-    Diff.Builder diffBuilder = getDiff(diffId).toBuilder();
+    Diff diff = getDiff(diffId);
+    Diff.Builder diffBuilder = diff.toBuilder();
     int threadIndex = getThreadIndex(diffBuilder.getDiffThreadList(), reviewerThreadId);
     Thread.Builder threadBuilder = diffBuilder.getDiffThreadBuilder(threadIndex);
     int commentIndex = getCommentIndex(threadBuilder.getCommentList(), reviewerCommentId);
     threadBuilder.removeComment(commentIndex);
-    updateDiff(diffBuilder.build());
-
-    log.atInfo().log(
-        "Diff with id *%s* is updated. "
-            + "Deleted Reviewer thread comment"
-            + "(thread_id: %s, comment_id: %s, github_comment_id: %s)",
-        diffId, reviewerThreadId, reviewerCommentId, githubReviewCommentId);
+    if (updateDiff(diff, diffBuilder.build())) {
+      log.atInfo().log(
+          "Diff with id *%s* is updated. "
+              + "Deleted Reviewer thread comment"
+              + "(thread_id: %s, comment_id: %s, github_comment_id: %s)",
+          diffId, reviewerThreadId, reviewerCommentId, githubReviewCommentId);
+    }
   }
 
   public void addGithubIssueCommentId(
       long diffId, String reviewerThreadId, long githubIssueCommentId, String reviewerCommentId) {
-    Diff.Builder diffBuilder = getDiff(diffId).toBuilder();
+    Diff diff = getDiff(diffId);
+    Diff.Builder diffBuilder = diff.toBuilder();
     Comment.Builder comment =
         getCommentBuilder(
             diffBuilder.getDiffThreadBuilderList(), reviewerThreadId, reviewerCommentId);
     comment.setGithubCommentId(githubIssueCommentId);
-    updateDiff(diffBuilder.build());
-
-    log.atInfo().log(
-        "Diff with id *%s* is updated. "
-            + "Added the id *%s* of GitHub issue comment to the Reviewer "
-            + "diff comment(thread_id: %s, comment_id: %s)",
-        diffId, githubIssueCommentId, reviewerThreadId, reviewerCommentId);
+    if (updateDiff(diff, diffBuilder.build())) {
+      log.atInfo().log(
+          "Diff with id *%s* is updated. "
+              + "Added the id *%s* of GitHub issue comment to the Reviewer "
+              + "diff comment(thread_id: %s, comment_id: %s)",
+          diffId, githubIssueCommentId, reviewerThreadId, reviewerCommentId);
+    }
   }
 
   public void updateDiffComment(
@@ -171,18 +183,19 @@ public class ReviewerClient {
       String reviewerCommentId,
       long githubIssueCommentId,
       String content) {
-    Diff.Builder diffBuilder = getDiff(diffId).toBuilder();
+    Diff diff = getDiff(diffId);
+    Diff.Builder diffBuilder = diff.toBuilder();
     Comment.Builder comment =
         getCommentBuilder(
             diffBuilder.getDiffThreadBuilderList(), reviewerThreadId, reviewerCommentId);
     comment.setContent(content);
-    updateDiff(diffBuilder.build());
-
-    log.atInfo().log(
-        "Diff with id *%s* is updated. "
-            + "Updated Reviewer diff comment"
-            + "(thread_id: %s, comment_id: %s, github_comment_id: %s). New content: %s",
-        diffId, reviewerThreadId, reviewerCommentId, githubIssueCommentId, content);
+    if (updateDiff(diff, diffBuilder.build())) {
+      log.atInfo().log(
+          "Diff with id *%s* is updated. "
+              + "Updated Reviewer diff comment"
+              + "(thread_id: %s, comment_id: %s, github_comment_id: %s). New content: %s",
+          diffId, reviewerThreadId, reviewerCommentId, githubIssueCommentId, content);
+    }
   }
 
   // TODO: Implement the method
@@ -215,8 +228,19 @@ public class ReviewerClient {
     throw new IllegalArgumentException(String.format("Can't find Comment with %s id.", id));
   }
 
-  private void updateDiff(Diff diff) {
-    codeReviewBlockingStub.createDiff(CreateDiffRequest.newBuilder().setDiff(diff).build());
+  // Saves `updatedDiff`, which was changed from `diff`, unless there are no changes. Returns
+  // whether it was saved.
+  private boolean updateDiff(Diff diff, Diff updatedDiff) {
+    MessageDifferencer.DeltaReporter reporter = new MessageDifferencer.DeltaReporter();
+    if (DIFF_DIFFERENCER.compare(diff, updatedDiff, reporter)) {
+      log.atInfo().log("Diff with id *%s* is unchanged, not saving it", diff.getId());
+      return false;
+    }
+    log.atInfo().log(
+        "Saving diff with id *%s*, changed fields: %s",
+        diff.getId(), reporter.toFieldMask().getPathsList());
+    codeReviewBlockingStub.createDiff(CreateDiffRequest.newBuilder().setDiff(updatedDiff).build());
+    return true;
   }
 
   private Comment.Builder getCommentBuilder(
@@ -138,7 +138,8 @@ public class CiTask implements Task {
       Repo repo = target.getRepo();
       String repoPath =
           fileUtils.joinPaths(fileUtils.getCurrentWorkingDirectory(), "ci", repo.getId());
-      GitRepo gitRepo = this.gitRepoFactory.create(repoPath);
+      GitRepo gitRepo =
+          this.gitRepoFactory.create(repoPath, GitRepoFactory.inProcessGitReads.get());
       try {
         if (fileUtils.folderEmptyOrNotExists(repoPath)) {
           gitRepo.cloneRepo(repo.getUrl(), repoPath);
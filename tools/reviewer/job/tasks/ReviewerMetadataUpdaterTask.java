@@ -127,7 +127,8 @@ public class ReviewerMetadataUpdaterTask implements Task {
   public void run() {
     if (lock.tryLock()) {
       try {
-        GitRepo repo = gitRepoFactory.create(REPO_DIRECTORY);
+        GitRepo repo =
+            gitRepoFactory.create(REPO_DIRECTORY, GitRepoFactory.inProcessGitReads.get());
 
         if (fileUtils.folderEmptyOrNotExists(REPO_DIRECTORY)) {
           repo.cloneRepo(repoUrl.get(), REPO_DIRECTORY);
@@ -17,6 +17,7 @@
 package com.google.startupos.tools.reviewer.job.tasks;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.flogger.FluentLogger;
 import com.google.startupos.common.FileUtils;
 import com.google.startupos.common.firestore.FirestoreProtoClient;
@@ -40,6 +41,10 @@ import javax.inject.Inject;
 
 public class SubmitterTask implements Task {
   private static FluentLogger log = FluentLogger.forEnclosingClass();
+  // The Diff fields that are needed to find Diffs to submit. Diffs are only parsed with these.
+  private static final ImmutableSet<Integer> DIFF_FIELD_NUMBERS =
+      ImmutableSet.of(
+          Diff.ID_FIELD_NUMBER, Diff.STATUS_FIELD_NUMBER, Diff.CI_RESPONSE_FIELD_NUMBER);
 
   private FileUtils fileUtils;
   private GitRepoFactory gitRepoFactory;
@@ -67,6 +72,7 @@ public class SubmitterTask implements Task {
       firestoreClient.addCollectionListener(
           ReviewerConstants.DIFF_COLLECTION,
           Diff.newBuilder(),
+          DIFF_FIELD_NUMBERS,
           new ProtoEventListener<ProtoQuerySnapshot<Diff>>() {
             @Override
             public void onEvent(
@@ -148,7 +154,7 @@ public class SubmitterTask implements Task {
       Repo repo = target.getRepo();
       String repoPath =
           fileUtils.joinPaths(fileUtils.getCurrentWorkingDirectory(), "submitter", repo.getId());
-      GitRepo gitRepo = gitRepoFactory.create(repoPath);
+      GitRepo gitRepo = gitRepoFactory.create(repoPath, GitRepoFactory.inProcessGitReads.get());
       gitRepos.add(gitRepo);
       try {
         if (fileUtils.folderEmptyOrNotExists(repoPath)) {
@@ -189,6 +195,13 @@ public class SubmitterTask implements Task {
       boolean allPushesSuccessful = gitRepos.stream().allMatch(repo -> repo.push("master"));
       if (allPushesSuccessful) {
         log.atInfo().log("All repos pushed successfully");
+        // The listener's Diff only has DIFF_FIELD_NUMBERS, so the whole Diff is read.
+        diff =
+            (Diff)
+                firestoreClient.getProtoDocument(
+                    ReviewerConstants.DIFF_COLLECTION,
+                    String.valueOf(diff.getId()),
+                    Diff.newBuilder());
         diff = diff.toBuilder().setStatus(Diff.Status.SUBMITTED).build();
         firestoreClient.setProtoDocument(
             ReviewerConstants.DIFF_COLLECTION, String.valueOf(diff.getId()), diff);
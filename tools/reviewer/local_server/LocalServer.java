@@ -66,6 +66,7 @@ public class LocalServer {
   private static final Flag<Boolean> logToFile = Flag.create(true);
 
   private final Server server;
+  private final CodeReviewService codeReviewService;
 
   public static class HeadUpdater extends TimerTask {
 
@@ -107,6 +108,7 @@ public class LocalServer {
       @Named("Server log path") String logPath,
       AuthService authService,
       CodeReviewService codeReviewService) {
+    this.codeReviewService = codeReviewService;
     if (logToFile.get()) {
       // TODO: Figure out how to also direct Flogger to log file.
       try {
@@ -143,6 +145,8 @@ public class LocalServer {
     if (server != null) {
       server.shutdown();
     }
+    // Diff writes may be batched, so pending ones are committed before the JVM exits.
+    codeReviewService.close();
   }
 
   public void blockUntilShutdown() throws InterruptedException {
@@ -168,7 +172,11 @@ public class LocalServer {
   }
 
   public static void main(String[] args) throws Exception {
-    Flags.parse(args, LocalServer.class.getPackage(), CodeReviewService.class.getPackage());
+    Flags.parse(
+        args,
+        LocalServer.class.getPackage(),
+        CodeReviewService.class.getPackage(),
+        GitRepoFactory.class.getPackage());
     checkFlags();
     LocalServerComponent component = DaggerLocalServer_LocalServerComponent.builder().build();
     LocalServer server = component.getLocalServer();
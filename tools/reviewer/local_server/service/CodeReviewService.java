@@ -16,12 +16,20 @@
 
 package com.google.startupos.tools.reviewer.local_server.service;
 
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.firestore.WriteResult;
 import com.google.common.collect.ImmutableList;
 import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.startupos.common.FileUtils;
 import com.google.startupos.common.Protos.TextDiff;
 import com.google.startupos.common.TextDifferencer;
 import com.google.startupos.common.firestore.FirestoreProtoClient;
+import com.google.startupos.common.firestore.ProtoWriteBatcher;
+import com.google.startupos.common.flags.Flag;
+import com.google.startupos.common.flags.FlagDesc;
+import com.google.startupos.common.repo.BlobCache;
 import com.google.startupos.common.repo.GitRepoFactory;
 import com.google.startupos.common.repo.Protos.BranchInfo;
 import com.google.startupos.common.repo.Protos.Commit;
@@ -48,10 +56,13 @@ import io.grpc.stub.StreamObserver;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
@@ -63,29 +74,134 @@ import javax.inject.Singleton;
 public class CodeReviewService extends CodeReviewServiceGrpc.CodeReviewServiceImplBase {
   private static final FluentLogger logger = FluentLogger.forEnclosingClass();
 
+  @FlagDesc(name = "blob_cache_bytes", description = "Memory budget for cached file contents")
+  private static final Flag<Long> blobCacheBytes = Flag.create(64L * 1024 * 1024);
+
+  @FlagDesc(
+      name = "blob_cache_spill_bytes",
+      description =
+          "Disk budget for file contents evicted from memory, under base path's local folder. "
+              + "0 disables spilling to disk.")
+  private static final Flag<Long> blobCacheSpillBytes = Flag.create(0L);
+
+  @FlagDesc(name = "text_diff_cache_bytes", description = "Memory budget for cached TextDiffs")
+  private static final Flag<Long> textDiffCacheBytes = Flag.create(32L * 1024 * 1024);
+
+  @FlagDesc(
+      name = "text_diff_cache_on_disk",
+      description = "Keep TextDiffs of committed files under base path's local folder")
+  private static final Flag<Boolean> textDiffCacheOnDisk = Flag.create(true);
+
+  @FlagDesc(
+      name = "parallel_word_diffs",
+      description = "Compute word changes of separate changed segments of a file in parallel")
+  private static final Flag<Boolean> parallelWordDiffs = Flag.create(true);
+
+  @FlagDesc(
+      name = "parallel_word_diff_threshold",
+      description = "Number of changed characters in a file from which word changes are parallel")
+  private static final Flag<Integer> parallelWordDiffThreshold = Flag.create(16 * 1024);
+
+  @FlagDesc(
+      name = "word_diff_timeout_ms",
+      description = "Time budget for word changes of a file. 0 means no limit.")
+  private static final Flag<Long> wordDiffTimeoutMs = Flag.create(2000L);
+
+  @FlagDesc(
+      name = "max_word_diff_segment_chars",
+      description =
+          "Maximal size of a changed segment to find word changes in. Larger segments only have "
+              + "line changes. 0 means no limit.")
+  private static final Flag<Integer> maxWordDiffSegmentChars = Flag.create(256 * 1024);
+
+  @FlagDesc(
+      name = "token_word_diffs",
+      description = "Find word changes by identifier, whitespace and punctuation tokens")
+  private static final Flag<Boolean> tokenWordDiffs = Flag.create(false);
+
+  @FlagDesc(
+      name = "cache_diffs",
+      description = "Keep read and written Diffs in memory, updated by a Firestore listener")
+  private static final Flag<Boolean> cacheDiffs = Flag.create(true);
+
+  @FlagDesc(
+      name = "diff_number_block_size",
+      description =
+          "Number of diff numbers to lease at once, that are then allocated without a Firestore "
+              + "request. Unallocated numbers are skipped when the server stops.")
+  private static final Flag<Integer> diffNumberBlockSize = Flag.create(1);
+
+  @FlagDesc(
+      name = "diff_write_batch_ms",
+      description =
+          "Time window in which Diff writes are batched, and writes of the same Diff are "
+              + "coalesced. createDiff returns before the write is committed, and a failed write "
+              + "fails the next createDiff or getDiff of the Diff. Pending writes are committed "
+              + "when the server stops. 0 writes each Diff before returning. Requires "
+              + "--cache_diffs.")
+  private static final Flag<Long> diffWriteBatchMs = Flag.create(0L);
+
   private final AuthService authService;
   private final FileUtils fileUtils;
   private final GitRepoFactory repoFactory;
   private final String basePath;
   private final TextDifferencer textDifferencer;
+  private final BlobCache blobCache;
+  private final TextDiffCache textDiffCache;
+  private final FirestoreClientHolder firestoreClientHolder;
+  private final DiffCache diffCache;
+  private final DiffNumberAllocator diffNumberAllocator;
+  // Null if Diffs aren't written in batches.
+  private final ProtoWriteBatcher diffWriteBatcher;
 
   @Inject
   public CodeReviewService(
       AuthService authService,
       FileUtils fileUtils,
       @Named("Base path") String basePath,
-      GitRepoFactory repoFactory,
-      TextDifferencer textDifferencer) {
+      GitRepoFactory repoFactory) {
     this.authService = authService;
     this.fileUtils = fileUtils;
     this.basePath = basePath;
     this.repoFactory = repoFactory;
-    this.textDifferencer = textDifferencer;
+    textDifferencer =
+        TextDifferencer.newBuilder()
+            .setWordDiffPool(parallelWordDiffs.get() ? ForkJoinPool.commonPool() : null)
+            .setParallelWordDiffThreshold(parallelWordDiffThreshold.get())
+            .setWordDiffTimeout(Duration.ofMillis(wordDiffTimeoutMs.get()))
+            .setMaxWordDiffSegmentChars(maxWordDiffSegmentChars.get())
+            .setTokenWordDiffs(tokenWordDiffs.get())
+            .build();
+    blobCache =
+        new BlobCache(
+            fileUtils,
+            blobCacheBytes.get(),
+            fileUtils.joinToAbsolutePath(basePath, "local", "blob_cache"),
+            blobCacheSpillBytes.get());
+    textDiffCache =
+        new TextDiffCache(
+            fileUtils,
+            textDiffCacheBytes.get(),
+            textDiffCacheOnDisk.get()
+                ? fileUtils.joinToAbsolutePath(basePath, "local", "text_diff_cache")
+                : "");
+    firestoreClientHolder = new FirestoreClientHolder(authService);
+    diffCache = cacheDiffs.get() ? new DiffCache() : null;
+    diffNumberAllocator = new DiffNumberAllocator(diffNumberBlockSize.get());
+    diffWriteBatcher =
+        diffCache != null && diffWriteBatchMs.get() > 0
+            ? new ProtoWriteBatcher(
+                firestoreClientHolder::get, Duration.ofMillis(diffWriteBatchMs.get()))
+            : null;
+  }
+
+  private Repo createRepo(String repoPath) {
+    return repoFactory.create(repoPath, GitRepoFactory.inProcessGitReads.get());
   }
 
   private Repo getHeadRepo(String repoId) {
     String repoPath = fileUtils.joinToAbsolutePath(basePath, "head", repoId);
-    return repoFactory.create(repoPath);
+    return createRepo(repoPath);
   }
 
   private void validateFile(File file) {
@@ -121,12 +237,17 @@ public class CodeReviewService extends CodeReviewServiceGrpc.CodeReviewServiceIm
   }
 
   private String readHeadFile(File file) {
-    Repo headRepo = getHeadRepo(file.getRepoId());
-    if (headRepo.fileExists(file.getCommitId(), file.getFilename())) {
-      return headRepo.getFileContents(file.getCommitId(), file.getFilename());
-    } else {
-      return null;
-    }
+    return blobCache.get(
+        file.getCommitId(),
+        file.getFilename(),
+        () -> {
+          Repo headRepo = getHeadRepo(file.getRepoId());
+          if (headRepo.fileExists(file.getCommitId(), file.getFilename())) {
+            return headRepo.getFileContents(file.getCommitId(), file.getFilename());
+          } else {
+            return null;
+          }
+        });
   }
 
   private String readWorkspaceFile(File file) throws IOException {
@@ -140,8 +261,10 @@ public class CodeReviewService extends CodeReviewServiceGrpc.CodeReviewServiceIm
       // It's a file in a repo
       String repoPath =
           fileUtils.joinToAbsolutePath(basePath, "ws", file.getWorkspace(), file.getRepoId());
-      Repo repo = repoFactory.create(repoPath);
-      return repo.getFileContents(file.getCommitId(), file.getFilename());
+      return blobCache.get(
+          file.getCommitId(),
+          file.getFilename(),
+          () -> createRepo(repoPath).getFileContents(file.getCommitId(), file.getFilename()));
     }
   }
 
@@ -180,29 +303,88 @@ public class CodeReviewService extends CodeReviewServiceGrpc.CodeReviewServiceIm
   @Override
   public void createDiff(CreateDiffRequest req, StreamObserver<Empty> responseObserver) {
     checkAuth();
-    FirestoreProtoClient client =
-        new FirestoreProtoClient(authService.getProjectId(), authService.getToken());
+    if (reportWriteFailure(req.getDiff().getId(), responseObserver)) {
+      return;
+    }
+    FirestoreProtoClient client = firestoreClientHolder.get();
     String diffPath = fileUtils.joinToAbsolutePath(ReviewerConstants.DIFF_COLLECTION);
     Diff diff =
         req.getDiff()
             .toBuilder()
             .setAuthor(Author.newBuilder().setEmail(authService.getUserEmail()).build())
             .build();
-    client.setProtoDocument(diffPath, String.valueOf(diff.getId()), diff);
+    if (diffWriteBatcher != null) {
+      writeDiffInBatch(diffPath, diff);
+    } else {
+      WriteResult writeResult =
+          client.setProtoDocument(diffPath, String.valueOf(diff.getId()), diff);
+      if (diffCache != null) {
+        diffCache.put(diff, writeResult.getUpdateTime());
+      }
+    }
     responseObserver.onNext(Empty.getDefaultInstance());
     responseObserver.onCompleted();
   }
 
-  // Return null if repo doesn't exist.
-  private Repo getRepo(File file) {
+  // Writes `diff` with the next batch, so that writes of the same Diff are coalesced. Until it's
+  // committed, it's read from the cache.
+  private void writeDiffInBatch(String diffPath, Diff diff) {
+    diffCache.putPending(diff);
+    ApiFutures.addCallback(
+        diffWriteBatcher.set(diffPath, String.valueOf(diff.getId()), diff),
+        new ApiFutureCallback<WriteResult>() {
+          @Override
+          public void onSuccess(WriteResult writeResult) {
+            diffCache.onWriteDone(diff, writeResult.getUpdateTime());
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            logger.atSevere().withCause(t).log("Cannot write diff %d", diff.getId());
+            diffCache.onWriteFailed(diff, t);
+          }
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  // Fails the request if the last batched write of the Diff with `diffId` failed, so that the
+  // failure isn't lost. Returns whether the request was failed.
+  private boolean reportWriteFailure(long diffId, StreamObserver<?> responseObserver) {
+    if (diffWriteBatcher == null) {
+      return false;
+    }
+    Throwable failure = diffCache.takeWriteFailure(diffId);
+    if (failure == null) {
+      return false;
+    }
+    responseObserver.onError(
+        Status.ABORTED
+            .withDescription(String.format("The last write of diff %d failed", diffId))
+            .withCause(failure)
+            .asException());
+    return true;
+  }
+
+  /** Commits pending Diff writes, and waits for them. Called when the server stops. */
+  public void close() {
+    if (diffWriteBatcher != null) {
+      diffWriteBatcher.close();
+    }
+  }
+
+  private String getRepoPath(File file) {
     if (file.getWorkspace().isEmpty()) {
-      return getHeadRepo(file.getRepoId());
+      return fileUtils.joinToAbsolutePath(basePath, "head", file.getRepoId());
     } else {
-      return repoFactory.create(
-          fileUtils.joinToAbsolutePath(basePath, "ws", file.getWorkspace(), file.getRepoId()));
+      return fileUtils.joinToAbsolutePath(basePath, "ws", file.getWorkspace(), file.getRepoId());
     }
   }
 
+  // Return null if repo doesn't exist.
+  private Repo getRepo(File file) {
+    return createRepo(getRepoPath(file));
+  }
+
   @Override
   public void getTextDiff(TextDiffRequest req, StreamObserver<TextDiffResponse> responseObserver) {
     logger.atInfo().log("TextDiff request\n%s", req);
@@ -221,36 +403,38 @@ public class CodeReviewService extends CodeReviewServiceGrpc.CodeReviewServiceIm
       file1 = getHeadFallbackIfNeeded(file1);
       file2 = getHeadFallbackIfNeeded(file2);
       Repo repo = getRepo(file1);
-      if (!repo.fileExists(file1.getCommitId(), file1.getFilename())
-          && !repo.fileExists(file2.getCommitId(), file2.getFilename())) {
+      String leftKey = getContentKey(repo, file1);
+      String rightKey = getContentKey(repo, file2);
+      if (leftKey == null && rightKey == null) {
         responseObserver.onNext(
             TextDiffResponse.newBuilder().setTextDiff(TextDiff.getDefaultInstance()).build());
         responseObserver.onError(
             Status.NOT_FOUND
                 .withDescription(String.format("TextDiffRequest: %s", req))
                 .asException());
-      } else if (!repo.fileExists(file1.getCommitId(), file1.getFilename())) {
-        String rightText = readTextFile(file2);
-        String diffString = "@@ -1 +1 @@\n" + addCharToEveryLine(rightText, '+');
-        responseObserver.onNext(
-            TextDiffResponse.newBuilder()
-                .setTextDiff(textDifferencer.getTextDiff("", rightText, diffString))
-                .build());
-      } else if (!repo.fileExists(file2.getCommitId(), file2.getFilename())) {
-        String leftText = readTextFile(file1);
-        String diffString = "@@ -1 +1 @@'n'" + addCharToEveryLine(leftText, '-');
-        responseObserver.onNext(
-            TextDiffResponse.newBuilder()
-                .setTextDiff(textDifferencer.getTextDiff(leftText, "", diffString))
-                .build());
       } else {
-        String leftText = readTextFile(file1);
-        String rightText = readTextFile(file2);
-        String diffString = repo.getTextDiff(file1, file2);
-        responseObserver.onNext(
-            TextDiffResponse.newBuilder()
-                .setTextDiff(textDifferencer.getTextDiff(leftText, rightText, diffString))
-                .build());
+        String cacheKey =
+            TextDiffCache.getKey(
+                getTextDiffOptions(),
+                getCacheKeyPart(leftKey, file1),
+                getCacheKeyPart(rightKey, file2));
+        TextDiff textDiff = textDiffCache.get(cacheKey);
+        if (textDiff == null) {
+          long timedOutSegments = textDifferencer.getTimedOutSegments();
+          textDiff = computeTextDiff(file1, leftKey != null, file2, rightKey != null);
+          // Diffs that timed out depend on timing, so they aren't kept on disk. This may also
+          // skip diffs computed concurrently with one that timed out, which is fine.
+          boolean timedOut = textDifferencer.getTimedOutSegments() != timedOutSegments;
+          if (timedOut) {
+            logger.atWarning().log(
+                "Word changes timed out for %s (%s)", file2.getFilename(), textDifferencer);
+          }
+          textDiffCache.put(
+              cacheKey,
+              textDiff,
+              !timedOut && !file1.getCommitId().isEmpty() && !file2.getCommitId().isEmpty());
+        }
+        responseObserver.onNext(TextDiffResponse.newBuilder().setTextDiff(textDiff).build());
       }
     } catch (IOException e) {
       e.printStackTrace();
@@ -264,30 +448,52 @@ public class CodeReviewService extends CodeReviewServiceGrpc.CodeReviewServiceIm
     responseObserver.onCompleted();
   }
 
-  private String addCharToEveryLine(String text, char c) {
-    return String.join(
-        "\n", Stream.of(text.split("\n")).map(line -> c + line).collect(Collectors.toList()));
+  private TextDiff computeTextDiff(File file1, boolean file1Exists, File file2, boolean file2Exists)
+      throws IOException {
+    String leftText = file1Exists ? readTextFile(file1) : "";
+    String rightText = file2Exists ? readTextFile(file2) : "";
+    return textDifferencer.getTextDiff(leftText, rightText);
+  }
+
+  // Differencer settings that change TextDiffs, for cache keys.
+  private String getTextDiffOptions() {
+    return String.format(
+        "%s,%d", tokenWordDiffs.get() ? "tokens" : "chars", maxWordDiffSegmentChars.get());
+  }
+
+  /**
+   * Returns a key that identifies the contents of `file`, or null if it doesn't exist. Committed
+   * files are identified by their blob id. Uncommitted files are identified by path, modification
+   * time and size, so that the key changes when they're edited.
+   */
+  private String getContentKey(Repo repo, File file) throws IOException {
+    if (!file.getCommitId().isEmpty()) {
+      return repo.getBlobId(file.getCommitId(), file.getFilename());
+    }
+    Path path = Paths.get(getRepoPath(file), file.getFilename());
+    if (!Files.isRegularFile(path)) {
+      return null;
+    }
+    return String.format(
+        "%s@%d:%d", path, Files.getLastModifiedTime(path).toMillis(), Files.size(path));
+  }
+
+  // readTextFile() returns an empty string for deleted files, whatever their contents are.
+  private static String getCacheKeyPart(String contentKey, File file) {
+    String result = contentKey == null ? "none" : contentKey;
+    return file.getAction() == Action.DELETE ? result + ":deleted" : result;
   }
 
-  // TODO: fix concurrency issues (if two different call method at same time)
-  // could be done by wrapping in a transaction
   @Override
   public void getAvailableDiffNumber(
       Empty request, StreamObserver<DiffNumberResponse> responseObserver) {
     checkAuth();
-    FirestoreProtoClient client =
-        new FirestoreProtoClient(authService.getProjectId(), authService.getToken());
+    FirestoreProtoClient client = firestoreClientHolder.get();
     try {
       DiffNumberResponse diffNumberResponse =
-          (DiffNumberResponse)
-              client.getProtoDocument(
-                  ReviewerConstants.LAST_DIFF_NUMBER_DOCUMENT, DiffNumberResponse.newBuilder());
-      diffNumberResponse =
-          diffNumberResponse
-              .toBuilder()
-              .setLastDiffId(diffNumberResponse.getLastDiffId() + 1)
+          DiffNumberResponse.newBuilder()
+              .setLastDiffId(diffNumberAllocator.allocate(client))
               .build();
-      client.setProtoDocument(ReviewerConstants.LAST_DIFF_NUMBER_DOCUMENT, diffNumberResponse);
       responseObserver.onNext(diffNumberResponse);
     } catch (Exception e) {
       StringWriter errors = new StringWriter();
@@ -300,14 +506,21 @@ public class CodeReviewService extends CodeReviewServiceGrpc.CodeReviewServiceIm
   @Override
   public void getDiff(DiffRequest request, StreamObserver<Protos.Diff> responseObserver) {
     checkAuth();
-    FirestoreProtoClient client =
-        new FirestoreProtoClient(authService.getProjectId(), authService.getToken());
-    Diff diff =
-        (Diff)
-            client.getProtoDocument(
-                ReviewerConstants.DIFF_COLLECTION,
-                String.valueOf(request.getDiffId()),
-                Diff.newBuilder());
+    if (reportWriteFailure(request.getDiffId(), responseObserver)) {
+      return;
+    }
+    FirestoreProtoClient client = firestoreClientHolder.get();
+    Diff diff;
+    if (diffCache != null) {
+      diff = diffCache.get(client, request.getDiffId());
+    } else {
+      diff =
+          (Diff)
+              client.getProtoDocument(
+                  ReviewerConstants.DIFF_COLLECTION,
+                  String.valueOf(request.getDiffId()),
+                  Diff.newBuilder());
+    }
 
     responseObserver.onNext(diff);
     responseObserver.onCompleted();
@@ -388,7 +601,7 @@ public class CodeReviewService extends CodeReviewServiceGrpc.CodeReviewServiceIm
           .forEach(
               path -> {
                 String repoName = Paths.get(path).getFileName().toString();
-                Repo repo = repoFactory.create(path);
+                Repo repo = createRepo(path);
                 if (!isHead) {
                   ImmutableList<Commit> commits =
                       addWorkspaceAndRepoToCommits(repo.getCommits(branch), workspace, repoName);
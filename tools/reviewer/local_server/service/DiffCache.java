@@ -0,0 +1,264 @@
+/*
+ * Copyright 2018 The StartupOS Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.startupos.tools.reviewer.local_server.service;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentChange;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.EventListener;
+import com.google.cloud.firestore.FirestoreException;
+import com.google.cloud.firestore.ListenerRegistration;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.QuerySnapshot;
+import com.google.common.flogger.FluentLogger;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.startupos.common.firestore.FirestoreProtoClient;
+import com.google.startupos.tools.reviewer.ReviewerConstants;
+import com.google.startupos.tools.reviewer.local_server.service.Protos.Diff;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
+
+/**
+ * Caches Diffs by id, so that reading them doesn't need a Firestore request.
+ *
+ * <p>Diffs are cached when they're read or written, and kept up to date by a listener on the Diff
+ * collection. Only Diffs that were read or written are cached, rather than every Diff the
+ * listener sees. Each Diff is cached with its Firestore update time, and only replaced by a newer
+ * version. That way, a listener event that was sent before a write never replaces the Diff that
+ * was written, and readers always see their own writes. Diffs whose writes aren't committed yet
+ * are returned until they are. If such a write fails, the Diff is rolled back and the failure is
+ * kept, so that the next request for the Diff can report it.
+ */
+public class DiffCache {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private static class Entry {
+    private final Diff diff;
+    // Timestamp.MAX_VALUE if the Diff is written, and the write isn't committed yet.
+    private final Timestamp updateTime;
+    // For Diffs that are written, the newest version read from Firestore meanwhile, or null.
+    @Nullable private final Entry latestRead;
+
+    Entry(Diff diff, Timestamp updateTime) {
+      this(diff, updateTime, null);
+    }
+
+    Entry(Diff diff, Timestamp updateTime, @Nullable Entry latestRead) {
+      this.diff = diff;
+      this.updateTime = updateTime;
+      this.latestRead = latestRead;
+    }
+
+    boolean isPending() {
+      return updateTime.equals(Timestamp.MAX_VALUE);
+    }
+  }
+
+  private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+  // Ids of Diffs that are being read from Firestore, with the number of reads. Listener events for
+  // them are cached too, so that a change during a read isn't missed.
+  private final Map<Long, Integer> readingIds = new ConcurrentHashMap<>();
+  // Failures of the last writes of Diffs, by id, that weren't reported yet.
+  private final Map<Long, Throwable> writeFailures = new ConcurrentHashMap<>();
+  // The client that the listener was added with. Guarded by this.
+  private FirestoreProtoClient listenerClient;
+  private ListenerRegistration listenerRegistration;
+
+  /** Returns the Diff with `diffId`, reading it with `client` if it's not cached. */
+  Diff get(FirestoreProtoClient client, long diffId) {
+    listen(client);
+    Diff cachedDiff = getCached(diffId);
+    if (cachedDiff != null) {
+      return cachedDiff;
+    }
+    readingIds.merge(diffId, 1, Integer::sum);
+    try {
+      DocumentSnapshot document =
+          client.getDocument(ReviewerConstants.DIFF_COLLECTION, String.valueOf(diffId));
+      Diff diff = (Diff) FirestoreProtoClient.parseProto(document, Diff.newBuilder());
+      put(diff, document.getUpdateTime());
+      return diff;
+    } catch (InvalidProtocolBufferException e) {
+      throw new IllegalStateException(e);
+    } finally {
+      readingIds.computeIfPresent(diffId, (id, reads) -> reads > 1 ? reads - 1 : null);
+    }
+  }
+
+  /** Returns the cached Diff with `diffId`, or null if it's not cached. */
+  @Nullable
+  public Diff getCached(long diffId) {
+    Entry entry = entries.get(diffId);
+    return entry == null ? null : entry.diff;
+  }
+
+  /** Caches `diff`, that was written or read at `updateTime`, unless a newer version is cached. */
+  public void put(Diff diff, @Nullable Timestamp updateTime) {
+    if (updateTime == null) {
+      // The version is unknown, so it can't be ordered with cached ones.
+      entries.remove(diff.getId());
+      return;
+    }
+    entries.merge(
+        diff.getId(),
+        new Entry(diff, updateTime),
+        (oldEntry, newEntry) -> {
+          if (oldEntry.isPending()) {
+            // The pending Diff is returned, but a newer version is kept for when it's committed.
+            return new Entry(
+                oldEntry.diff, oldEntry.updateTime, newer(oldEntry.latestRead, newEntry));
+          }
+          return newer(oldEntry, newEntry);
+        });
+  }
+
+  /**
+   * Caches `diff`, whose write isn't committed yet. It's returned, instead of any version read from
+   * Firestore, until {@link #onWriteDone} is called for it.
+   */
+  public void putPending(Diff diff) {
+    entries.merge(
+        diff.getId(),
+        new Entry(diff, Timestamp.MAX_VALUE),
+        (oldEntry, newEntry) ->
+            new Entry(
+                diff, Timestamp.MAX_VALUE, oldEntry.isPending() ? oldEntry.latestRead : null));
+  }
+
+  /**
+   * Called when the write of `diff`, that was cached with putPending(), is committed at
+   * `updateTime`.
+   */
+  public void onWriteDone(Diff diff, Timestamp updateTime) {
+    entries.computeIfPresent(
+        diff.getId(),
+        (diffId, entry) -> {
+          if (entry.diff != diff || !entry.isPending()) {
+            // A later write of the Diff is pending.
+            return entry;
+          }
+          return newer(entry.latestRead, new Entry(diff, updateTime));
+        });
+  }
+
+  /**
+   * Called when the write of `diff`, that was cached with putPending(), failed. The Diff is rolled
+   * back to the newest version read from Firestore, and `failure` is kept for {@link
+   * #takeWriteFailure}, unless a later write of the Diff is pending.
+   */
+  public void onWriteFailed(Diff diff, Throwable failure) {
+    entries.computeIfPresent(
+        diff.getId(),
+        (diffId, entry) -> {
+          if (entry.diff != diff || !entry.isPending()) {
+            return entry;
+          }
+          writeFailures.put(diffId, failure);
+          return entry.latestRead;
+        });
+  }
+
+  /** Returns the failure of the last write of the Diff with `diffId` once, or null if none. */
+  @Nullable
+  public Throwable takeWriteFailure(long diffId) {
+    return writeFailures.remove(diffId);
+  }
+
+  private static Entry newer(@Nullable Entry entry1, Entry entry2) {
+    return entry1 != null && entry1.updateTime.compareTo(entry2.updateTime) > 0 ? entry1 : entry2;
+  }
+
+  /**
+   * Called with each snapshot of the Diff collection. Only changes to Diffs that were read or
+   * written are parsed, so that a change to any Diff doesn't parse the whole collection, and the
+   * cache doesn't grow to it.
+   */
+  public void onSnapshot(QuerySnapshot snapshot) {
+    for (DocumentChange change : snapshot.getDocumentChanges()) {
+      QueryDocumentSnapshot document = change.getDocument();
+      long diffId;
+      try {
+        diffId = Long.parseLong(document.getId());
+      } catch (NumberFormatException e) {
+        continue;
+      }
+      if (change.getType() == DocumentChange.Type.REMOVED) {
+        entries.remove(diffId);
+        continue;
+      }
+      if (!entries.containsKey(diffId) && !readingIds.containsKey(diffId)) {
+        continue;
+      }
+      try {
+        Diff diff = (Diff) FirestoreProtoClient.parseProto(document, Diff.newBuilder());
+        put(diff, document.getUpdateTime());
+      } catch (InvalidProtocolBufferException e) {
+        // The cached version is outdated, but a pending write is still returned.
+        logger.atWarning().withCause(e).log("Cannot parse diff %d", diffId);
+        entries.computeIfPresent(
+            diffId,
+            (id, entry) -> entry.isPending() ? new Entry(entry.diff, entry.updateTime) : null);
+      }
+    }
+  }
+
+  // Adds the listener with `client`. If it was added with another client, e.g one for an older
+  // token or another project, it's moved to `client`. Cached Diffs weren't kept up to date in the
+  // meantime, or are from another project, so they're cleared like after a listener error.
+  private synchronized void listen(FirestoreProtoClient client) {
+    if (client == listenerClient) {
+      return;
+    }
+    if (listenerRegistration != null) {
+      listenerRegistration.remove();
+      clearCommitted();
+    }
+    listenerClient = client;
+    listenerRegistration =
+        client
+            .getCollectionReference(ReviewerConstants.DIFF_COLLECTION)
+            .addSnapshotListener(
+                new EventListener<QuerySnapshot>() {
+                  @Override
+                  public void onEvent(
+                      @Nullable QuerySnapshot snapshot, @Nullable FirestoreException e) {
+                    if (e != null) {
+                      onListenerError(client, e);
+                      return;
+                    }
+                    onSnapshot(snapshot);
+                  }
+                });
+  }
+
+  // Firestore stops a listener after an error, so cached Diffs can't be kept up to date anymore.
+  // They're cleared, except for pending ones, and the listener is added again on the next read.
+  private synchronized void onListenerError(FirestoreProtoClient client, FirestoreException e) {
+    logger.atWarning().withCause(e).log("Diff listener failed, clearing cached Diffs");
+    if (client == listenerClient) {
+      listenerClient = null;
+      listenerRegistration = null;
+      clearCommitted();
+    }
+  }
+
+  /** Clears the cached Diffs, except for the ones whose writes aren't committed yet. */
+  public void clearCommitted() {
+    entries.values().removeIf(entry -> !entry.isPending());
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2018 The StartupOS Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.startupos.tools.reviewer.local_server.service;
+
+import com.google.common.base.Preconditions;
+import com.google.common.flogger.FluentLogger;
+import com.google.startupos.common.firestore.FirestoreProtoClient;
+import com.google.startupos.tools.reviewer.ReviewerConstants;
+import com.google.startupos.tools.reviewer.local_server.service.Protos.DiffNumberResponse;
+
+/**
+ * Allocates diff numbers, that are unique even if several servers allocate them at the same time.
+ *
+ * <p>The last allocated number is increased in a Firestore transaction. To save a transaction for
+ * each diff, numbers can be leased in blocks, that are then allocated locally. Numbers of a block
+ * that aren't allocated before the server stops, or before the client's project changes, are
+ * skipped. Blocks are leased for a project, and only allocated with clients for that project.
+ */
+public class DiffNumberAllocator {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private final int blockSize;
+  // The leased numbers that weren't allocated yet are [nextNumber, lastLeasedNumber], in the
+  // project with leaseProjectId. Guarded by this.
+  private long nextNumber = 1;
+  private long lastLeasedNumber;
+  private String leaseProjectId;
+
+  public DiffNumberAllocator(int blockSize) {
+    Preconditions.checkArgument(blockSize > 0, "Block size must be positive: %s", blockSize);
+    this.blockSize = blockSize;
+  }
+
+  /** Returns a new diff number, leasing a block of numbers with `client` if needed. */
+  public synchronized long allocate(FirestoreProtoClient client) {
+    String projectId = client.getProjectId();
+    if (!projectId.equals(leaseProjectId)) {
+      if (nextNumber <= lastLeasedNumber) {
+        logger.atInfo().log(
+            "Skipping diff numbers %d to %d of project %s, since the project changed to %s",
+            nextNumber, lastLeasedNumber, leaseProjectId, projectId);
+      }
+      nextNumber = 1;
+      lastLeasedNumber = 0;
+      leaseProjectId = projectId;
+    }
+    if (nextNumber > lastLeasedNumber) {
+      DiffNumberResponse lease =
+          (DiffNumberResponse)
+              client.updateProtoDocument(
+                  ReviewerConstants.LAST_DIFF_NUMBER_DOCUMENT,
+                  DiffNumberResponse.newBuilder(),
+                  proto -> {
+                    DiffNumberResponse last = (DiffNumberResponse) proto;
+                    return last.toBuilder().setLastDiffId(last.getLastDiffId() + blockSize).build();
+                  });
+      lastLeasedNumber = lease.getLastDiffId();
+      nextNumber = lastLeasedNumber - blockSize + 1;
+      if (blockSize > 1) {
+        logger.atInfo().log("Leased diff numbers %d to %d", nextNumber, lastLeasedNumber);
+      }
+    }
+    return nextNumber++;
+  }
+}
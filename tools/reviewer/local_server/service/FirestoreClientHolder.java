@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018 The StartupOS Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.startupos.tools.reviewer.local_server.service;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.startupos.common.firestore.FirestoreProtoClient;
+
+/**
+ * Holds a FirestoreProtoClient for the current project and token of {@link AuthService}, so that
+ * it's not created for every request.
+ *
+ * <p>When the token changes, e.g when it's refreshed, a client is created for the new token, and
+ * replaces the old one. The old client is closed on the next replacement, so that requests that
+ * still use it can finish.
+ */
+class FirestoreClientHolder {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private static class Entry {
+    private final String projectId;
+    private final String token;
+    private final FirestoreProtoClient client;
+
+    Entry(String projectId, String token, FirestoreProtoClient client) {
+      this.projectId = projectId;
+      this.token = token;
+      this.client = client;
+    }
+
+    boolean isFor(String projectId, String token) {
+      return this.projectId.equals(projectId) && this.token.equals(token);
+    }
+  }
+
+  private final AuthService authService;
+  private volatile Entry current;
+  // Guarded by this
+  private Entry previous;
+  private int generation;
+
+  FirestoreClientHolder(AuthService authService) {
+    this.authService = authService;
+  }
+
+  /** Returns a client for the current project and token. */
+  FirestoreProtoClient get() {
+    String projectId = authService.getProjectId();
+    String token = authService.getToken();
+    Entry entry = current;
+    if (entry != null && entry.isFor(projectId, token)) {
+      return entry.client;
+    }
+    synchronized (this) {
+      entry = current;
+      if (entry != null && entry.isFor(projectId, token)) {
+        return entry.client;
+      }
+      generation++;
+      logger.atInfo().log("Creating Firestore client %d for project %s", generation, projectId);
+      current =
+          new Entry(
+              projectId,
+              token,
+              new FirestoreProtoClient(projectId, token, "code_review_service_" + generation));
+      if (previous != null) {
+        previous.client.close();
+      }
+      previous = entry;
+      return current.client;
+    }
+  }
+}
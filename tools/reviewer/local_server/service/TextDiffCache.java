@@ -0,0 +1,135 @@
+/*
+ * Copyright 2018 The StartupOS Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.startupos.tools.reviewer.local_server.service;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.hash.Hashing;
+import com.google.startupos.common.FileUtils;
+import com.google.startupos.common.Protos.TextDiff;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Caches computed {@link TextDiff}s, keyed by what identifies the contents of both sides (see
+ * {@link CodeReviewService}).
+ *
+ * <p>Entries are kept in memory, up to a byte budget. Entries for committed files never change, so
+ * they're also written to a disk folder that's kept between runs. Entries for workspace files are
+ * keyed by modification time and size, so they're only kept in memory, where stale ones are
+ * evicted.
+ */
+class TextDiffCache {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  // Increase when TextDiffs computed for the same files change, so old disk entries aren't used.
+  private static final int VERSION = 2;
+  // If the disk folder has more entries than this on start, it's cleared.
+  private static final int MAX_DISK_ENTRIES = 100000;
+
+  private final FileUtils fileUtils;
+  private final String diskFolder;
+  private final Cache<String, TextDiff> memory;
+
+  /**
+   * Creates a cache that holds up to `maxBytes` of serialized TextDiffs in memory. If `diskFolder`
+   * is not empty, committed entries are also kept there.
+   */
+  TextDiffCache(FileUtils fileUtils, long maxBytes, String diskFolder) {
+    this.fileUtils = fileUtils;
+    this.diskFolder = diskFolder;
+    memory =
+        CacheBuilder.newBuilder()
+            .maximumWeight(maxBytes)
+            .<String, TextDiff>weigher((key, textDiff) -> textDiff.getSerializedSize())
+            .build();
+    if (!diskFolder.isEmpty()) {
+      try {
+        if (fileUtils.folderExists(diskFolder)
+            && fileUtils.listContents(diskFolder).size() > MAX_DISK_ENTRIES) {
+          fileUtils.clearDirectory(diskFolder);
+        }
+      } catch (IOException e) {
+        logger.atWarning().withCause(e).log("Cannot list TextDiff cache folder %s", diskFolder);
+      }
+      fileUtils.mkdirs(diskFolder);
+    }
+  }
+
+  /**
+   * Returns a cache key for a diff between contents identified by `leftKey` and `rightKey`.
+   * `options` identifies the differencer settings that change the result.
+   */
+  static String getKey(String options, String leftKey, String rightKey) {
+    return String.format("v%d %s %s %s", VERSION, options, leftKey, rightKey);
+  }
+
+  /** Returns the TextDiff for `key`, or null if it's not cached. */
+  TextDiff get(String key) {
+    TextDiff textDiff = memory.getIfPresent(key);
+    if (textDiff != null || diskFolder.isEmpty()) {
+      return textDiff;
+    }
+    String path = getDiskPath(key);
+    if (!fileUtils.fileExists(path)) {
+      return null;
+    }
+    try {
+      textDiff = (TextDiff) fileUtils.readProtoBinary(path, TextDiff.newBuilder());
+    } catch (IOException | RuntimeException e) {
+      logger.atWarning().withCause(e).log("Cannot read cached TextDiff %s", path);
+      return null;
+    }
+    memory.put(key, textDiff);
+    return textDiff;
+  }
+
+  /**
+   * Caches `textDiff` for `key`. If `committed` is true, the contents of both sides can't change,
+   * and it's also written to disk.
+   */
+  void put(String key, TextDiff textDiff, boolean committed) {
+    memory.put(key, textDiff);
+    if (!committed || diskFolder.isEmpty()) {
+      return;
+    }
+    // Written to a temp file and moved, so that concurrent reads never see a partial file.
+    Path path = Paths.get(getDiskPath(key));
+    Path tempPath = null;
+    try {
+      tempPath = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+      Files.write(tempPath, textDiff.toByteArray());
+      Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Cannot write cached TextDiff %s", path);
+      if (tempPath != null) {
+        fileUtils.deleteFileOrDirectoryIfExistsUnchecked(tempPath.toString());
+      }
+    }
+  }
+
+  private String getDiskPath(String key) {
+    return fileUtils.joinToAbsolutePath(
+        diskFolder, Hashing.sha256().hashString(key, UTF_8).toString());
+  }
+}
@@ -22,7 +22,6 @@ import static org.mockito.Mockito.when;
 
 import com.google.startupos.common.CommonModule;
 import com.google.startupos.common.FileUtils;
-import com.google.startupos.common.TextDifferencer;
 import com.google.startupos.common.firestore.FirestoreProtoClient;
 import com.google.startupos.common.flags.Flags;
 import com.google.startupos.common.repo.GitRepo;
@@ -113,8 +112,7 @@ public class CodeReviewServiceGetDiffFilesTest {
             component.getAuthService(),
             fileUtils,
             aaBaseFolder,
-            gitRepoFactory,
-            component.getTextDifferencer());
+            gitRepoFactory);
 
     createInitialRepo(initialRepoFolder);
     initAaBase(initialRepoFolder, aaBaseFolder);
@@ -145,8 +143,6 @@ public class CodeReviewServiceGetDiffFilesTest {
     WorkspaceCommand getWorkspaceCommand();
 
     FileUtils getFileUtils();
-
-    TextDifferencer getTextDifferencer();
   }
 
   private void createInitialRepo(String initialRepoFolder) {
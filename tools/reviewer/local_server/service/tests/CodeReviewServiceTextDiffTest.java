@@ -122,8 +122,7 @@ public class CodeReviewServiceTextDiffTest {
             component.getAuthService(),
             fileUtils,
             aaBaseFolder,
-            gitRepoFactory,
-            component.getTextDifferencer());
+            gitRepoFactory);
 
     createInitialRepo(initialRepoFolder);
     initAaBase(initialRepoFolder, aaBaseFolder);
@@ -337,6 +336,39 @@ public class CodeReviewServiceTextDiffTest {
     assertEquals(getExpectedResponse("Some changes"), response);
   }
 
+  // MODIFY, locally modified again after a previous request
+  @Test
+  public void testTextDiff_locallyModifiedAfterPreviousRequest() {
+    writeFile("Some changes");
+    File file =
+        File.newBuilder()
+            .setRepoId("startup-os")
+            .setWorkspace(TEST_WORKSPACE)
+            .setFilename(TEST_FILE)
+            .build();
+    getResponse(file);
+    writeFile("Some more changes");
+
+    TextDiffResponse response = getResponse(file);
+    assertEquals(getExpectedResponse("Some more changes"), response);
+  }
+
+  // Committed, requested twice
+  @Test
+  public void testTextDiff_committedRequestedTwice() {
+    File file =
+        File.newBuilder()
+            .setRepoId("startup-os")
+            .setWorkspace(TEST_WORKSPACE)
+            .setCommitId(testFileCommitId)
+            .setFilename(TEST_FILE)
+            .build();
+    getResponse(file);
+
+    TextDiffResponse response = getResponse(file);
+    assertEquals(getExpectedResponse(TEST_FILE_CONTENTS), response);
+  }
+
   // RENAME, locally modified, workspace exists, previously committed
   @Test
   public void renamedWorkspaceExistsPreviouslyCommitted() {
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2018 The StartupOS Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.startupos.tools.reviewer.local_server.service.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentChange;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.QuerySnapshot;
+import com.google.common.collect.ImmutableMap;
+import com.google.startupos.common.firestore.FirestoreProtoClient;
+import com.google.startupos.common.firestore.FirestoreProtoClient.ProtoEncoding;
+import com.google.startupos.tools.reviewer.local_server.service.DiffCache;
+import com.google.startupos.tools.reviewer.local_server.service.Protos.Diff;
+import java.util.Collections;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link DiffCache}, without Firestore. */
+@RunWith(JUnit4.class)
+public class DiffCacheTest {
+  private static final long DIFF_ID = 1;
+  // A truncated proto: field 1 with a length of 5, but no bytes.
+  private static final Map<String, Object> UNDECODABLE_DATA = ImmutableMap.of("proto", "CgU=");
+
+  private DiffCache diffCache;
+
+  @Before
+  public void setup() {
+    diffCache = new DiffCache();
+  }
+
+  private static Diff createDiff(String description) {
+    return Diff.newBuilder().setId(DIFF_ID).setDescription(description).build();
+  }
+
+  private static Timestamp time(long seconds) {
+    return Timestamp.ofTimeSecondsAndNanos(seconds, 0);
+  }
+
+  @Test
+  public void testPutKeepsNewerVersion() {
+    Diff version2 = createDiff("version 2");
+    diffCache.put(version2, time(2));
+    diffCache.put(createDiff("version 1"), time(1));
+    assertEquals(version2, diffCache.getCached(DIFF_ID));
+
+    Diff version3 = createDiff("version 3");
+    diffCache.put(version3, time(3));
+    assertEquals(version3, diffCache.getCached(DIFF_ID));
+  }
+
+  @Test
+  public void testPutWithoutUpdateTimeRemovesDiff() {
+    diffCache.put(createDiff("version 1"), time(1));
+    // It can't be ordered with the cached version, so neither is cached.
+    diffCache.put(createDiff("version 2"), null);
+    assertNull(diffCache.getCached(DIFF_ID));
+  }
+
+  @Test
+  public void testPendingDiffIsReturnedUntilWriteIsDone() {
+    diffCache.put(createDiff("version 1"), time(1));
+    Diff written = createDiff("written");
+    diffCache.putPending(written);
+    // A version read meanwhile doesn't replace the pending one.
+    diffCache.put(createDiff("version 2"), time(2));
+    assertEquals(written, diffCache.getCached(DIFF_ID));
+
+    diffCache.onWriteDone(written, time(3));
+    assertEquals(written, diffCache.getCached(DIFF_ID));
+  }
+
+  @Test
+  public void testNewerReadReplacesDiffWhenWriteIsDone() {
+    Diff written = createDiff("written");
+    diffCache.putPending(written);
+    Diff version3 = createDiff("version 3");
+    diffCache.put(version3, time(3));
+
+    diffCache.onWriteDone(written, time(2));
+    assertEquals(version3, diffCache.getCached(DIFF_ID));
+  }
+
+  @Test
+  public void testFailedWriteIsRolledBack() {
+    diffCache.put(createDiff("version 1"), time(1));
+    Diff written = createDiff("written");
+    diffCache.putPending(written);
+    diffCache.onWriteFailed(written, new RuntimeException("write 1 failed"));
+    // The version from before the write may be outdated, so nothing is cached.
+    assertNull(diffCache.getCached(DIFF_ID));
+
+    diffCache.putPending(written);
+    Diff version2 = createDiff("version 2");
+    diffCache.put(version2, time(2));
+    diffCache.onWriteFailed(written, new RuntimeException("write 2 failed"));
+    assertEquals(version2, diffCache.getCached(DIFF_ID));
+  }
+
+  @Test
+  public void testWriteFailureIsTakenOnce() {
+    Diff written = createDiff("written");
+    diffCache.putPending(written);
+    RuntimeException failure = new RuntimeException("write failed");
+    diffCache.onWriteFailed(written, failure);
+
+    assertEquals(failure, diffCache.takeWriteFailure(DIFF_ID));
+    assertNull(diffCache.takeWriteFailure(DIFF_ID));
+  }
+
+  @Test
+  public void testWriteFailureIsIgnoredIfLaterWriteIsPending() {
+    Diff written1 = createDiff("written 1");
+    Diff written2 = createDiff("written 2");
+    diffCache.putPending(written1);
+    diffCache.putPending(written2);
+    diffCache.onWriteFailed(written1, new RuntimeException("write failed"));
+
+    assertEquals(written2, diffCache.getCached(DIFF_ID));
+    assertNull(diffCache.takeWriteFailure(DIFF_ID));
+  }
+
+  @Test
+  public void testLaterPendingWriteIsKept() {
+    Diff written1 = createDiff("written 1");
+    Diff written2 = createDiff("written 2");
+    diffCache.putPending(written1);
+    diffCache.putPending(written2);
+    diffCache.onWriteDone(written1, time(1));
+    assertEquals(written2, diffCache.getCached(DIFF_ID));
+  }
+
+  private static QueryDocumentSnapshot createDocument(
+      long diffId, Map<String, Object> data, Timestamp updateTime) {
+    QueryDocumentSnapshot document = mock(QueryDocumentSnapshot.class);
+    when(document.getId()).thenReturn(String.valueOf(diffId));
+    when(document.getData()).thenReturn(data);
+    when(document.getUpdateTime()).thenReturn(updateTime);
+    return document;
+  }
+
+  private static QueryDocumentSnapshot createDocument(Diff diff, Timestamp updateTime) {
+    return createDocument(
+        diff.getId(), FirestoreProtoClient.encodeProto(diff, ProtoEncoding.BASE64), updateTime);
+  }
+
+  private static QuerySnapshot createSnapshot(
+      DocumentChange.Type type, QueryDocumentSnapshot document) {
+    DocumentChange change = mock(DocumentChange.class);
+    when(change.getType()).thenReturn(type);
+    when(change.getDocument()).thenReturn(document);
+    QuerySnapshot snapshot = mock(QuerySnapshot.class);
+    when(snapshot.getDocumentChanges()).thenReturn(Collections.singletonList(change));
+    return snapshot;
+  }
+
+  @Test
+  public void testListenerOnlyUpdatesCachedDiffs() {
+    Diff version1 = createDiff("version 1");
+    diffCache.onSnapshot(
+        createSnapshot(DocumentChange.Type.ADDED, createDocument(version1, time(1))));
+    assertNull(diffCache.getCached(DIFF_ID));
+
+    diffCache.put(version1, time(1));
+    Diff version2 = createDiff("version 2");
+    diffCache.onSnapshot(
+        createSnapshot(DocumentChange.Type.MODIFIED, createDocument(version2, time(2))));
+    assertEquals(version2, diffCache.getCached(DIFF_ID));
+
+    diffCache.onSnapshot(
+        createSnapshot(DocumentChange.Type.REMOVED, createDocument(version2, time(2))));
+    assertNull(diffCache.getCached(DIFF_ID));
+  }
+
+  @Test
+  public void testChangeToUncachedDiffIsNotParsed() {
+    diffCache.put(createDiff("version 1"), time(1));
+    // Undecodable, so that the listener would fail if it parsed the change.
+    QueryDocumentSnapshot document = createDocument(DIFF_ID + 1, UNDECODABLE_DATA, time(2));
+
+    diffCache.onSnapshot(createSnapshot(DocumentChange.Type.MODIFIED, document));
+
+    verify(document, never()).getData();
+    assertNull(diffCache.getCached(DIFF_ID + 1));
+    assertEquals(createDiff("version 1"), diffCache.getCached(DIFF_ID));
+  }
+
+  @Test
+  public void testUndecodableChangeRemovesCachedDiff() {
+    diffCache.put(createDiff("version 1"), time(1));
+    QueryDocumentSnapshot document = createDocument(DIFF_ID, UNDECODABLE_DATA, time(2));
+
+    diffCache.onSnapshot(createSnapshot(DocumentChange.Type.MODIFIED, document));
+
+    assertNull(diffCache.getCached(DIFF_ID));
+  }
+
+  @Test
+  public void testClearCommittedKeepsPendingDiffs() {
+    Diff committed = createDiff("committed");
+    diffCache.put(committed, time(1));
+    Diff pending = Diff.newBuilder().setId(DIFF_ID + 1).build();
+    diffCache.putPending(pending);
+
+    diffCache.clearCommitted();
+    assertNull(diffCache.getCached(DIFF_ID));
+    assertEquals(pending, diffCache.getCached(DIFF_ID + 1));
+  }
+}
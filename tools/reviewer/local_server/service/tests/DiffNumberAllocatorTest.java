@@ -0,0 +1,128 @@
+/*
+ * Copyright 2018 The StartupOS Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.startupos.tools.reviewer.local_server.service.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.protobuf.Message;
+import com.google.startupos.common.firestore.FirestoreProtoClient;
+import com.google.startupos.tools.reviewer.ReviewerConstants;
+import com.google.startupos.tools.reviewer.local_server.service.DiffNumberAllocator;
+import com.google.startupos.tools.reviewer.local_server.service.Protos.DiffNumberResponse;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link DiffNumberAllocator}, with a fake last diff number document per project. */
+@RunWith(JUnit4.class)
+public class DiffNumberAllocatorTest {
+  // The last leased diff number of each project.
+  private Map<String, Long> lastDiffIds;
+  private int leaseCount;
+
+  @Before
+  public void setup() {
+    lastDiffIds = new HashMap<>();
+    leaseCount = 0;
+  }
+
+  private FirestoreProtoClient createClient(String projectId) {
+    FirestoreProtoClient client = mock(FirestoreProtoClient.class);
+    when(client.getProjectId()).thenReturn(projectId);
+    when(client.updateProtoDocument(eq(ReviewerConstants.LAST_DIFF_NUMBER_DOCUMENT), any(), any()))
+        .thenAnswer(
+            invocation -> {
+              UnaryOperator<Message> update = invocation.getArgument(2);
+              DiffNumberResponse last =
+                  DiffNumberResponse.newBuilder()
+                      .setLastDiffId(lastDiffIds.getOrDefault(projectId, 0L))
+                      .build();
+              DiffNumberResponse updated = (DiffNumberResponse) update.apply(last);
+              lastDiffIds.put(projectId, updated.getLastDiffId());
+              leaseCount++;
+              return updated;
+            });
+    return client;
+  }
+
+  @Test
+  public void testBlockSizeOneLeasesEachNumber() {
+    DiffNumberAllocator allocator = new DiffNumberAllocator(1);
+    FirestoreProtoClient client = createClient("project");
+    for (long number = 1; number <= 5; number++) {
+      assertEquals(number, allocator.allocate(client));
+    }
+    assertEquals(5, leaseCount);
+    assertEquals(5L, (long) lastDiffIds.get("project"));
+  }
+
+  @Test
+  public void testBlockNumbersAreConsecutive() {
+    DiffNumberAllocator allocator = new DiffNumberAllocator(10);
+    FirestoreProtoClient client = createClient("project");
+    lastDiffIds.put("project", 100L);
+    for (long number = 101; number <= 125; number++) {
+      assertEquals(number, allocator.allocate(client));
+    }
+    assertEquals(3, leaseCount);
+    assertEquals(130L, (long) lastDiffIds.get("project"));
+  }
+
+  @Test
+  public void testServersAllocateUniqueNumbers() {
+    FirestoreProtoClient client = createClient("project");
+    DiffNumberAllocator[] allocators = {
+      new DiffNumberAllocator(1), new DiffNumberAllocator(3), new DiffNumberAllocator(10)
+    };
+    Set<Long> numbers = new HashSet<>();
+    for (int i = 0; i < 100; i++) {
+      long number = allocators[i % allocators.length].allocate(client);
+      assertTrue("Allocated twice: " + number, numbers.add(number));
+    }
+  }
+
+  @Test
+  public void testProjectChangeLeasesNewBlock() {
+    DiffNumberAllocator allocator = new DiffNumberAllocator(10);
+    FirestoreProtoClient client1 = createClient("project1");
+    FirestoreProtoClient client2 = createClient("project2");
+    lastDiffIds.put("project2", 50L);
+    assertEquals(1, allocator.allocate(client1));
+    assertEquals(2, allocator.allocate(client1));
+
+    // Numbers left in project1's block aren't allocated in project2.
+    assertEquals(51, allocator.allocate(client2));
+    assertEquals(52, allocator.allocate(client2));
+    assertEquals(60L, (long) lastDiffIds.get("project2"));
+
+    // Switching back leases a new block, since project1's numbers may have been allocated since.
+    assertEquals(11, allocator.allocate(client1));
+    assertEquals(3, leaseCount);
+    assertEquals(20L, (long) lastDiffIds.get("project1"));
+  }
+}
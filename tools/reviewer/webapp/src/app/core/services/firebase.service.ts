@@ -8,13 +8,15 @@ import {
 } from '@angular/fire/firestore';
 import { Observable, Subscriber } from 'rxjs';
 import { map } from 'rxjs/operators';
+import * as firebase from 'firebase/app';
 
 import { Diff } from '@/core/proto';
 import { EncodingService } from './encoding.service';
 import { UserService } from './user.service';
 
 interface FirebaseElement {
-  proto: string;
+  // A base64 string, or a Blob written by a server with --proto_encoding BLOB
+  proto: string | firebase.firestore.Blob;
 }
 
 @Injectable()
@@ -94,8 +96,9 @@ export class FirebaseService {
 
   private convertFirebaseElementToDiff(firebaseElement: FirebaseElement): Diff {
     // Convert firebaseElement to binary
-    const binary: Uint8Array = this.encodingService
-      .decodeBase64StringToUint8Array(firebaseElement.proto);
+    const binary: Uint8Array = typeof firebaseElement.proto === 'string' ?
+      this.encodingService.decodeBase64StringToUint8Array(firebaseElement.proto) :
+      firebaseElement.proto.toUint8Array();
     // Convert binary to diff
     const diff: Diff = Diff.deserializeBinary(binary);
 